@@ -0,0 +1,73 @@
+package project;
+import java.util.Arrays;
+
+/**
+ * ArrayTape: a Tape held in primitive arrays on the heap, filled while reading the csv files.
+ */
+class ArrayTape implements Tape {
+
+    // indexed by timeIndex (index 0 is unused)
+    private String stockName;                       // for the error messages
+    private double[] prices;                        // the price at each timeIndex
+    private int[] quantities;                       // the quantity added at each timeIndex
+    private int lastTime;                           // the last timeIndex of the tape
+
+    ArrayTape(String stockName) {
+        this.stockName = stockName;
+        this.prices = new double[64];
+        this.quantities = new int[64];
+        this.lastTime = 0;
+    }
+
+    // the tape is only written while loading the stocks, before any trade
+    void setPrice(int time, double price) {
+        ensureCapacity(time);
+        this.prices[time] = price;
+    }
+
+    void setQuantity(int time, int quantity) {
+        ensureCapacity(time);
+        this.quantities[time] = quantity;
+    }
+
+    @Override
+    public double getPrice(int time) {
+        checkTime(time);
+        return this.prices[time];
+    }
+
+    @Override
+    public int getQty(int time) {
+        checkTime(time);
+        return this.quantities[time];
+    }
+
+    @Override
+    public int getLastTime() {
+        return this.lastTime;
+    }
+
+    /**
+     * Shrinks the arrays to the length of the tape once all the timestamps are loaded.
+     */
+    void trim() {
+        this.prices = Arrays.copyOf(this.prices, this.lastTime + 1);
+        this.quantities = Arrays.copyOf(this.quantities, this.lastTime + 1);
+    }
+
+    private void ensureCapacity(int time) {
+        if (time >= this.prices.length) {
+            int capacity = Math.max(this.prices.length * 2, time + 1);
+            this.prices = Arrays.copyOf(this.prices, capacity);
+            this.quantities = Arrays.copyOf(this.quantities, capacity);
+        }
+        this.lastTime = Math.max(this.lastTime, time);
+    }
+
+    // same as a missing timestamp in the former Hashtables: past the end of the tape is an error
+    private void checkTime(int time) {
+        if (time < 1 || time > this.lastTime) {
+            throw new IndexOutOfBoundsException(this.stockName + " has no price or quantity at timeIndex " + time);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package project;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Benchmark: load generators for comparing the different startup modes of the trading system.
+ *
+ * Usage: java Benchmark --benchmark=<name> [--key=value ...]
+ * The benchmarks connecting to Exchanges accept --protocol=json|binary.
+ *
+ * The benchmarks are described in the classes running them:
+ *   NetworkBenchmarks:    connections, forwarded, latency, replay, codec
+ *   StorageBenchmarks:    inventory, wal, recovery, logging, replenish
+ *   MarketDataBenchmarks: tape, marketdata, csvload, stream
+ *   DirectoryBenchmarks:  directory, hashring, lookups, failover
+ */
+public class Benchmark {
+
+    private Benchmark(Options options) {
+
+        switch (options.get("benchmark", "")) {
+            case "connections":
+                new NetworkBenchmarks(options).connections();
+                break;
+            case "forwarded":
+                new NetworkBenchmarks(options).forwarded();
+                break;
+            case "latency":
+                new NetworkBenchmarks(options).latency();
+                break;
+            case "inventory":
+                new StorageBenchmarks(options).inventory();
+                break;
+            case "wal":
+                new StorageBenchmarks(options).wal();
+                break;
+            case "recovery":
+                new StorageBenchmarks(options).recovery();
+                break;
+            case "logging":
+                new StorageBenchmarks(options).logging();
+                break;
+            case "tape":
+                new MarketDataBenchmarks(options).tape();
+                break;
+            case "codec":
+                new NetworkBenchmarks(options).codec();
+                break;
+            case "marketdata":
+                new MarketDataBenchmarks(options).marketData();
+                break;
+            case "csvload":
+                new MarketDataBenchmarks(options).csvLoad();
+                break;
+            case "stream":
+                new MarketDataBenchmarks(options).stream();
+                break;
+            case "replenish":
+                new StorageBenchmarks(options).replenish();
+                break;
+            case "directory":
+                new DirectoryBenchmarks(options).directory();
+                break;
+            case "hashring":
+                new DirectoryBenchmarks(options).hashRing();
+                break;
+            case "lookups":
+                new DirectoryBenchmarks(options).lookups();
+                break;
+            case "replay":
+                new NetworkBenchmarks(options).replay();
+                break;
+            case "failover":
+                new DirectoryBenchmarks(options).failover();
+                break;
+            default:
+                System.out.println("Invalid benchmark name.");
+                System.exit(1);
+        }
+    }
+
+    static void joinAll(ArrayList<Thread> threads) {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // the number of open file descriptors of a process (read from /proc), -1 if it cannot be read
+    static int countFileDescriptors(String pid) {
+        String[] fds = new File("/proc/" + pid + "/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    // the value below which the given percentage of the sorted values fall
+    static long percentile(ArrayList<Long> sortedValues, int percentage) {
+        int index = (int) Math.ceil(percentage / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, index));
+    }
+
+    public static void main(String[] args) {
+        new Benchmark(new Options(args));
+    }
+}
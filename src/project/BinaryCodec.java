@@ -0,0 +1,290 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.json.*;
+
+/**
+ * BinaryCodec: a compact binary encoding of the messages exchanged between Clients, Exchanges and Servers
+ * (orders, responses, registrations, address requests and notifications).
+ *
+ * The messages are the same JSONObjects as in the JSON protocol, only their encoding differs. A message is encoded as:
+ *   [number of fields: 1 byte] then for each field: [key: 1 byte] [type: 1 byte] [value]
+ * Known keys are encoded as their index in KEYS, other keys as 0 followed by the key as a string.
+ * Values are an int (4 bytes), a long (8 bytes), a double (8 bytes), a boolean (1 byte), a string
+ * ([length: 2 bytes] [UTF-8 bytes]), an array of strings ([count: 4 bytes] [string] ...) or an array of ints
+ * ([count: 4 bytes] [int] ...). Nested objects, nested or mixed arrays and messages of more than 255 fields cannot be
+ * encoded.
+ * The length prefix of each message on the wire is added by MessageConnection.
+ */
+class BinaryCodec {
+
+    // the keys used in the messages of this project, encoded as their index (index 0 is for keys not in this list)
+    private static final String[] KEYS = {
+            null, "Type", "src", "action", "stock", "qty", "clientName", "result",
+            "ExchangeName", "Address", "StockSet", "StockName", "OriginalPort", "ExchangeAddress", "StartTime",
+            "RequestID", "Clock", "Change", "Epoch", "Seq", "ExchangeNames", "ExchangeAddresses"
+    };
+
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+    private static final byte STRING_ARRAY = 6;
+    private static final byte INT_ARRAY = 7;
+
+    private static final int MAX_FIELDS = 0xFF;
+
+    /**
+     * Encodes a message.
+     *
+     * @param message the message to be encoded
+     * @return the encoded message, without the length prefix
+     * @throws JSONException if the message has a value that cannot be encoded
+     */
+    static byte[] encode(JSONObject message) {
+
+        if (message.length() > MAX_FIELDS) {
+            throw new JSONException("Too many fields to be encoded: " + message.length());
+        }
+        Writer writer = new Writer();
+        writer.writeByte(message.length());
+
+        Iterator<String> keys = message.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = message.get(key);
+
+            int keyIndex = keyIndex(key);
+            writer.writeByte(keyIndex);
+            if (keyIndex == 0) {
+                writer.writeString(key);
+            }
+
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writer.writeByte(INT);
+                writer.writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                writer.writeByte(LONG);
+                writer.writeLong((Long) value);
+            } else if (value instanceof Number) {
+                writer.writeByte(DOUBLE);
+                writer.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof Boolean) {
+                writer.writeByte(BOOLEAN);
+                writer.writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof JSONArray) {
+                writeArray(writer, key, (JSONArray) value);
+            } else if (value instanceof String) {
+                writer.writeByte(STRING);
+                writer.writeString((String) value);
+            } else {
+                throw new JSONException("Cannot encode the value of " + key + ": " + value);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param bytes  the buffer holding the encoded message
+     * @param offset the index of the first byte of the message
+     * @param length the length of the message
+     * @return the decoded message
+     * @throws JSONException if the bytes are not a valid message
+     */
+    static JSONObject decode(byte[] bytes, int offset, int length) {
+
+        Reader reader = new Reader(bytes, offset, length);
+        JSONObject message = new JSONObject();
+
+        int numFields = reader.readByte();
+        for (int i = 0; i < numFields; i++) {
+            int keyIndex = reader.readByte();
+            String key;
+            if (keyIndex == 0) {
+                key = reader.readString();
+            } else if (keyIndex < KEYS.length) {
+                key = KEYS[keyIndex];
+            } else {
+                throw new JSONException("Unknown key index " + keyIndex);
+            }
+
+            int type = reader.readByte();
+            switch (type) {
+                case INT:
+                    message.put(key, reader.readInt());
+                    break;
+                case LONG:
+                    message.put(key, reader.readLong());
+                    break;
+                case DOUBLE:
+                    message.put(key, Double.longBitsToDouble(reader.readLong()));
+                    break;
+                case BOOLEAN:
+                    message.put(key, reader.readByte() != 0);
+                    break;
+                case STRING:
+                    message.put(key, reader.readString());
+                    break;
+                case STRING_ARRAY:
+                    int count = reader.readInt();
+                    JSONArray array = new JSONArray();
+                    for (int j = 0; j < count; j++) {
+                        array.put(reader.readString());
+                    }
+                    message.put(key, array);
+                    break;
+                case INT_ARRAY:
+                    int numInts = reader.readInt();
+                    JSONArray ints = new JSONArray();
+                    for (int j = 0; j < numInts; j++) {
+                        ints.put(reader.readInt());
+                    }
+                    message.put(key, ints);
+                    break;
+                default:
+                    throw new JSONException("Unknown value type " + type);
+            }
+        }
+        return message;
+    }
+
+    // an array of only strings or only ints, an empty array is an array of strings
+    private static void writeArray(Writer writer, String key, JSONArray array) {
+        boolean ints = array.length() > 0;
+        for (int i = 0; i < array.length(); i++) {
+            Object element = array.get(i);
+            boolean isInt = element instanceof Integer || element instanceof Short || element instanceof Byte;
+            if (!isInt && !(element instanceof String) || i > 0 && isInt != ints) {
+                throw new JSONException("Cannot encode the array " + key + ": only arrays of strings or of ints can");
+            }
+            ints = isInt;
+        }
+
+        writer.writeByte(ints ? INT_ARRAY : STRING_ARRAY);
+        writer.writeInt(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            if (ints) {
+                writer.writeInt(((Number) array.get(i)).intValue());
+            } else {
+                writer.writeString((String) array.get(i));
+            }
+        }
+    }
+
+    private static int keyIndex(String key) {
+        for (int i = 1; i < KEYS.length; i++) {
+            if (KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A growing byte array for encoding a message.
+     */
+    private static class Writer {
+
+        private byte[] buffer = new byte[64];
+        private int size = 0;
+
+        private void ensureCapacity(int extra) {
+            if (this.size + extra > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.size + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            this.buffer[this.size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            this.buffer[this.size++] = (byte) (value >>> 24);
+            this.buffer[this.size++] = (byte) (value >>> 16);
+            this.buffer[this.size++] = (byte) (value >>> 8);
+            this.buffer[this.size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new JSONException("String too long to be encoded: " + bytes.length + " bytes");
+            }
+            ensureCapacity(2 + bytes.length);
+            this.buffer[this.size++] = (byte) (bytes.length >>> 8);
+            this.buffer[this.size++] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+            this.size += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buffer, this.size);
+        }
+    }
+
+    /**
+     * Reads the fields of an encoded message.
+     */
+    private static class Reader {
+
+        private byte[] buffer;
+        private int position;
+        private int end;
+
+        Reader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        private void require(int n) {
+            if (this.position + n > this.end) {
+                throw new JSONException("Truncated binary message");
+            }
+        }
+
+        int readByte() {
+            require(1);
+            return this.buffer[this.position++] & 0xFF;
+        }
+
+        int readInt() {
+            require(4);
+            int value = (this.buffer[this.position] & 0xFF) << 24
+                    | (this.buffer[this.position + 1] & 0xFF) << 16
+                    | (this.buffer[this.position + 2] & 0xFF) << 8
+                    | (this.buffer[this.position + 3] & 0xFF);
+            this.position += 4;
+            return value;
+        }
+
+        long readLong() {
+            long high = readInt() & 0xFFFFFFFFL;
+            long low = readInt() & 0xFFFFFFFFL;
+            return high << 32 | low;
+        }
+
+        String readString() {
+            require(2);
+            int length = (this.buffer[this.position] & 0xFF) << 8 | (this.buffer[this.position + 1] & 0xFF);
+            this.position += 2;
+            require(length);
+            String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package project;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CSVColumnReader: reads a few columns of the given csv files (price_stocks.csv and qty_stocks.csv) straight from
+ * their bytes.
+ *
+ * Unlike CSVReader, a line is not split into a list of Strings: the reader only finds where the projected columns
+ * start and end, and stops scanning the line after the last of them. Numbers are parsed from the bytes, and only the
+ * cells asked for as text are decoded. Quoted cells (e.g. "Toyobo Co., Ltd.") may contain commas and doubled quotes.
+ */
+class CSVColumnReader {
+
+    private static final byte SEPARATOR = ',';
+    private static final byte QUOTE = '"';
+
+    // 10^0 .. 10^22 are exact doubles, so a mantissa below 2^53 divided by one of them is correctly rounded
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private InputStream in;
+    private byte[] buffer;              // holds the current line, and the following bytes read so far
+    private int bufferEnd;              // the end of the bytes read into the buffer
+    private int lineStart;              // the current line is buffer[lineStart, lineEnd), without the line break
+    private int lineEnd;
+    private int nextLineStart;          // the start of the next line in the buffer
+    private int currentLineIndex;
+
+    private int[] columns;              // the projected column indices, in increasing order
+    private int[] cellStarts;           // the bounds of each projected cell in the current line, -1 if the line is shorter
+    private int[] cellEnds;
+
+    /**
+     * Constructor: Instantiates a new CSVColumnReader.
+     *
+     * @param csvFile the csv file to be read
+     * @throws FileNotFoundException the file not found exception
+     */
+    CSVColumnReader(String csvFile) throws FileNotFoundException {
+        this.in = new FileInputStream(csvFile);
+        this.buffer = new byte[1 << 16];
+        this.currentLineIndex = 0;
+        project(new int[0]);
+    }
+
+    /**
+     * Sets the columns read from the following lines.
+     *
+     * @param columns the column indices, in increasing order
+     */
+    void project(int[] columns) {
+        this.columns = columns.clone();
+        this.cellStarts = new int[columns.length];
+        this.cellEnds = new int[columns.length];
+    }
+
+    /**
+     * Moves to the next line and finds the projected columns in it.
+     *
+     * @return true if there was a next line, false at the end of the file
+     * @throws IOException the io exception
+     */
+    boolean nextLine() throws IOException {
+        int start = this.nextLineStart;
+        int end = indexOf((byte) '\n', start);
+        while (end == -1) {
+            boolean filled = fill();
+            // fill() moved the rest of the buffer to its start
+            start = this.nextLineStart;
+            if (!filled) {
+                if (start == this.bufferEnd) {
+                    return false;
+                }
+                end = this.bufferEnd;   // the last line has no line break
+                break;
+            }
+            end = indexOf((byte) '\n', start);
+        }
+
+        this.lineStart = start;
+        this.nextLineStart = Math.min(end + 1, this.bufferEnd);
+        this.lineEnd = end > start && this.buffer[end - 1] == '\r' ? end - 1 : end;
+        this.currentLineIndex++;
+        locateColumns();
+        return true;
+    }
+
+    /**
+     * Gets current line index (the first line is 1).
+     *
+     * @return the current line index
+     */
+    int getCurrentLineIndex() {
+        return this.currentLineIndex;
+    }
+
+    /**
+     * Finds the columns of the current line whose letters are the given name, e.g. the columns of an Exchange in the
+     * exchange line.
+     *
+     * @param letters the name, only made of letters
+     * @return the column indices, in increasing order
+     */
+    int[] findColumns(String letters) {
+        int[] found = new int[16];
+        int numFound = 0;
+        int column = 0;
+        int position = this.lineStart;
+        while (position <= this.lineEnd) {
+            int end = cellEnd(position);
+            if (lettersEqual(position, end, letters)) {
+                if (numFound == found.length) {
+                    found = Arrays.copyOf(found, numFound * 2);
+                }
+                found[numFound++] = column;
+            }
+            position = end + 1;
+            column++;
+        }
+        return Arrays.copyOf(found, numFound);
+    }
+
+    /**
+     * Decodes a projected cell of the current line (without its quotes).
+     *
+     * @param column the column index
+     * @return the text of the cell, empty if the line has no such column
+     */
+    String getString(int column) {
+        int i = cellIndex(column);
+        int start = this.cellStarts[i];
+        int end = this.cellEnds[i];
+        if (start == -1) {
+            return "";
+        }
+        if (start < end && this.buffer[start] == QUOTE) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+            for (int position = start + 1; position < end; position++) {
+                if (this.buffer[position] == QUOTE) {
+                    position++;     // the closing quote, or the first quote of a doubled quote
+                    if (position >= end) {
+                        break;
+                    }
+                }
+                bytes.write(this.buffer[position]);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return new String(this.buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes only the letters of a projected cell of the current line, e.g. "Kirin Brewery Co., Ltd." gives
+     * "KirinBreweryCoLtd" (the same as replaceAll("[^A-Za-z]+", "") on the cell).
+     *
+     * @param column the column index
+     * @return the letters of the cell
+     */
+    String getLetters(int column) {
+        int i = cellIndex(column);
+        if (this.cellStarts[i] == -1) {
+            return "";
+        }
+        StringBuilder letters = new StringBuilder(this.cellEnds[i] - this.cellStarts[i]);
+        for (int position = this.cellStarts[i]; position < this.cellEnds[i]; position++) {
+            byte b = this.buffer[position];
+            if (b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z') {
+                letters.append((char) b);
+            }
+        }
+        return letters.toString();
+    }
+
+    /**
+     * Parses a projected cell of the current line as a double.
+     *
+     * @param column the column index
+     * @return the number in the cell
+     * @throws NumberFormatException if the cell is not a number
+     */
+    double getDouble(int column) {
+        int i = cellIndex(column);
+        int start = this.cellStarts[i];
+        int end = this.cellEnds[i];
+        if (start == -1 || start == end) {
+            throw new NumberFormatException("empty String");
+        }
+
+        // fast path: [-]digits[.digits] with at most 15 significant digits, as in the csv files
+        boolean negative = this.buffer[start] == '-';
+        int position = negative ? start + 1 : start;
+        long mantissa = 0;
+        int numDigits = 0;
+        int scale = -1;     // the number of digits after the point, -1 before the point
+        for (; position < end; position++) {
+            byte b = this.buffer[position];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    numDigits++;
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (b == '.' && scale == -1) {
+                scale = 0;
+            } else {
+                break;
+            }
+        }
+        boolean hasDigits = position - start > (negative ? 1 : 0) + (scale >= 0 ? 1 : 0);
+        if (position == end && hasDigits && numDigits <= 15 && scale < POWERS_OF_TEN.length) {
+            double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+            return negative ? -value : value;
+        }
+        // e.g. an exponent or too many digits
+        return Double.parseDouble(getString(column));
+    }
+
+    /**
+     * Parses a projected cell of the current line as an int.
+     *
+     * @param column       the column index
+     * @param defaultValue the value of a cell that is not an int (e.g. empty)
+     * @return the number in the cell, or defaultValue
+     */
+    int getInt(int column, int defaultValue) {
+        int i = cellIndex(column);
+        int start = this.cellStarts[i];
+        int end = this.cellEnds[i];
+        if (start == -1 || start == end) {
+            return defaultValue;
+        }
+        int position = start;
+        boolean negative = false;
+        if (this.buffer[position] == '-' || this.buffer[position] == '+') {
+            negative = this.buffer[position] == '-';
+            position++;
+        }
+        if (position == end) {
+            return defaultValue;
+        }
+        if (end - position > 10) {
+            return parseIntSlowly(column, defaultValue);   // e.g. leading zeros
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            byte b = this.buffer[position];
+            if (b < '0' || b > '9') {
+                return defaultValue;
+            }
+            value = value * 10 + (b - '0');
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? defaultValue : (int) value;
+    }
+
+    void close() throws IOException {
+        this.in.close();
+    }
+
+    private int parseIntSlowly(int column, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(column));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // finds the projected cells of the current line, and stops after the last one
+    private void locateColumns() {
+        Arrays.fill(this.cellStarts, -1);
+        Arrays.fill(this.cellEnds, -1);
+        int column = 0;
+        int next = 0;   // the next projected column to be found
+        int position = this.lineStart;
+        while (next < this.columns.length && position <= this.lineEnd) {
+            int end = cellEnd(position);
+            if (column == this.columns[next]) {
+                this.cellStarts[next] = position;
+                this.cellEnds[next] = end;
+                next++;
+            }
+            position = end + 1;
+            column++;
+        }
+    }
+
+    // the end of the cell starting at the given position (the position of its separator or the end of the line)
+    private int cellEnd(int position) {
+        boolean inQuotes = false;
+        for (; position < this.lineEnd; position++) {
+            byte b = this.buffer[position];
+            if (b == QUOTE) {
+                inQuotes = !inQuotes;   // a doubled quote inside quotes toggles twice
+            } else if (b == SEPARATOR && !inQuotes) {
+                return position;
+            }
+        }
+        return this.lineEnd;
+    }
+
+    private boolean lettersEqual(int start, int end, String letters) {
+        int matched = 0;
+        for (int position = start; position < end; position++) {
+            byte b = this.buffer[position];
+            if (b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z') {
+                if (matched == letters.length() || letters.charAt(matched) != b) {
+                    return false;
+                }
+                matched++;
+            }
+        }
+        return matched == letters.length();
+    }
+
+    private int cellIndex(int column) {
+        int i = Arrays.binarySearch(this.columns, column);
+        if (i < 0) {
+            throw new IllegalArgumentException("Column " + column + " is not projected");
+        }
+        return i;
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int position = from; position < this.bufferEnd; position++) {
+            if (this.buffer[position] == b) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // moves the unread bytes to the start of the buffer (growing it for a long line) and reads more after them
+    private boolean fill() throws IOException {
+        int remaining = this.bufferEnd - this.nextLineStart;
+        if (remaining == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        } else {
+            System.arraycopy(this.buffer, this.nextLineStart, this.buffer, 0, remaining);
+        }
+        this.nextLineStart = 0;
+        this.bufferEnd = remaining;
+        int read = this.in.read(this.buffer, remaining, this.buffer.length - remaining);
+        if (read <= 0) {
+            return false;
+        }
+        this.bufferEnd += read;
+        return true;
+    }
+}
@@ -1,9 +1,11 @@
 package project;
 
 import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.*;
 
@@ -17,9 +19,12 @@ public class Client {
     private int exchangePort;
     private ExchangeUtils exchangeUtils;
 
-    private Socket socket;
-    private BufferedReader socketReader;
-    private PrintWriter socketWriter;
+    private volatile MessageConnection connection;  // null while the Exchange cannot be reached, replaced on reconnect
+
+    // for pipelining (ClientTest.pipelineWindow > 0): orders are sent without waiting for the previous response
+    private AtomicInteger nextRequestID;                          // the correlation ID of the next order
+    private ConcurrentHashMap<Integer, String> pendingRequests;   // <RequestID, transaction> sent but not answered yet
+    private Semaphore window;                                     // limits the number of orders in flight
 
     private String transaction;
 
@@ -44,13 +49,17 @@ public class Client {
 
         this.timer = new Timer();
         this.round = Integer.MAX_VALUE;
-        this.timer.scheduleAtFixedRate(new TransactionTask(), delay, period);
+        // the delay and the period are given in timestamps of the tape (1000 ms each), see TradingClock
+        this.timer.scheduleAtFixedRate(new TransactionTask(), ClientTest.clock.toWallMillis(delay),
+                Math.max(1, ClientTest.clock.toWallMillis(period)));
     }
 
     public Client(int clientID, int round) {
         this.clientID = clientID;
         this.clientType = ClientTest.RANDOM;
-        this.readTable();
+        this.stocks = new ArrayList<>();
+        this.exchanges = new ArrayList<>();
+        readTable(this.stocks, this.exchanges);
 
         this.exchangeName = generateRandomExchange();
 
@@ -63,17 +72,56 @@ public class Client {
         this.timer = new Timer();
         this.round = round;
         int period = ThreadLocalRandom.current().nextInt(2000, 5000);
-        this.timer.scheduleAtFixedRate(new TransactionTask(), 0, period);
+        this.timer.scheduleAtFixedRate(new TransactionTask(), 0, Math.max(1, ClientTest.clock.toWallMillis(period)));
     }
 
-    private void connectToExchange() {
+    /**
+     * Opens a new connection to the Exchange, or sets the connection to null if the Exchange cannot be reached (the
+     * next order tries again).
+     *
+     * @return the new connection, or null
+     */
+    private synchronized MessageConnection connectToExchange() {
+        if (ClientTest.pipelineWindow > 0 && this.pendingRequests == null) {
+            this.nextRequestID = new AtomicInteger();
+            this.pendingRequests = new ConcurrentHashMap<>();
+            this.window = new Semaphore(ClientTest.pipelineWindow);
+        }
         try {
-            socket = new Socket(exchangeIP, exchangePort);
-            socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            socketWriter = new PrintWriter(socket.getOutputStream(), true);
-
+            MessageConnection newConnection = MessageConnection.open(exchangeIP, exchangePort, ClientTest.binaryProtocol);
+            connection = newConnection;
+            if (ClientTest.pipelineWindow > 0) {
+                new Thread(new ResponseReader(newConnection)).start();
+            }
         } catch (IOException e) {
-            System.out.println("Client " + clientID + ": Failed to connect with Exchange " + exchangeName);
+            connection = null;
+            Log.warn("Client {}: Failed to connect with Exchange {}", clientID, exchangeName);
+        }
+        return connection;
+    }
+
+    // the connection to the Exchange, opened again if the previous attempt failed, or null if it still fails
+    private MessageConnection currentConnection() {
+        MessageConnection current = connection;
+        return current != null ? current : connectToExchange();
+    }
+
+    // reconnects after a connection broke, unless another thread already replaced it
+    private synchronized void reconnect(MessageConnection broken) {
+        if (connection == broken) {
+            connectToExchange();
+        }
+    }
+
+    /**
+     * Stops sending orders and closes the connection.
+     */
+    synchronized void stop() {
+        timer.cancel();
+        MessageConnection current = connection;
+        connection = null;
+        if (current != null) {
+            current.close();
         }
     }
 
@@ -129,24 +177,33 @@ public class Client {
             }
 
             count++;
-            if (count < round) {
-                String msg = format(currentTransaction);
-                // Sends the request to the Exchange
-                socketWriter.println(msg);
+            if (count < round && ClientTest.pipelineWindow > 0) {
+                sendPipelined(currentTransaction);
+            } else if (count < round) {
+                JSONObject msg = format(currentTransaction);
+                MessageConnection current = currentConnection();
+                if (current == null) {
+                    Log.warn("Client {}: Exchange {} cannot be reached. Transaction failed.", clientID, exchangeName);
+                    return;
+                }
 
-                // Tries to receive the response from the Exchange
                 try {
-                    String response = socketReader.readLine();
-                    if (response == null) {
-                        System.out.println("Client " + clientID + ": Exchange " + exchangeName + " did not respond. Transaction failed. Retrying connecting with Exchange...");
-                        connectToExchange();
+                    // Sends the request to the Exchange
+                    current.write(msg);
+
+                    // Tries to receive the response from the Exchange
+                    JSONObject responseObj = current.read();
+                    if (responseObj == null) {
+                        Log.warn("Client {}: Exchange {} did not respond. Transaction failed. Retrying connecting with Exchange...", clientID, exchangeName);
+                        current.close();
+                        reconnect(current);
                     } else {
-                        JSONObject responseObj = new JSONObject(response);
-                        System.out.println("Client " + clientID + " requested " + currentTransaction + " " + responseObj.getString("result"));
+                        Log.info("Client {} requested {} {}", clientID, currentTransaction, responseObj.getString("result"));
                     }
                 } catch (IOException e) {
-                    System.out.println("Client " + clientID + ": Failed to send request to Exchange. Transaction failed. Retrying connecting with Exchange...");
-                    connectToExchange();
+                    Log.warn("Client {}: Failed to send request to Exchange. Transaction failed. Retrying connecting with Exchange...", clientID);
+                    current.close();
+                    reconnect(current);
                 }
             } else {
                 cancel();
@@ -156,7 +213,82 @@ public class Client {
         }
     }
 
-    private String format(String line) {
+    /**
+     * Sends an order tagged with a RequestID and returns without waiting for its response, which is handled by the
+     * ResponseReader of the connection. Blocks while ClientTest.pipelineWindow orders are already in flight.
+     */
+    private void sendPipelined(String transaction) {
+        MessageConnection current = currentConnection();
+        if (current == null) {
+            Log.warn("Client {}: Exchange {} cannot be reached. Transaction failed.", clientID, exchangeName);
+            return;
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        int requestID = nextRequestID.incrementAndGet();
+        JSONObject msg = format(transaction);
+        msg.put("RequestID", requestID);
+        pendingRequests.put(requestID, transaction);
+
+        try {
+            current.write(msg);
+        } catch (IOException e) {
+            // closing the connection stops its ResponseReader, which fails the pending orders and reconnects
+            Log.warn("Client {}: Failed to send request to Exchange. Transaction failed.", clientID);
+            current.close();
+            if (pendingRequests.remove(requestID) != null) {
+                window.release();
+            }
+        }
+    }
+
+    /**
+     * Reads the responses of pipelined orders, which may arrive in any order, and matches them by RequestID.
+     */
+    private class ResponseReader implements Runnable {
+
+        private MessageConnection readerConnection;
+
+        ResponseReader(MessageConnection readerConnection) {
+            this.readerConnection = readerConnection;
+        }
+
+        @Override
+        public void run() {
+            try {
+                JSONObject responseObj;
+                while ((responseObj = readerConnection.read()) != null) {
+                    String transaction = pendingRequests.remove(responseObj.getInt("RequestID"));
+                    if (transaction != null) {
+                        window.release();
+                        Log.info("Client {} requested {} {}", clientID, transaction, responseObj.getString("result"));
+                    }
+                }
+            } catch (IOException | JSONException e) {
+                // handled below, same as a closed connection
+            }
+
+            // an order written on this connection from now on fails to be sent, and releases its own permit
+            readerConnection.close();
+            if (connection != readerConnection) {
+                return;     // stopped, or already replaced
+            }
+            Log.warn("Client {}: Exchange {} did not respond. {} transactions failed. Retrying connecting with Exchange...",
+                    clientID, exchangeName, pendingRequests.size());
+            for (Integer requestID : pendingRequests.keySet()) {
+                if (pendingRequests.remove(requestID) != null) {
+                    window.release();
+                }
+            }
+            reconnect(readerConnection);
+        }
+    }
+
+    private JSONObject format(String line) {
         String[] command = line.split(" ");
 
         HashMap<String, Object> hm = new HashMap<>();
@@ -167,18 +299,15 @@ public class Client {
         hm.put("qty", Integer.parseInt(command[2]));
         hm.put("stock", command[1]);
 
-        JSONObject obj = new JSONObject(hm);
-        return obj.toString();
+        return new JSONObject(hm);
     }
 
     /**
      * Reads the "price_stocks.csv" file for helping with getting all stocks and exchanges (for generating random transaction)
-     * @return
+     * @param stocks    the list to be filled with all stock names
+     * @param exchanges the list to be filled with all exchange names
      */
-    private void readTable() {
-
-        this.stocks = new ArrayList<>();
-        this.exchanges = new ArrayList<>();
+    static void readTable(ArrayList<String> stocks, ArrayList<String> exchanges) {
 
         try {
             CSVReader csvReader = new CSVReader("price_stocks.csv");
@@ -208,9 +337,9 @@ public class Client {
             csvReader.close();
 
         } catch (FileNotFoundException e) {
-            System.out.println("Cannot find csv file.");
+            Log.error("Cannot find csv file.");
         } catch (IOException e) {
-            System.out.println("Failed to read next line.");
+            Log.error("Failed to read next line.");
         }
     }
 }
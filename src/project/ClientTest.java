@@ -10,6 +10,10 @@ public class ClientTest {
     final static int RANDOM = 1;
     final static int FIXED = 2;
 
+    static boolean binaryProtocol = false;  // whether the clients talk to the exchanges with the binary protocol
+    static int pipelineWindow = 0;          // max orders in flight per client connection, 0 to wait for each response
+    static TradingClock clock = new TradingClock(TradingClock.REAL, 1);  // the clock of the servers, for scaling the periods
+
     private int scenarioIndex;
     private int numClient;
     private int clientType;  // RANDOM or FIXED
@@ -125,6 +129,11 @@ public class ClientTest {
     public static void main(String[] args) {
 
         int scenario = Integer.parseInt(args[0].split("=")[1]);
+        Options options = new Options(args);
+        Log.configure(options);
+        binaryProtocol = options.get("protocol", "json").equals("binary");
+        pipelineWindow = options.getInt("pipeline", 0);
+        clock = new TradingClock(options);
         new ClientTest(scenario);
     }
 }
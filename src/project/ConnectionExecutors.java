@@ -0,0 +1,38 @@
+package project;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ConnectionExecutors: creates the executor that runs the connection handlers of an Exchange or a Server
+ * ("--threadMode=platform|virtual").
+ *
+ * "platform" starts a platform thread per connection, as before. "virtual" starts a virtual thread per connection, so
+ * the blocking reads and outbound calls of the handlers do not hold an OS thread while they wait.
+ * Virtual threads need Java 21 or newer; they are looked up by reflection so that the project still builds with older
+ * compilers, and "platform" is used instead when they are not available.
+ */
+class ConnectionExecutors {
+
+    /**
+     * Creates a new executor running one task per connection.
+     *
+     * @param threadMode "platform" or "virtual"
+     * @param owner      the name of the Exchange or Server, for printing messages
+     * @return the executor
+     */
+    static ExecutorService create(String threadMode, String owner) {
+
+        if (threadMode.equals("virtual")) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                Log.info("{}: Handling connections with virtual threads", owner);
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("{}: Virtual threads need Java 21 or newer, using platform threads instead", owner);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,193 @@
+package project;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Hashtable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.*;
+
+/**
+ * ConnectionPool: keeps long-lived connections from an Exchange to the other Exchanges it forwards orders to
+ * ("--poolSize=<connections per destination>").
+ *
+ * Each destination (host and port) has at most poolSize connections, each carrying one request at a time. A request
+ * takes an idle connection if there is one, or opens a new one, and gives it back once the response is read.
+ * Idle connections are checked before being reused (closed, unexpected data, idle for too long). A reused connection
+ * can still turn out to be broken, e.g. when the other Exchange was restarted. If writing the request failed, it never
+ * reached the other Exchange and is sent once more on a new connection. If the request was written but no response
+ * came back, the other Exchange may already have executed it: the order is not sent again (it could be bought or sold
+ * twice) and the request fails.
+ * With "--poolSize=0", every request opens its own connection and closes it afterwards.
+ */
+class ConnectionPool {
+
+    private static final long MAX_IDLE_MILLIS = 60 * 1000;    // idle connections older than this are closed
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 10;   // how long a request waits for a free connection
+
+    private String owner;                                     // the name of the Exchange, for printing messages
+    private boolean binaryProtocol;                           // whether the connections use the binary protocol
+    private int poolSize;                                     // max connections per destination, 0 for no pooling
+    private Hashtable<String, Destination> destinationTable;  // stores <"host:port", destination>
+
+    /**
+     * Instantiates a new ConnectionPool.
+     *
+     * @param owner          the name of the Exchange
+     * @param binaryProtocol whether the connections use the binary protocol
+     * @param poolSize       the max number of connections per destination, 0 for a new connection per request
+     */
+    ConnectionPool(String owner, boolean binaryProtocol, int poolSize) {
+        this.owner = owner;
+        this.binaryProtocol = binaryProtocol;
+        this.poolSize = poolSize;
+        this.destinationTable = new Hashtable<>();
+    }
+
+    /**
+     * Sends a request to an Exchange and reads its response.
+     *
+     * @param host    the host name of the Exchange
+     * @param port    the port number of the Exchange
+     * @param request the request
+     * @return the response
+     * @throws IOException if the Exchange cannot be reached or closed the connection before responding, in which case
+     *                     the request may or may not have been executed
+     */
+    JSONObject request(String host, int port, JSONObject request) throws IOException {
+
+        if (this.poolSize <= 0) {
+            MessageConnection connection = MessageConnection.open(host, port, this.binaryProtocol);
+            try {
+                return exchange(connection, request);
+            } finally {
+                connection.close();
+            }
+        }
+
+        Destination destination = destination(host, port);
+        try {
+            if (!destination.permits.tryAcquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("No free connection to port " + port);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a connection to port " + port);
+        }
+
+        try {
+            MessageConnection connection = destination.takeIdle();
+            if (connection != null) {
+                boolean written = false;
+                try {
+                    connection.write(request);
+                    written = true;
+                    JSONObject response = readResponse(connection);
+                    destination.giveBack(connection);
+                    return response;
+                } catch (IOException e) {
+                    // the other idle connections were most likely broken at the same time
+                    connection.close();
+                    destination.closeIdle();
+                    if (written) {
+                        Log.warn("{}: Pooled connection to port {} broke after the request was sent", this.owner, port);
+                        throw e;
+                    }
+                    Log.warn("{}: Pooled connection to port {} was broken, reconnecting", this.owner, port);
+                }
+            }
+
+            connection = MessageConnection.open(host, port, this.binaryProtocol);
+            try {
+                JSONObject response = exchange(connection, request);
+                destination.giveBack(connection);
+                return response;
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        } finally {
+            destination.permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections to an Exchange, e.g. after it failed.
+     *
+     * @param host the host name of the Exchange
+     * @param port the port number of the Exchange
+     */
+    void closeIdle(String host, int port) {
+        Destination destination = this.destinationTable.get(host + ":" + port);
+        if (destination != null) {
+            destination.closeIdle();
+        }
+    }
+
+    private Destination destination(String host, int port) {
+        synchronized (this.destinationTable) {
+            Destination destination = this.destinationTable.get(host + ":" + port);
+            if (destination == null) {
+                destination = new Destination(this.poolSize);
+                this.destinationTable.put(host + ":" + port, destination);
+            }
+            return destination;
+        }
+    }
+
+    private static JSONObject exchange(MessageConnection connection, JSONObject request) throws IOException {
+        connection.write(request);
+        return readResponse(connection);
+    }
+
+    private static JSONObject readResponse(MessageConnection connection) throws IOException {
+        JSONObject response = connection.read();
+        if (response == null) {
+            throw new EOFException("Connection closed by the other Exchange");
+        }
+        return response;
+    }
+
+    /**
+     * The connections to one Exchange.
+     */
+    private static class Destination {
+
+        private Semaphore permits;                       // one per connection that may be open
+        private ArrayDeque<MessageConnection> idle;      // connections not used by a request, most recent last
+        private ArrayDeque<Long> idleSince;              // when each idle connection was given back
+
+        Destination(int poolSize) {
+            this.permits = new Semaphore(poolSize);
+            this.idle = new ArrayDeque<>();
+            this.idleSince = new ArrayDeque<>();
+        }
+
+        // returns the most recently used healthy idle connection, or null if there is none
+        synchronized MessageConnection takeIdle() {
+            while (!this.idle.isEmpty()) {
+                MessageConnection connection = this.idle.pollLast();
+                long since = this.idleSince.pollLast();
+                if (System.currentTimeMillis() - since < MAX_IDLE_MILLIS && connection.isReusable()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+
+        synchronized void giveBack(MessageConnection connection) {
+            this.idle.addLast(connection);
+            this.idleSince.addLast(System.currentTimeMillis());
+        }
+
+        synchronized void closeIdle() {
+            for (MessageConnection connection : this.idle) {
+                connection.close();
+            }
+            this.idle.clear();
+            this.idleSince.clear();
+        }
+    }
+}
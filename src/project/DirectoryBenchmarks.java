@@ -0,0 +1,379 @@
+package project;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.*;
+
+/**
+ * DirectoryBenchmarks: the benchmarks of finding the exchange of a stock, in the directory of a Server and along
+ * the ring of Servers.
+ * Run by Benchmark: java Benchmark --benchmark=<name> [--key=value ...]
+ *
+ * directory:   finding the exchange of a stock in the routing table of a Server (runs in this process): the previous scan
+ *              of the stocks of every known exchange against the index of StockDirectory, with lookup threads running
+ *              while another thread keeps caching and removing exchanges. Counts the lookups that failed.
+ *              Options: --exchanges=100 --stocks=100 (per exchange) --threads=4 --lookups=1000000 (per thread)
+ *
+ * hashring:    the HashRing of --directory=hash (runs in this process): how evenly --stocks synthetic stocks spread over
+ *              --servers Servers, the share of the stocks changing owner when a Server joins and when one leaves (1/N
+ *              at best), and the time to find the owner of a stock.
+ *              Options: --servers=4 --stocks=100000 --virtualNodes=100
+ *
+ * lookups:     bursts of exchanges asking a Server at the same moment for the exchange of a stock it has not cached yet,
+ *              one burst per stock of --exchangeName (read from the csv files of the current directory), which must be
+ *              on another continent than --serverName. Prints the time until the whole burst is answered and checks
+ *              that every request got the same answer. The Server walks along the ring once per burst: its log shows
+ *              the requests that joined the lookup in flight. Then asks --unknownRequests times in a row for a stock no
+ *              exchange lists, which only the first request looks up along the ring (see --unknownStockTtl of Server).
+ *              --pid=<pid of --serverName> also prints its open file descriptors before and after.
+ *              Options: --serverName=Europe --exchangeName=Shenzhen --burst=50 --stocks=20 --unknownRequests=100
+ *
+ * failover:    how long a Server keeps routing orders to an exchange that died: asks --serverName for a stock of
+ *              --exchangeName until it answers with the exchange, kills the exchange (--pid=<pid of --exchangeName>),
+ *              then asks again every 20 ms until the Server stops answering with the dead exchange. Start the Servers
+ *              with --heartbeatMillis=0 (only a failed trade removes the exchange) or with the defaults and compare.
+ *              Options: --serverName=Europe --exchangeName=Shenzhen --pid=<pid> --seconds=30
+ */
+class DirectoryBenchmarks {
+
+    private Options options;
+    private boolean binaryProtocol;   // whether the benchmark clients use the binary protocol (--protocol=binary)
+
+    DirectoryBenchmarks(Options options) {
+        this.options = options;
+        this.binaryProtocol = options.get("protocol", "json").equals("binary");
+    }
+
+    void directory() {
+
+        int numExchanges = this.options.getInt("exchanges", 100);
+        int numStocks = this.options.getInt("stocks", 100);
+        int numThreads = this.options.getInt("threads", 4);
+        int lookups = this.options.getInt("lookups", 1000000);
+
+        // the previous tables of Server, and the directory
+        Hashtable<String, HashSet<String>> exchangeStockTable = new Hashtable<>();
+        StockDirectory directory = new StockDirectory(0);
+        for (int e = 0; e < numExchanges; e++) {
+            HashSet<String> stockNames = new HashSet<>();
+            for (int s = 0; s < numStocks; s++) {
+                stockNames.add("STOCK" + e + "_" + s);
+            }
+            exchangeStockTable.put("EXCHANGE" + e, stockNames);
+            directory.register("EXCHANGE" + e, 10000 + e, stockNames);
+        }
+
+        for (int round = 0; round < 2; round++) {   // the first round warms up the JIT
+            for (String name : new String[]{"scan (before)", "StockDirectory"}) {
+                boolean before = name.startsWith("scan");
+                AtomicLong failed = new AtomicLong();
+                AtomicLong found = new AtomicLong();
+                AtomicLong done = new AtomicLong();
+
+                // caches and removes an exchange of another continent over and over, as Servers do
+                Thread writer = new Thread(() -> {
+                    int i = 0;
+                    while (done.get() == 0) {
+                        String exchangeName = "CACHED" + (i++ % 16);
+                        try {
+                            if (before) {
+                                exchangeStockTable.computeIfAbsent(exchangeName, n -> new HashSet<>()).add("CACHEDSTOCK" + i);
+                                exchangeStockTable.remove(exchangeName);
+                            } else {
+                                directory.cache("CACHEDSTOCK" + i, exchangeName, 20000);
+                                directory.remove(exchangeName, 20000);
+                            }
+                        } catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                });
+                writer.start();
+
+                ArrayList<Thread> threads = new ArrayList<>();
+                long begin = System.nanoTime();
+                for (int t = 0; t < numThreads; t++) {
+                    int seed = t;
+                    Thread thread = new Thread(() -> {
+                        for (int i = 0; i < lookups; i++) {
+                            int e = (int) ((i * 7919L + seed) % numExchanges);
+                            String stockName = "STOCK" + e + "_" + (i % numStocks);
+                            try {
+                                String exchangeName = null;
+                                if (before) {
+                                    for (String candidate : exchangeStockTable.keySet()) {
+                                        if (exchangeStockTable.get(candidate).contains(stockName)) {
+                                            exchangeName = candidate;
+                                            break;
+                                        }
+                                    }
+                                } else {
+                                    exchangeName = directory.getExchange(stockName);
+                                }
+                                if (exchangeName != null) {
+                                    found.incrementAndGet();
+                                }
+                            } catch (RuntimeException ex) {
+                                failed.incrementAndGet();   // e.g. ConcurrentModificationException or NullPointerException
+                            }
+                        }
+                    });
+                    threads.add(thread);
+                    thread.start();
+                }
+                Benchmark.joinAll(threads);
+                long elapsed = System.nanoTime() - begin;
+                done.set(1);
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (round == 1) {
+                    System.out.println(String.format("  %-15s %8.1f ns per lookup, %d found, %d failed", name,
+                            elapsed / ((double) lookups * numThreads), found.get(), failed.get()));
+                }
+            }
+        }
+        System.out.println("(" + numExchanges + " exchanges x " + numStocks + " stocks, " + numThreads
+                + " threads x " + lookups + " lookups)");
+    }
+
+    void hashRing() {
+
+        int numServers = Math.max(2, this.options.getInt("servers", 4));
+        int numStocks = this.options.getInt("stocks", 100000);
+        int virtualNodes = this.options.getInt("virtualNodes", 100);
+
+        HashRing ring = new HashRing(virtualNodes);
+        for (int i = 0; i < numServers; i++) {
+            ring.add("SERVER" + i);
+        }
+        String[] stockNames = new String[numStocks];
+        String[] owners = new String[numStocks];
+        Hashtable<String, Integer> stocksPerServer = new Hashtable<>();
+        for (int i = 0; i < numStocks; i++) {
+            stockNames[i] = "STOCK" + i;
+            owners[i] = ring.owner(stockNames[i]);
+            stocksPerServer.merge(owners[i], 1, Integer::sum);
+        }
+        System.out.println(numStocks + " stocks on " + numServers + " servers with " + virtualNodes
+                + " virtual nodes each: min " + Collections.min(stocksPerServer.values()) + ", max "
+                + Collections.max(stocksPerServer.values()) + " stocks per server (mean " + numStocks / numServers + ")");
+
+        ring.add("SERVER" + numServers);
+        System.out.println("  a server joins: " + movedPercent(ring, stockNames, owners) + " % of the stocks move (1/N = "
+                + 100 / (numServers + 1) + " %)");
+        ring.remove("SERVER" + numServers);
+        ring.remove("SERVER0");
+        System.out.println("  a server leaves: " + movedPercent(ring, stockNames, owners) + " % of the stocks move (1/N = "
+                + 100 / numServers + " %)");
+        ring.add("SERVER0");
+
+        for (int round = 0; round < 2; round++) {   // the first round warms up the JIT
+            long begin = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < 10; i++) {
+                for (String stockName : stockNames) {
+                    found += ring.owner(stockName) != null ? 1 : 0;
+                }
+            }
+            long elapsed = System.nanoTime() - begin;
+            if (round == 1) {
+                System.out.println("  owner of a stock: " + elapsed / Math.max(1, found) + " ns");
+            }
+        }
+    }
+
+    void lookups() {
+
+        String serverName = this.options.get("serverName", "Europe");
+        String exchangeName = this.options.get("exchangeName", "Shenzhen");
+        int burst = this.options.getInt("burst", 50);
+        int numStocks = this.options.getInt("stocks", 20);
+        int port = Server.serverAddressTable.get(serverName);
+        String pid = this.options.get("pid", "");
+        int fdsBefore = pid.isEmpty() ? -1 : Benchmark.countFileDescriptors(pid);
+
+        Hashtable<String, Stock> stockTable = new Hashtable<>();
+        try {
+            Exchange.loadCsv("price_stocks.csv", "qty_stocks.csv", exchangeName, stockTable, new Hashtable<>());
+        } catch (IOException e) {
+            System.out.println("Cannot read the csv files: " + e.getMessage());
+            return;
+        }
+        ArrayList<String> stockNames = new ArrayList<>(stockTable.keySet());
+        Collections.sort(stockNames);
+
+        ArrayList<Long> burstMillis = new ArrayList<>();
+        int inconsistent = 0;
+        int failed = 0;
+        for (String stockName : stockNames.subList(0, Math.min(numStocks, stockNames.size()))) {
+            HashMap<String, String> query = new HashMap<>();
+            query.put("src", "Exchange");
+            query.put("Type", "Request");
+            query.put("StockName", stockName);
+
+            // the requests are sent once all the connections are open, so that they arrive together
+            ArrayList<MessageConnection> connections = new ArrayList<>();
+            for (int i = 0; i < burst; i++) {
+                try {
+                    connections.add(MessageConnection.open("localhost", port, this.binaryProtocol));
+                } catch (IOException e) {
+                    failed++;
+                }
+            }
+            Hashtable<Integer, Integer> answers = new Hashtable<>();     // <ExchangeAddress, requests>
+            AtomicLong errors = new AtomicLong();
+            ArrayList<Thread> threads = new ArrayList<>();
+            long begin = System.nanoTime();
+            for (MessageConnection connection : connections) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        connection.write(new JSONObject(query));
+                        JSONObject answer = connection.read();
+                        connection.close();
+                        if (answer == null) {
+                            errors.incrementAndGet();
+                        } else {
+                            answers.merge(answer.getInt("ExchangeAddress"), 1, Integer::sum);
+                        }
+                    } catch (IOException | JSONException e) {
+                        errors.incrementAndGet();
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            Benchmark.joinAll(threads);
+            burstMillis.add((System.nanoTime() - begin) / 1000000);
+            failed += errors.get();
+            if (answers.size() != 1 || answers.containsKey(-1)) {
+                inconsistent++;
+                System.out.println("  " + stockName + ": answers " + answers);
+            }
+        }
+
+        Collections.sort(burstMillis);
+        System.out.println(burstMillis.size() + " bursts of " + burst + " requests to " + serverName + " for stocks of "
+                + exchangeName + ":");
+        System.out.println("  time to answer a burst: p50 " + Benchmark.percentile(burstMillis, 50) + " ms, p99 "
+                + Benchmark.percentile(burstMillis, 99) + " ms");
+        System.out.println("  failed requests: " + failed + ", bursts with missing or different answers: " + inconsistent);
+
+        // a bad symbol, asked for again and again as random clients do
+        int unknownRequests = this.options.getInt("unknownRequests", 100);
+        HashMap<String, String> query = new HashMap<>();
+        query.put("src", "Exchange");
+        query.put("Type", "Request");
+        query.put("StockName", "NOSUCHSTOCK" + System.currentTimeMillis());
+        ArrayList<Long> requestMicros = new ArrayList<>();
+        for (int i = 0; i < unknownRequests; i++) {
+            long begin = System.nanoTime();
+            try {
+                MessageConnection connection = MessageConnection.open("localhost", port, this.binaryProtocol);
+                connection.write(new JSONObject(query));
+                JSONObject answer = connection.read();
+                connection.close();
+                if (answer == null || answer.getInt("ExchangeAddress") != -1) {
+                    System.out.println("  unexpected answer for an unknown stock: " + answer);
+                }
+            } catch (IOException | JSONException e) {
+                System.out.println("  request for an unknown stock failed: " + e.getMessage());
+            }
+            requestMicros.add((System.nanoTime() - begin) / 1000);
+        }
+        if (unknownRequests > 0) {
+            long firstMicros = requestMicros.get(0);
+            ArrayList<Long> laterMicros = new ArrayList<>(requestMicros.subList(1, requestMicros.size()));
+            Collections.sort(laterMicros);
+            System.out.println(unknownRequests + " requests for a stock listed nowhere: first " + firstMicros
+                    + " us, then p50 " + (laterMicros.isEmpty() ? 0 : Benchmark.percentile(laterMicros, 50)) + " us");
+        }
+        if (!pid.isEmpty()) {
+            System.out.println("Open file descriptors of " + serverName + ": " + fdsBefore + " before, "
+                    + Benchmark.countFileDescriptors(pid) + " after");
+        }
+    }
+
+    void failover() {
+
+        String serverName = this.options.get("serverName", "Europe");
+        String exchangeName = this.options.get("exchangeName", "Shenzhen");
+        String pid = this.options.get("pid", "");
+        int seconds = this.options.getInt("seconds", 30);
+        int serverPort = Server.serverAddressTable.get(serverName);
+        int exchangePort = new ExchangeUtils(exchangeName).getPort();
+        if (pid.isEmpty()) {
+            System.out.println("--pid=<pid of " + exchangeName + "> is required.");
+            return;
+        }
+
+        Hashtable<String, Stock> stockTable = new Hashtable<>();
+        try {
+            Exchange.loadCsv("price_stocks.csv", "qty_stocks.csv", exchangeName, stockTable, new Hashtable<>());
+        } catch (IOException e) {
+            System.out.println("Cannot read the csv files: " + e.getMessage());
+            return;
+        }
+        HashMap<String, String> query = new HashMap<>();
+        query.put("src", "Exchange");
+        query.put("Type", "Request");
+        query.put("StockName", Collections.min(stockTable.keySet()));
+
+        // the Server knows the route before the exchange dies
+        if (askExchangeAddress(serverPort, new JSONObject(query)) != exchangePort) {
+            System.out.println(serverName + " does not route " + query.get("StockName") + " to " + exchangeName + ".");
+            return;
+        }
+        ProcessHandle.of(Long.parseLong(pid)).ifPresent(ProcessHandle::destroyForcibly);
+        long killed = System.nanoTime();
+
+        int requests = 0;
+        long deadline = killed + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            requests++;
+            if (askExchangeAddress(serverPort, new JSONObject(query)) != exchangePort) {
+                System.out.println(serverName + " stopped routing to " + exchangeName + " "
+                        + (System.nanoTime() - killed) / 1000000 + " ms after it was killed (" + requests + " requests)");
+                return;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        System.out.println(serverName + " still routes to " + exchangeName + " " + seconds + " s after it was killed ("
+                + requests + " requests)");
+    }
+
+    // the percentage of the stocks whose owner on the ring is not the one given
+    private static long movedPercent(HashRing ring, String[] stockNames, String[] owners) {
+        long moved = 0;
+        for (int i = 0; i < stockNames.length; i++) {
+            moved += ring.owner(stockNames[i]).equals(owners[i]) ? 0 : 1;
+        }
+        return moved * 100 / Math.max(1, stockNames.length);
+    }
+
+    // asks a Server for the address of the exchange of a stock, -1 if it fails
+    private int askExchangeAddress(int serverPort, JSONObject query) {
+        try {
+            MessageConnection connection = MessageConnection.open("localhost", serverPort, this.binaryProtocol);
+            connection.write(query);
+            JSONObject answer = connection.read();
+            connection.close();
+            return answer == null ? -1 : answer.getInt("ExchangeAddress");
+        } catch (IOException | JSONException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package project;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.json.*;
+
+/**
+ * DirectoryReplicator: keeps the StockDirectory of a backup Server (e.g. "AsiaBackup") up to date with the one of its
+ * primary Server, so a backup taking over starts with the routes the primary learned instead of walking the ring again.
+ *
+ * The primary streams every change of its directory to the backup as a "Replicate" message over its ServerLink, one at
+ * a time and in order, each with its sequence number. The backup answers with the sequence number of the last change it
+ * applied. After a failure the primary asks the backup where it is ("status"): a backup that only missed changes still
+ * in the log of the directory catches up from there, any other backup (e.g. restarted, or following a previous run of
+ * the primary) first gets a snapshot of the whole directory ("reset", the exchanges, then "end").
+ */
+class DirectoryReplicator {
+
+    private static final long RETRY_MILLIS = 1000;        // the wait before trying again to reach the backup
+    private static final long IDLE_MILLIS = 5000;         // the max wait for a change before checking the backup
+
+    private static final String STATUS = "status";
+    private static final String RESET = "reset";
+    private static final String END = "end";
+
+    private String serverName;
+    private StockDirectory directory;
+    private ServerLink serverLink;
+    private long epoch;                                   // identifies this run of the primary
+
+    // on the backup: the primary followed, and the last change applied from it (-1 before a snapshot)
+    private long primaryEpoch;
+    private long appliedSeq;
+
+    /**
+     * Instantiates a new DirectoryReplicator.
+     *
+     * @param serverName the name of the Server
+     * @param directory  its directory
+     * @param serverLink its links to the other Servers
+     */
+    DirectoryReplicator(String serverName, StockDirectory directory, ServerLink serverLink) {
+        this.serverName = serverName;
+        this.directory = directory;
+        this.serverLink = serverLink;
+        this.epoch = System.currentTimeMillis();
+        this.primaryEpoch = -1;
+        this.appliedSeq = -1;
+    }
+
+    /**
+     * Starts streaming the changes of the directory to the backup (on the primary Server).
+     *
+     * @param backupPort the port of the backup Server
+     */
+    void start(int backupPort) {
+        Thread sender = new Thread(() -> replicate(backupPort), this.serverName + "-replicator");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Applies a "Replicate" message of the primary (on the backup Server).
+     *
+     * @param message the message
+     * @return the response, with the sequence number of the last change applied
+     */
+    synchronized JSONObject apply(JSONObject message) {
+        String change = message.getString("Change");
+        long epoch = message.getLong("Epoch");
+        long seq = message.getLong("Seq");
+
+        if (change.equals(RESET)) {
+            this.directory.clear();
+            this.primaryEpoch = epoch;
+            this.appliedSeq = -1;
+            Log.info("{} : receive a snapshot of the directory of the primary", this.serverName);
+        } else if (change.equals(END)) {
+            if (epoch == this.primaryEpoch) {
+                this.appliedSeq = seq;
+            }
+        } else if (!change.equals(STATUS) && epoch == this.primaryEpoch) {
+            // a change of a snapshot (seq 0), or the next change
+            if (seq == 0 || seq == this.appliedSeq + 1) {
+                this.directory.apply(toChange(message));
+                if (seq != 0) {
+                    this.appliedSeq = seq;
+                }
+            }
+        }
+
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("Seq", epoch == this.primaryEpoch ? this.appliedSeq : -1);
+        return new JSONObject(hm);
+    }
+
+    // the loop of the primary: catches up the backup, then sends each change as it happens
+    private void replicate(int backupPort) {
+        long ackedSeq = -1;     // the last change the backup applied, -1 to ask it
+        while (true) {
+            try {
+                if (ackedSeq == -1) {
+                    ackedSeq = send(backupPort, STATUS, 0, null);
+                }
+                List<StockDirectory.Change> changes = ackedSeq == -1 ? null : this.directory.awaitChanges(ackedSeq, IDLE_MILLIS);
+                if (changes == null) {
+                    ackedSeq = sendSnapshot(backupPort);
+                    continue;
+                }
+                for (StockDirectory.Change change : changes) {
+                    long seq = send(backupPort, change.kind, change.seq, change);
+                    if (seq != change.seq) {
+                        Log.warn("{} : backup applied change {} instead of {}, resending", this.serverName, seq, change.seq);
+                        ackedSeq = -1;
+                        break;
+                    }
+                    ackedSeq = seq;
+                }
+            } catch (IOException | JSONException e) {
+                // the backup is down or restarting, it will tell where it is when it is back
+                ackedSeq = -1;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // sends the whole directory, returns the sequence number the backup is at afterwards
+    private long sendSnapshot(int backupPort) throws IOException {
+        List<StockDirectory.Change> snapshot = new ArrayList<>();
+        long seq = this.directory.snapshot(snapshot);
+        Log.info("{} : send a snapshot of {} exchanges at change {} to the backup", this.serverName, snapshot.size(), seq);
+        send(backupPort, RESET, seq, null);
+        for (StockDirectory.Change change : snapshot) {
+            send(backupPort, change.kind, 0, change);
+        }
+        return send(backupPort, END, seq, null);
+    }
+
+    // sends a message and returns the sequence number the backup is at
+    private long send(int backupPort, String kind, long seq, StockDirectory.Change change) throws IOException {
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("Type", "Replicate");
+        hm.put("Change", kind);
+        hm.put("Epoch", this.epoch);
+        hm.put("Seq", seq);
+        if (change != null) {
+            hm.put("ExchangeName", change.exchangeName);
+            hm.put("Address", change.address);
+            hm.put("StockSet", change.stockNames);
+        }
+        return this.serverLink.request(backupPort, new JSONObject(hm)).getLong("Seq");
+    }
+
+    private static StockDirectory.Change toChange(JSONObject message) {
+        JSONArray stockSet = message.optJSONArray("StockSet");
+        String[] stockNames = new String[stockSet == null ? 0 : stockSet.length()];
+        for (int i = 0; i < stockNames.length; i++) {
+            stockNames[i] = stockSet.getString(i);
+        }
+        return new StockDirectory.Change(message.getLong("Seq"), message.getString("Change"),
+                message.getString("ExchangeName"), message.getInt("Address"), Arrays.asList(stockNames));
+    }
+}
@@ -1,13 +1,22 @@
 package project;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.json.*;
 
 /**
- * Usage: java Exchange --exchangeName=<exchangeName> --serverName=<serverName>
+ * Usage: java Exchange --exchangeName=<exchangeName> --serverName=<serverName> [--ioMode=thread|nio]
+ *        [--threadMode=platform|virtual] [--protocol=json|binary] [--poolSize=<connections per Exchange>]
+ *        [--routeCacheSize=<number of stocks>] [--durability=sync|batch|os]
+ *        [--checkpointRecords=<number of records>] [--marketData=csv|mapped|stream]
+ *        [--tapeWindow=<rows>] [--clock=real|accelerated|step] [--speed=<timestamps per second>]
+ *        [--logLevel=debug|info|warn|error|off] [--logSample=<n>]
  */
 public class Exchange {
 
@@ -15,8 +24,22 @@ public class Exchange {
     private String exchangeName;                  // it's name given in the csv file, e.g. "Shenzhen"
     private int exchangePort;                     // a port number it will listen on
     private ServerSocket serverSocket;            // a server socket it will open for accepting incoming connections
+    private ServerSocketChannel serverChannel;    // the channel of the server socket, only opened in "nio" mode
+
+    private String ioMode;                        // "thread" (a thread per connection) or "nio" (event loops)
+    private int numEventLoops;                    // number of event loop threads in "nio" mode
+    private int numWorkers;                       // number of threads running the transaction logic in "nio" mode
+    private String threadMode;                    // "platform" or "virtual" threads for handling connections
+    private ExecutorService connectionExecutor;   // runs the handler of each connection
+    private boolean binaryProtocol;               // whether the connections opened by this Exchange use the binary protocol
+    private ConnectionPool connectionPool;        // long-lived connections for forwarding orders to other Exchanges
+    private RouteCache routeCache;                // the ports of the Exchanges listing the stocks of other Exchanges
 
     private Hashtable<String, Stock> stockTable;  // stores <stock name, stock object> for this Exchange
+    private String marketData;                    // "csv" (parse the csv files), "mapped" (map the market data file) or "stream"
+    private int tapeWindow;                       // the rows of the csv files kept ahead of the clock in "stream" mode
+    private TapeStream tapeStream;                // reads the csv files while trading, only in "stream" mode
+    private ReplenishmentSchedule replenishmentSchedule; // the quantities added by the clock at each timeIndex
 
     private String serverName;                    // the name of the continent Server for this Exchange, e.g. "Asia"
     private String serverIP;                      // the IP address of the continent Server, e.g. "localhost"
@@ -26,14 +49,13 @@ public class Exchange {
     private String backupServerIP;                // the IP address of the backup continent Server, e.g. "localhost"
     private int backupServerPort;                 // the port number the backup continent Server listens on
 
-    private Timer timer;                          // a timer used to start the "time" of this Exchange
+    private TradingClock clock;                   // runs the "time" of this Exchange, sent from Server after registration
     private long startTime;                       // the time when the system should start, sent from Server after registration
-    private int delay;                            // for scheduling the timer task
-    private int period;                           // for scheduling the timer task
+    private long delay;                           // the nanoseconds until the first tick of the clock
     private int timeIndex;                        // e.g. timeIndex 1 corresponds to the 1st timestamp in the csv file
     private Hashtable<Integer, String> timeIndexTable; // stores the timeIndex and its corresponding timestamp
 
-    private PrintWriter logWriter;                // for writing log file for this Exchange for recovering in case of failure
+    private WriteAheadLog wal;                    // the log of quantity changes for recovering in case of failure
 
 
     /**
@@ -41,13 +63,32 @@ public class Exchange {
      *
      * @param exchangeName the exchange name
      * @param serverName   the server name
+     * @param options      the startup options, e.g. --ioMode=nio
      */
-    private Exchange(String exchangeName, String serverName) {
+    private Exchange(String exchangeName, String serverName, Options options) {
 
         try {
             this.exchangeName = exchangeName;
             this.exchangePort = new ExchangeUtils(exchangeName).getPort();
-            this.serverSocket = new ServerSocket(this.exchangePort);
+
+            this.ioMode = options.get("ioMode", "thread");
+            this.numEventLoops = options.getInt("eventLoops", 2);
+            this.numWorkers = options.getInt("workers", 32);
+            this.threadMode = options.get("threadMode", "platform");
+            this.binaryProtocol = options.get("protocol", "json").equals("binary");
+            this.connectionPool = new ConnectionPool(exchangeName, this.binaryProtocol, options.getInt("poolSize", 8));
+            this.routeCache = new RouteCache(options.getInt("routeCacheSize", 1024));
+            this.wal = new WriteAheadLog(exchangeName, exchangeName, options.get("durability", WriteAheadLog.BATCH),
+                    options.getInt("checkpointRecords", 100000));
+            this.marketData = options.get("marketData", "csv");
+            this.tapeWindow = options.getInt("tapeWindow", 60);
+            if (this.ioMode.equals("nio")) {
+                this.serverChannel = ServerSocketChannel.open();
+                this.serverChannel.bind(new InetSocketAddress(this.exchangePort));
+                this.serverSocket = this.serverChannel.socket();
+            } else {
+                this.serverSocket = new ServerSocket(this.exchangePort);
+            }
 
             this.stockTable = new Hashtable<>();
 
@@ -59,29 +100,92 @@ public class Exchange {
             this.backupServerIP = "127.0.0.1";
             this.backupServerPort = Server.serverAddressTable.get(backupServerName);
 
-            this.timer = new Timer();
-            this.period = 1000;
+            // only for checking that it matches the clock of Server
+            this.clock = options.get("clock", null) == null ? null : new TradingClock(options);
             this.timeIndexTable = new Hashtable<>();
 
-            System.out.println(this.exchangeName + ": Opened Server Socket on Port " + this.exchangePort);
+            Log.info("{}: Opened Server Socket on Port {}", this.exchangeName, this.exchangePort);
 
         } catch (IOException e) {
-            System.out.println(this.exchangeName + ": Failed to open Server Socket on Port " + this.exchangePort);
+            Log.error("{}: Failed to open Server Socket on Port {}", this.exchangeName, this.exchangePort);
         }
     }
 
 
     /**
-     * Loads stock information for this Exchange by reading the price and quantity table.
+     * Loads stock information for this Exchange, from the market data file in "mapped" mode (if it is up to date) or
+     * by reading the price and quantity table. In "stream" mode, only the stocks are loaded here and their tapes are
+     * read while trading.
      */
     private void loadStock() {
 
-        System.out.println(this.exchangeName + ": Loading stocks...");
+        Log.info("{}: Loading stocks...", this.exchangeName);
+        long start = System.nanoTime();
 
         // the price and quantity files to be read
         String csvPriceFile = "price_stocks.csv";
         String csvQtyFile = "qty_stocks.csv";
 
+        String source = csvPriceFile + " and " + csvQtyFile;
+        try {
+            if (this.marketData.equals("mapped")) {
+                if (MarketDataFile.isUpToDate(MarketDataFile.DEFAULT_FILE, csvPriceFile, csvQtyFile)) {
+                    try {
+                        MarketDataFile.load(MarketDataFile.DEFAULT_FILE, this.exchangeName, this.stockTable, this.timeIndexTable);
+                        source = MarketDataFile.DEFAULT_FILE;
+                    } catch (IOException e) {
+                        Log.warn("{}: Cannot map {} ({}), reading the csv files instead.", this.exchangeName,
+                                MarketDataFile.DEFAULT_FILE, e.getMessage());
+                        this.stockTable.clear();
+                        this.timeIndexTable.clear();
+                    }
+                } else {
+                    Log.warn("{}: {} is missing or older than the csv files, reading the csv files instead "
+                            + "(run make convert_market_data).", this.exchangeName, MarketDataFile.DEFAULT_FILE);
+                }
+            }
+            if (this.marketData.equals("stream")) {
+                this.tapeStream = new TapeStream(csvPriceFile, csvQtyFile, this.exchangeName, this.tapeWindow,
+                        this.stockTable, this.timeIndexTable);
+                this.tapeStream.start();
+                source = source + " (streaming " + this.tapeWindow + " rows ahead)";
+            }
+            if (this.stockTable.isEmpty()) {
+                loadCsv(csvPriceFile, csvQtyFile, this.exchangeName, this.stockTable, this.timeIndexTable);
+            }
+            if (this.tapeStream != null) {
+                this.replenishmentSchedule = this.tapeStream.getSchedule();
+            } else {
+                this.replenishmentSchedule = ReplenishmentSchedule.of(this.stockTable.values());
+                Log.info("{}: {} timestamps replenish stocks.", this.exchangeName, this.replenishmentSchedule.size());
+            }
+
+            Log.info("{}: Finished loading stocks from {} in {} ms.", this.exchangeName, source,
+                    (System.nanoTime() - start) / 1000000);
+            // this.printStocks();  // for testing whether this Exchange has loaded all its stocks
+
+        } catch (FileNotFoundException e) {
+            Log.error("{}: Cannot find csv file.", this.exchangeName);
+            System.exit(1);
+        } catch (IOException e) {
+            Log.error("{}: Failed to read next line.", this.exchangeName);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Loads the stocks of an Exchange by reading the price and quantity table.
+     *
+     * @param csvPriceFile   the csv file of the prices
+     * @param csvQtyFile     the csv file of the quantities
+     * @param exchangeName   the name of the Exchange, e.g. "Shenzhen"
+     * @param stockTable     filled with <stock name, stock object> for the stocks of this Exchange
+     * @param timeIndexTable filled with the timeIndex and its corresponding timestamp
+     * @throws IOException if a csv file cannot be read
+     */
+    static void loadCsv(String csvPriceFile, String csvQtyFile, String exchangeName, Hashtable<String, Stock> stockTable,
+                        Hashtable<Integer, String> timeIndexTable) throws IOException {
+
         final int CONTINENT_LINE = 1,
                 COUNTRY_LINE = 2,
                 EXCHANGE_LINE = 3,
@@ -90,79 +194,65 @@ public class Exchange {
         final int DATE_COL = 0,
                 TIME_COL = 1;
 
-        try {
+        // only the columns of this Exchange are read, straight from the bytes of the files
+        CSVColumnReader csvPriceReader = new CSVColumnReader(csvPriceFile);
+        CSVColumnReader csvQtyReader = new CSVColumnReader(csvQtyFile);
 
-            CSVReader csvPriceReader = new CSVReader(csvPriceFile);
-            CSVReader csvQtyReader = new CSVReader(csvQtyFile);
+        // columnIndices correspond to the indices of the columns in the csv file for stocks in this Exchange
+        int[] columnIndices = new int[0];
 
-            // columnIndices correspond to the indices of the columns in the csv file for stocks in this Exchange
-            ArrayList<Integer> columnIndices = new ArrayList<>();
+        // stocks[i] is the stock in the column columnIndices[i]
+        Stock[] stocks = new Stock[0];
 
-            // stockIndexTable keeps track to the column index and stock name
-            Hashtable<Integer, Stock> stockIndexTable = new Hashtable<>();
+        while (csvPriceReader.nextLine()) {
 
-            while (csvPriceReader.hasNextLine()) {
+            csvQtyReader.nextLine();
 
-                csvQtyReader.hasNextLine(); // just for reading a line away in the Quantity Reader
+            // records the column indices corresponding to this exchange when reading the EXCHANGE_LINE
+            if (csvPriceReader.getCurrentLineIndex() == EXCHANGE_LINE) {
+                columnIndices = csvPriceReader.findColumns(exchangeName);
+                int[] projection = new int[columnIndices.length + 2];
+                projection[0] = DATE_COL;
+                projection[1] = TIME_COL;
+                System.arraycopy(columnIndices, 0, projection, 2, columnIndices.length);
+                csvPriceReader.project(projection);
+                csvQtyReader.project(columnIndices);
+                continue;
+            }
 
-                List<String> line = csvPriceReader.readLine();
-                // records the column indices corresponding to this exchange when reading the EXCHANGE_LINE
-                if (csvPriceReader.getCurrentLineIndex() == EXCHANGE_LINE) {
-                    for (int i = 0; i < line.size(); i++) {
-                        if (line.get(i).replaceAll("[^A-Za-z]+", "").equals(this.exchangeName)) {
-                            columnIndices.add(i);
-                        }
-                    }
-                    continue;
+            // records the stock names in this exchange and corresponding indices when reading the STOCK_LINE
+            if (csvPriceReader.getCurrentLineIndex() == STOCK_LINE) {
+                stocks = new Stock[columnIndices.length];
+                for (int i = 0; i < columnIndices.length; i++) {
+                    // stockName: keep only letters
+                    stocks[i] = new Stock(csvPriceReader.getLetters(columnIndices[i]), exchangeName);
                 }
+                continue;
+            }
 
-                // records the stock names in this exchange and corresponding indices when reading the STOCK_LINE
-                if (csvPriceReader.getCurrentLineIndex() == STOCK_LINE) {
-                    for (Integer columnIndex : columnIndices) {
-                        // stockName: keep only letters
-                        String stockName = line.get(columnIndex).replaceAll("[^A-Za-z]+", "");
-                        Stock stock = new Stock(stockName, this.exchangeName);
-                        stockIndexTable.put(columnIndex, stock);
-                    }
-                    continue;
-                }
-
-                // records the prices at different time for each stock at this exchange when reading the rest of the table
-                if (csvPriceReader.getCurrentLineIndex() > STOCK_LINE) {
-
-                    String currentDateTime = line.get(DATE_COL) + " " + line.get(TIME_COL);
-                    int currentSecond = csvPriceReader.getCurrentLineIndex() - STOCK_LINE;
-                    this.timeIndexTable.put(currentSecond, currentDateTime); // i.e. the 1st datetime in the table corresponds to timeIndex 1
+            // records the prices at different time for each stock at this exchange when reading the rest of the table
+            if (csvPriceReader.getCurrentLineIndex() > STOCK_LINE) {
 
-                    for (Integer columnIndex : columnIndices) {
+                String currentDateTime = csvPriceReader.getString(DATE_COL) + " " + csvPriceReader.getString(TIME_COL);
+                int currentSecond = csvPriceReader.getCurrentLineIndex() - STOCK_LINE;
+                timeIndexTable.put(currentSecond, currentDateTime); // i.e. the 1st datetime in the table corresponds to timeIndex 1
 
-                        Stock stock = stockIndexTable.get(columnIndex);
-                        stock.setPrice(currentSecond, Double.parseDouble(line.get(columnIndex)));
+                for (int i = 0; i < columnIndices.length; i++) {
 
-                        try {
-                            stock.setQuantity(currentSecond, Integer.parseInt(csvQtyReader.readLine().get(columnIndex)));
-                        } catch (NumberFormatException e) {
-                            stock.setQuantity(currentSecond, 0);
-                        }
+                    Stock stock = stocks[i];
+                    stock.setPrice(currentSecond, csvPriceReader.getDouble(columnIndices[i]));
+                    stock.setQuantity(currentSecond, csvQtyReader.getInt(columnIndices[i], 0));
 
-                        this.stockTable.put(stock.getName(), stock);
-                    }
+                    stockTable.put(stock.getName(), stock);
                 }
             }
+        }
 
-            System.out.println(this.exchangeName + ": Finished loading stocks.");
-            csvPriceReader.close();
-            csvQtyReader.close();
-
-            // this.printStocks();  // for testing whether this Exchange has loaded all its stocks
-
-        } catch (FileNotFoundException e) {
-            System.out.println(this.exchangeName + ": Cannot find csv file.");
-            System.exit(1);
-        } catch (IOException e) {
-            System.out.println(this.exchangeName + ": Failed to read next line.");
-            System.exit(1);
+        for (Stock stock : stockTable.values()) {
+            stock.trimTape();
         }
+        csvPriceReader.close();
+        csvQtyReader.close();
     }
 
     /**
@@ -187,12 +277,9 @@ public class Exchange {
         try {
 
             // Opens a TCP socket to the Continent Server and sends the registration message.
-            Socket socketToServer = new Socket(this.serverIP, this.serverPort);
-
-            BufferedReader socketReader = new BufferedReader(new InputStreamReader(socketToServer.getInputStream()));
-            PrintWriter socketWriter = new PrintWriter(socketToServer.getOutputStream(), true);
+            MessageConnection connectionToServer = MessageConnection.open(this.serverIP, this.serverPort, this.binaryProtocol);
 
-            System.out.println(this.exchangeName + ": Connected with Continent Server " + this.serverName);
+            Log.info("{}: Connected with Continent Server {}", this.exchangeName, this.serverName);
 
             HashMap<String, Object> registrationMsg = new HashMap<>();
             registrationMsg.put("Type", "Registration");
@@ -200,77 +287,60 @@ public class Exchange {
             registrationMsg.put("Address", this.exchangePort);
             registrationMsg.put("StockSet", this.stockTable.keySet());
 
-            // Sends the registration message in JSON
-            socketWriter.println(new JSONObject(registrationMsg));
+            // Sends the registration message in JSON (or in the binary encoding)
+            connectionToServer.write(new JSONObject(registrationMsg));
             // System.out.println(registrationMsg);
 
-            System.out.println(this.exchangeName + ": Finished Registration with Continent Server " + this.serverName);
+            Log.info("{}: Finished Registration with Continent Server {}", this.exchangeName, this.serverName);
 
 
             // Opens a TCP socket to the Backup Server and sends the registration message.
-            Socket socketToBackupServer = new Socket(this.backupServerIP, this.backupServerPort);
-            PrintWriter socketWriterBackup = new PrintWriter(socketToBackupServer.getOutputStream(), true);
-            System.out.println(this.exchangeName + ": Connected with Backup Server " + this.backupServerName);
-            socketWriterBackup.println(new JSONObject(registrationMsg));
-            System.out.println(this.exchangeName + ": Finished Registration with Backup Server " + this.backupServerName);
+            MessageConnection connectionToBackupServer = MessageConnection.open(this.backupServerIP, this.backupServerPort, this.binaryProtocol);
+            Log.info("{}: Connected with Backup Server {}", this.exchangeName, this.backupServerName);
+            connectionToBackupServer.write(new JSONObject(registrationMsg));
+            Log.info("{}: Finished Registration with Backup Server {}", this.exchangeName, this.backupServerName);
 
 
             // Reads Server response for the start time
-            String response = socketReader.readLine();
-            JSONObject responseObj = new JSONObject(response);
+            JSONObject responseObj = connectionToServer.read();
             this.startTime = responseObj.getLong("StartTime");
             // System.out.println("Start time: " + this.startTime);
             long currentTime = System.currentTimeMillis();
             // System.out.println("Current time: " + currentTime);
 
+            // the Exchanges of a continent follow the clock of their Server (a Server without one runs in real time)
+            TradingClock serverClock = TradingClock.parse(responseObj.optString("Clock", TradingClock.REAL));
+            if (this.clock != null && !serverClock.toString().equals(this.clock.toString())) {
+                Log.warn("{}: Using the clock of Server {} ({}) instead of {}", this.exchangeName, this.serverName,
+                        serverClock, this.clock);
+            }
+            this.clock = serverClock;
 
-            // Determines when to start the timer task by checking the start time sent by server and the current time
+            // Determines when to start the clock by checking the start time sent by server and the current time
+            this.timeIndex = this.clock.timeIndexAt(this.startTime, currentTime);
+            this.delay = this.clock.nanosToNextTick(this.startTime, currentTime);
             if (this.startTime <= currentTime) {
-
-                System.out.println(this.exchangeName + ": The whole system already started.");
-
-                int msPassed = Math.toIntExact(currentTime - this.startTime); // milliseconds passed since starting
-                this.timeIndex = (int) Math.ceil(msPassed / 1000.0) + 1;
-                this.delay = 1000 - msPassed % 1000;
-
+                Log.info("{}: The whole system already started.", this.exchangeName);
             } else {
+                Log.info("{}: The whole system will start in about {} seconds. Please wait...", this.exchangeName, String.format("%1$,.0f",(delay / 1e9)));
+            }
+            if (this.tapeStream != null) {
+                this.tapeStream.advance(this.timeIndex);
+            }
 
-                this.timeIndex = 1;
-                this.delay = Math.toIntExact(this.startTime - currentTime);
-                System.out.println(this.exchangeName + ": The whole system will start in about " + String.format("%1$,.0f",(delay / 1000.0)) + " seconds. Please wait...");
-            }
-
-            // If there exists a log file for this Exchange when it started, it means that it probably went down previously.
-            // Therefore, this exchange needs to read the log file and recover the amount of stocks it had available
-            // before failure.
-            File logFile = new File(this.exchangeName + ".log");
-            if (logFile.exists()) {
-                // read the log file and set quantity
-                BufferedReader logReader = new BufferedReader(new FileReader(logFile));
-                String line;
-                String lastLine = "";
-                while ((line = logReader.readLine()) != null) {
-                    lastLine = line;
-                }
-                logReader.close();
-
-                if (lastLine.length() > 0) {
-                    lastLine = lastLine.substring(1, lastLine.length() - 1);
-                    String[] keyValuePairs = lastLine.split(",");
-                    for (String pair : keyValuePairs) {
-                        String[] entry = pair.split("=");
-                        Stock stock = this.stockTable.get(entry[0].trim());
-                        int num = Integer.parseInt(entry[1].trim());
-                        stock.addCurrentQty(num);
-                    }
+            // If there exists a log for this Exchange when it started, it means that it probably went down previously.
+            // Therefore, this exchange needs to read the last checkpoint and replay the log written after it to recover
+            // the amount of stocks it had available before failure.
+            Hashtable<String, Integer> recoveredQty = this.wal.recover();
+            for (String stockName : recoveredQty.keySet()) {
+                Stock stock = this.stockTable.get(stockName);
+                if (stock != null) {
+                    stock.addCurrentQty(recoveredQty.get(stockName));
                 }
             }
 
-            // for writing the log file
-            this.logWriter = new PrintWriter(exchangeName + ".log");
-
         } catch (IOException e) {
-            System.out.println(this.exchangeName + ": Failed to register with Server " + this.serverName + " or " + this.backupServerName);
+            Log.error("{}: Failed to register with Server {} or {}", this.exchangeName, this.serverName, this.backupServerName);
         }
     }
 
@@ -280,36 +350,65 @@ public class Exchange {
      * Update time (make sure that the Exchange is up to current time)
      */
     private void updateTime() {
-        this.timer.scheduleAtFixedRate(new TimeUpdateTask(), this.delay, this.period);
+        this.clock.scheduleTicks(new TimeUpdateTask(), this.delay);
     }
 
     /**
-     * A TimerTask used for updating the time of this Exchange.
-     * In our test, we have hardcoded period to be 1000, i.e. a second in the test corresponds to a timestamp in the
-     * csv files.
+     * Whether the tapes have a row at a timeIndex (in "stream" mode, waits until the row is read).
      */
-    private class TimeUpdateTask extends TimerTask {
+    private boolean hasTime(int time) {
+        if (this.tapeStream == null) {
+            return this.timeIndexTable.containsKey(time);
+        }
+        try {
+            this.tapeStream.await(time);
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A task used for updating the time of this Exchange at each tick of the clock.
+     * By default a second in the test corresponds to a timestamp in the csv files (see TradingClock). The clock stops
+     * at the last timestamp, which the Exchange keeps trading at.
+     */
+    private class TimeUpdateTask implements Runnable {
 
         int round = 0; // for printing a message indicating that the system started
 
         @Override
         public void run() {
 
-            for (Stock stock : stockTable.values()) {
-                // add the quantity of each stock from the quantity csv file at each timestamp
-                if (stock.getQty(timeIndex) > 0) {
-                    stock.addCurrentQty(stock.getQty(timeIndex));
-                    logWriter.println(stockTable);
-                    logWriter.flush();
+            if (!hasTime(timeIndex)) {
+                Log.warn("{}: The tape has no timeIndex {}, stopping the clock.", exchangeName, timeIndex);
+                clock.stop();
+                return;
+            }
+            // add the quantity from the quantity csv file to the stocks replenished at this timestamp, if any
+            ReplenishmentSchedule.Tick tick = replenishmentSchedule.get(timeIndex);
+            if (tick != null) {
+                for (int i = 0; i < tick.stocks.length; i++) {
+                    tick.stocks[i].addCurrentQty(tick.quantities[i]);
                 }
+                // one record and one wait for all the replenishments of this timestamp
+                wal.commit(wal.append(tick.stockNames, tick.quantities, timeIndex));
             }
 
             if (round == 0) {
-                System.out.println(exchangeName + ": Clock started. Client can connect and trade now.");
+                Log.info("{}: Clock started. Client can connect and trade now.", exchangeName);
             }
 
             round++;
+            if (!hasTime(timeIndex + 1)) {
+                Log.info("{}: Reached the end of the tape at timeIndex {}, stopping the clock.", exchangeName, timeIndex);
+                clock.stop();
+                return;
+            }
             timeIndex++;
+            if (tapeStream != null) {
+                tapeStream.advance(timeIndex);
+            }
 
             //System.out.println(timeIndexTable.get(timeIndex));
         }
@@ -347,15 +446,35 @@ public class Exchange {
 
     /**
      * Listens for incoming connections in an infinite loop.
+     * In "nio" mode, the connections are served by the event loops of a NioFrontEnd instead of a thread each.
      */
     private void handleRequest() {
+        if (this.ioMode.equals("nio")) {
+            // the transaction logic may block, so with virtual threads each message gets its own virtual thread
+            ExecutorService workers;
+            if (this.threadMode.equals("virtual")) {
+                workers = ConnectionExecutors.create(this.threadMode, this.exchangeName);
+            } else {
+                workers = Executors.newFixedThreadPool(this.numWorkers);
+            }
+            try {
+                new NioFrontEnd(this.exchangeName, this.serverChannel, this::handleMessage, this.numEventLoops, workers).run();
+            } catch (IOException e) {
+                Log.error("{}: Failed to start the event loops", exchangeName);
+                System.exit(1);
+            }
+            // the two I/O modes never accept on the same listener
+            return;
+        }
+
+        this.connectionExecutor = ConnectionExecutors.create(this.threadMode, this.exchangeName);
         while (true) {
             try {
                 Socket socket = this.serverSocket.accept();
-                new Thread(new ConnectionHandler(socket)).start();
+                this.connectionExecutor.execute(new ConnectionHandler(socket));
 
             } catch (IOException e) {
-                System.out.println(exchangeName + ": Failed to accept a new request");
+                Log.warn("{}: Failed to accept a new request", exchangeName);
             }
         }
     }
@@ -368,17 +487,15 @@ public class Exchange {
     private class ConnectionHandler implements Runnable {
 
         Socket socket;
-        BufferedReader socketIn;
-        PrintWriter socketOut;
+        MessageConnection connection;
 
         ConnectionHandler(Socket socket) {
             this.socket = socket;
             try {
-                this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                this.socketOut = new PrintWriter(socket.getOutputStream(), true);
+                this.connection = MessageConnection.accept(socket);
                 // System.out.println("Received incoming connection, waiting for request...");
             } catch (IOException e) {
-                System.out.println(exchangeName + ": Failed to open reader and writer on the newly accepted connection");
+                Log.warn("{}: Failed to open reader and writer on the newly accepted connection", exchangeName);
             }
         }
 
@@ -391,333 +508,457 @@ public class Exchange {
             try {
                 // Parses the message received from this connection:
                 // Question: for handling requests from other Exchanges, need "bye" as well? (yes maybe easier)
-                String message;
-                while ((message = socketIn.readLine()) != null) {
-
-                    // Parses the (src, action, stock, qty) elements of the message.
-                    JSONObject obj = new JSONObject(message);
-                    String src = obj.getString("src");
-                    String action = obj.getString("action");
-                    String stock = obj.getString("stock");
-                    int qty = obj.getInt("qty");
-                    // System.out.println("Received request : " + message + " from " + src);
-
-                    // This exchange will respond with (result, action, qty, stock)
-                    HashMap<String, Object> responseMsg = new HashMap<>();
-                    responseMsg.put("action", action);
-                    responseMsg.put("qty", qty);
-                    responseMsg.put("stock", stock);
-                    String result; // indicating whether this transaction succeeded or not
-
-                    // If the request came from a Client, then the requested stock could be for either a stock listed
-                    // in this Exchange or some stock listed in other Exchanges. Need to handle both kinds of transactions.
-                    String price;
-                    if (src.equals("client")) {
-
-                        // For processing Mutual Funds
-                        if (stock.startsWith("Mutual_Fund")) {
-                            price = processMutualFund(action, stock, qty);
-                        }
-
-                        // For processing individual Stocks
-                        else {
-                            // For processing stocks listed in this Exchange
-                            if (stockTable.containsKey(stock)) {
-                                price = processInternalTransaction(action, qty, stock);
-                            }
-
-                            // For processing stocks listed in other Exchanges
-                            else {
-                                int port = askAddress(stock);
-                                price = processExternalTransaction("127.0.0.1", port, action, qty, stock);
+                JSONObject message;
+                while ((message = connection.read()) != null) {
+                    if (message.has("RequestID")) {
+                        // A pipelined order: handled on its own thread so that the next orders of this connection
+                        // can be read right away, the response is matched by its RequestID on the client side
+                        final JSONObject request = message;
+                        connectionExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                respond(request);
                             }
-                        }
-
-                        if (price.equals("Failed")) {
-                            result = "Failed";
-                        } else {
-                            result = "Succeeded";
-                        }
-
-                        String actionString = "";
-                        if (action.equals("B")) {
-                            actionString = " requested to buy ";
-                        } else if (action.equals("S")) {
-                            actionString = " requested to sell ";
-                        }
-
-                        String priceString = price;
-                        if (priceString.equals("Failed")) {
-                            priceString = "";
-                        }
-                        System.out.println(exchangeName + " " + timeIndexTable.get(timeIndex) + ": Client " + obj.getInt("clientName") + actionString
-                                + qty + " " + stock + " " + priceString + " " + result);
-
-                        responseMsg.put("result", result);
+                        });
+                    } else {
+                        connection.write(handleMessage(message));
                     }
+                    // System.out.println("Sent Response: " + responseMsg);
+                }
+            } catch (IOException | JSONException e) {
+                Log.warn("{}: Connection failed: {}", exchangeName, e);
+            }
+        }
 
-                    // If a request came from other Exchanges, then it must be a request for stocks listed in this
-                    // Exchange.
-                    else {
+        private void respond(JSONObject request) {
+            try {
+                connection.write(handleMessage(request));
+            } catch (IOException | JSONException e) {
+                Log.warn("{}: Failed to respond to request {}: {}", exchangeName, request.opt("RequestID"), e.getMessage());
+            }
+        }
+    }
 
-                        price = processInternalTransaction(action, qty, stock);
-                        responseMsg.put("result", price);
-                    }
+    /**
+     * Processes a single request message received from a client or another Exchange, and builds the response.
+     * (Shared by the thread-per-connection handler and the NIO front end)
+     *
+     * @param obj the request, e.g. {"src":"client","action":"B","stock":"NHU","qty":100,"clientName":1}
+     *            (pipelined requests also carry a "RequestID", which is copied into the response)
+     * @return the response to be sent back on the same connection
+     */
+    JSONObject handleMessage(JSONObject obj) {
 
-                    socketOut.println(new JSONObject(responseMsg));
-                    // System.out.println("Sent Response: " + responseMsg);
+        // A heartbeat of the Server this exchange registered with: answered as is
+        if (obj.optString("Type").equals("Heartbeat")) {
+            return HeartbeatMonitor.heartbeat();
+        }
 
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        // Parses the (src, action, stock, qty) elements of the message.
+        String src = obj.getString("src");
+        String action = obj.getString("action");
+        String stock = obj.getString("stock");
+        int qty = obj.getInt("qty");
+        // System.out.println("Received request : " + message + " from " + src);
+
+        // This exchange will respond with (result, action, qty, stock)
+        HashMap<String, Object> responseMsg = new HashMap<>();
+        responseMsg.put("action", action);
+        responseMsg.put("qty", qty);
+        responseMsg.put("stock", stock);
+        if (obj.has("RequestID")) {
+            responseMsg.put("RequestID", obj.get("RequestID"));
         }
+        String result; // indicating whether this transaction succeeded or not
 
-        /**
-         * Processes buy or sell orders for stocks listed in this Exchange
-         * @param action    "B" or "S" (representing Buy or Sell)
-         * @param qty       quantity to be bought or sold
-         * @param stockName the name of the stock requested
-         * @return a String representing the current price of the requested stock.
-         *         Will return "Failed" if the request cannot be processed (e.g. not enough quantity left to be sold)
-         */
-        private String processInternalTransaction(String action, int qty, String stockName) {
+        // If the request came from a Client, then the requested stock could be for either a stock listed
+        // in this Exchange or some stock listed in other Exchanges. Need to handle both kinds of transactions.
+        String price;
+        if (src.equals("client")) {
 
-            Stock stock = stockTable.get(stockName);
-            String timeStamp = timeIndexTable.get(timeIndex);
+            // For processing Mutual Funds
+            if (stock.startsWith("Mutual_Fund")) {
+                price = processMutualFund(action, stock, qty);
+            }
 
-            boolean result;
+            // For processing individual Stocks
+            else {
+                // For processing stocks listed in this Exchange
+                if (stockTable.containsKey(stock)) {
+                    price = processInternalTransaction(action, qty, stock);
+                }
 
-            System.out.println(exchangeName + " " + timeStamp + ": " + stockName + " Qty (before): " + stock.getCurrentQty());
+                // For processing stocks listed in other Exchanges
+                else {
+                    int port = askAddress(stock);
+                    price = processExternalTransaction("127.0.0.1", port, action, qty, stock);
+                }
+            }
 
-            if (action.equals("B")) {
-                result = stock.deCurrentQty(qty);
+            if (price.equals("Failed")) {
+                result = "Failed";
             } else {
-                result = true;
-                stock.addCurrentQty(qty);
+                result = "Succeeded";
             }
 
-            logWriter.println(stockTable);
-            logWriter.flush();
+            String actionString = "";
+            if (action.equals("B")) {
+                actionString = " requested to buy ";
+            } else if (action.equals("S")) {
+                actionString = " requested to sell ";
+            }
 
-            String price;
-            if (result) {
-                price = stock.currentPriceToString(timeIndex);
-            } else {
-                price = "Failed";
+            String priceString = price;
+            if (priceString.equals("Failed")) {
+                priceString = "";
             }
-            System.out.println(exchangeName + " " + timeStamp + ": " + stockName + " Price: " + price);
-            System.out.println(exchangeName + " " + timeStamp + ": " + stockName + " (after): " + stock.getCurrentQty());
-            return price;
+            Log.info("{} {}: Client {}{}{} {} {} {}", exchangeName, timeIndexTable.get(timeIndex), obj.getInt("clientName"), actionString,
+                    qty, stock, priceString, result);
+
+            responseMsg.put("result", result);
         }
 
-        /**
-         * Processes buy or sell orders from client for stocks not listed in this Exchange
-         * @param host       the host name of the Exchange where the requested stock is listed
-         * @param port       the port number of the Exchange where the requested stock is listed
-         * @param action     "B" or "S" (representing Buy or Sell)
-         * @param qty        quantity to be bought or sold
-         * @param stockName  the name of the stock requested
-         * @return a String representing the current price of the requested stock.
-         *         Will return "Failed" if the request cannot be processed (e.g. not enough quantity left to be sold)
-         */
-        private String processExternalTransaction(String host, int port, String action, int qty, String stockName) {
+        // If a request came from other Exchanges, then it must be a request for stocks listed in this
+        // Exchange.
+        else {
 
-            if (port == -1) {
-                return "Failed";
-            }
+            price = processInternalTransaction(action, qty, stock);
+            responseMsg.put("result", price);
+        }
 
-            try {
+        return new JSONObject(responseMsg);
+    }
 
-                // Initiates connection with the Exchange where the requested stock is listed
-                Socket socketToExchange = new Socket(host, port);
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socketToExchange.getInputStream()));
-                PrintWriter socketWriter = new PrintWriter(socketToExchange.getOutputStream(), true);
 
-                // Sends the buy or sell request to that Exchange
-                HashMap<String, Object> request = new HashMap<>();
-                request.put("src", "exchange");
-                request.put("action", action);
-                request.put("qty", qty);
-                request.put("stock", stockName);
-                socketWriter.println(new JSONObject(request));
+    /**
+     * Processes buy or sell orders for stocks listed in this Exchange
+     * @param action    "B" or "S" (representing Buy or Sell)
+     * @param qty       quantity to be bought or sold
+     * @param stockName the name of the stock requested
+     * @return a String representing the current price of the requested stock.
+     *         Will return "Failed" if the request cannot be processed (e.g. not enough quantity left to be sold)
+     */
+    private String processInternalTransaction(String action, int qty, String stockName) {
 
-                // Reads the response from that Exchange
-                String response = socketReader.readLine();
-                // System.out.println("Received response from other Exchange: " + response);
-                JSONObject responseObj = new JSONObject(response);
+        Stock stock = stockTable.get(stockName);
+        String timeStamp = timeIndexTable.get(timeIndex);
 
-                return responseObj.getString("result");
+        boolean result;
 
-            } catch (IOException e) {
-                System.out.println(exchangeName + ": Failed to send request to other Exchange. Need to notify Server of possible Exchange failure." );
+        Log.info("{} {}: {} Qty (before): {}", exchangeName, timeStamp, stockName, stock.getCurrentQty());
 
-                Socket notifySocket;
-                try {
-                    // Initiates a connection with the Continent Server to notify that this Exchange just failed to
-                    // connect with another Exchange based on the address returned by the Server. That Exchange might
-                    // be down or might have changed address. Need to notify Server to verify and update its cache.
-                    notifySocket = new Socket(serverIP, serverPort);
-                } catch (IOException e1) {
-                    System.out.println(exchangeName + ": Failed to notify Server. Try notifying Backup Server...");
-                    try {
-                        notifySocket = new Socket(backupServerIP, backupServerPort);
-                    } catch (IOException e2) {
-                        System.out.println(exchangeName + ": Failed to notify with both Server and Backup Server, this transaction will fail.");
-                        // in such case, will just return a "Failed" message
-                        return "Failed";
-                    }
-                }
+        if (action.equals("B")) {
+            result = stock.deCurrentQty(qty);
+        } else {
+            result = true;
+            stock.addCurrentQty(qty);
+        }
 
-                // If the connection to either Server or Backup Server succeeded, sends the notification message
+        // only the change is logged, and the response waits for it to be durable
+        if (result) {
+            wal.commit(wal.append(stockName, action.equals("B") ? -qty : qty, timeIndex));
+        }
+
+        String price;
+        if (result) {
+            price = stock.currentPriceToString(timeIndex);
+        } else {
+            price = "Failed";
+        }
+        Log.info("{} {}: {} Price: {}", exchangeName, timeStamp, stockName, price);
+        Log.info("{} {}: {} (after): {}", exchangeName, timeStamp, stockName, stock.getCurrentQty());
+        return price;
+    }
+
+    /**
+     * Processes buy or sell orders from client for stocks not listed in this Exchange
+     * @param host       the host name of the Exchange where the requested stock is listed
+     * @param port       the port number of the Exchange where the requested stock is listed
+     * @param action     "B" or "S" (representing Buy or Sell)
+     * @param qty        quantity to be bought or sold
+     * @param stockName  the name of the stock requested
+     * @return a String representing the current price of the requested stock.
+     *         Will return "Failed" if the request cannot be processed (e.g. not enough quantity left to be sold)
+     */
+    private String processExternalTransaction(String host, int port, String action, int qty, String stockName) {
+
+        if (port == -1) {
+            return "Failed";
+        }
+
+        try {
+
+            // Sends the buy or sell request to the Exchange where the requested stock is listed, on a pooled connection
+            HashMap<String, Object> request = new HashMap<>();
+            request.put("src", "exchange");
+            request.put("action", action);
+            request.put("qty", qty);
+            request.put("stock", stockName);
+
+            // Reads the response from that Exchange
+            JSONObject responseObj = connectionPool.request(host, port, new JSONObject(request));
+            // System.out.println("Received response from other Exchange: " + responseObj);
+
+            return responseObj.getString("result");
+
+        } catch (IOException e) {
+            Log.warn("{}: Failed to send request to other Exchange. Need to notify Server of possible Exchange failure.", exchangeName);
+            connectionPool.closeIdle(host, port);
+            // the cached route may be stale, the next order for this stock will ask the Server again
+            routeCache.invalidate(stockName);
+
+            MessageConnection notifyConnection;
+            try {
+                // Initiates a connection with the Continent Server to notify that this Exchange just failed to
+                // connect with another Exchange based on the address returned by the Server. That Exchange might
+                // be down or might have changed address. Need to notify Server to verify and update its cache.
+                notifyConnection = MessageConnection.open(serverIP, serverPort, binaryProtocol);
+            } catch (IOException e1) {
+                Log.warn("{}: Failed to notify Server. Try notifying Backup Server...", exchangeName);
                 try {
-                    PrintWriter notifyWriter = new PrintWriter(notifySocket.getOutputStream(), true);
-                    HashMap<String, Object> notifyMsg = new HashMap<>();
-                    notifyMsg.put("Type", "Notify");
-                    notifyMsg.put("src", "Exchange");
-                    notifyMsg.put("ExchangeAddress", port);
-                    notifyMsg.put("StockName", stockName);
-                    notifyWriter.println(new JSONObject(notifyMsg));
-
-                } catch (IOException e3) {
-                    System.out.println(exchangeName + ": Failed to send notify message to Server or Backup Server. This transaction will fail.");
+                    notifyConnection = MessageConnection.open(backupServerIP, backupServerPort, binaryProtocol);
+                } catch (IOException e2) {
+                    Log.warn("{}: Failed to notify with both Server and Backup Server, this transaction will fail.", exchangeName);
+                    // in such case, will just return a "Failed" message
+                    return "Failed";
                 }
-                return "Failed";
             }
+
+            // If the connection to either Server or Backup Server succeeded, sends the notification message
+            try {
+                HashMap<String, Object> notifyMsg = new HashMap<>();
+                notifyMsg.put("Type", "Notify");
+                notifyMsg.put("src", "Exchange");
+                notifyMsg.put("ExchangeAddress", port);
+                notifyMsg.put("StockName", stockName);
+                notifyConnection.write(new JSONObject(notifyMsg));
+
+            } catch (IOException e3) {
+                Log.warn("{}: Failed to send notify message to Server or Backup Server. This transaction will fail.", exchangeName);
+            } finally {
+                notifyConnection.close();
+            }
+            return "Failed";
         }
+    }
 
-        /**
-         * Processes buy or sell request for a Mutual Fund using 2PC algorithm
-         * @param action          "B" or "S" (representing Buy or Sell)
-         * @param mutualFundName  the name of the requested mutual fund
-         * @param qty             the requested quantity (must be divisible by 100)
-         * @return a String representing the current price of the requested mutual fund.
-         *         Will return "Failed" if the request cannot be processed (e.g. not enough quantity left to be sold)
-         */
-        private String processMutualFund(String action, String mutualFundName, int qty) {
+    /**
+     * Processes buy or sell request for a Mutual Fund using 2PC algorithm
+     * @param action          "B" or "S" (representing Buy or Sell)
+     * @param mutualFundName  the name of the requested mutual fund
+     * @param qty             the requested quantity (must be divisible by 100)
+     * @return a String representing the current price of the requested mutual fund.
+     *         Will return "Failed" if the request cannot be processed (e.g. not enough quantity left to be sold)
+     */
+    private String processMutualFund(String action, String mutualFundName, int qty) {
 
-            MutualFund mutualFund = new MutualFund(mutualFundName);
+        MutualFund mutualFund = new MutualFund(mutualFundName);
 
-            // Stores the result of the buy or sell request for each stock in this mutual fund
-            Hashtable<String, String> stockQuery = new Hashtable<>();
-            // Stores the percentage of shares of each stock in this mutual fund
-            Hashtable<String, Double> stockShares = mutualFund.getStockShareTable();
+        // Stores the result of the buy or sell request for each stock in this mutual fund
+        Hashtable<String, String> stockQuery = new Hashtable<>();
+        // Stores the percentage of shares of each stock in this mutual fund
+        Hashtable<String, Double> stockShares = mutualFund.getStockShareTable();
 
-            // iterate through the stocks in this mutual fund, send the Buy or Sell action and update stockQuery table
-            // (succeed or not)
-            for (String stock : stockShares.keySet()) {
+        // the addresses of the stocks listed in other Exchanges, asked for in one request and reused by the rollback
+        ArrayList<String> externalStocks = new ArrayList<>();
+        for (String stock : stockShares.keySet()) {
+            if (!stockTable.containsKey(stock)) {
+                externalStocks.add(stock);
+            }
+        }
+        HashMap<String, Integer> stockPorts = askAddresses(externalStocks);
 
-                // calculate the number of stocks to buy or sell
-                int share = (int) (qty * stockShares.get(stock));
+        // iterate through the stocks in this mutual fund, send the Buy or Sell action and update stockQuery table
+        // (succeed or not)
+        for (String stock : stockShares.keySet()) {
 
-                String result;
-                // determine whether to process an Internal or External transaction
-                if (stockTable.contains(stock)) {
-                    result = processInternalTransaction(action, share, stock);
-                } else {
-                    int port = askAddress(stock);
-                    result = processExternalTransaction("127.0.0.1", port, action, share, stock);
-                }
+            // calculate the number of stocks to buy or sell
+            int share = (int) (qty * stockShares.get(stock));
 
-                // update the stockQuery table with the request result for this stock
-                stockQuery.put(stock, result);
+            String result;
+            // determine whether to process an Internal or External transaction
+            if (stockTable.containsKey(stock)) {
+                result = processInternalTransaction(action, share, stock);
+            } else {
+                int port = stockPorts.getOrDefault(stock, -1);
+                result = processExternalTransaction("127.0.0.1", port, action, share, stock);
+            }
 
-                // if the buy or sell request for a Stock in this mutual fund failed, just stop further requesting
-                if (result.equals("Failed")) {
-                    break;
-                }
+            // update the stockQuery table with the request result for this stock
+            stockQuery.put(stock, result);
+
+            // if the buy or sell request for a Stock in this mutual fund failed, just stop further requesting
+            if (result.equals("Failed")) {
+                break;
             }
+        }
 
-            // check whether rollback is needed by checking whether there's any "false" in the stockQuery table
-            boolean rollBack = false;
+        // check whether rollback is needed by checking whether there's any "false" in the stockQuery table
+        boolean rollBack = false;
 
-            for (String result : stockQuery.values()) {
-                if (result.equals("Failed")) {
-                    rollBack = true;
-                    break;
-                }
+        for (String result : stockQuery.values()) {
+            if (result.equals("Failed")) {
+                rollBack = true;
+                break;
             }
+        }
 
-            // if rollback needed, sell back those transactions that succeeded previously, and return that this mutual
-            // fund transaction "failed"
-            if (rollBack) {
-                System.out.println("Roll back");
-                for (String stock : stockQuery.keySet()) {
-                    if (!stockQuery.get(stock).equals("Failed")) {
-
-                        int share = (int) (qty * stockShares.get(stock));
-                        if (stockTable.contains(stock)) {
-                            processInternalTransaction("S", share, stock);
-                        } else {
-                            int port = askAddress(stock);
-                            processExternalTransaction("127.0.0.1", port, "S", share, stock);
-                        }
+        // if rollback needed, sell back those transactions that succeeded previously, and return that this mutual
+        // fund transaction "failed"
+        if (rollBack) {
+            Log.info("{}: Roll back", exchangeName);
+            for (String stock : stockQuery.keySet()) {
+                if (!stockQuery.get(stock).equals("Failed")) {
+
+                    int share = (int) (qty * stockShares.get(stock));
+                    if (stockTable.containsKey(stock)) {
+                        processInternalTransaction("S", share, stock);
+                    } else {
+                        int port = stockPorts.getOrDefault(stock, -1);
+                        processExternalTransaction("127.0.0.1", port, "S", share, stock);
                     }
                 }
-                return "Failed";
             }
+            return "Failed";
+        }
 
-            // otherwise, return that this mutual fund transaction succeed by returning the string representation of the
-            // price
-            else {
-                return stockQuery.keySet().toString();
-            }
+        // otherwise, return that this mutual fund transaction succeed by returning the string representation of the
+        // price
+        else {
+            return stockQuery.keySet().toString();
         }
+    }
 
-        /**
-         * Asks the Continent Server for address of another Exchange for processing External transactions
-         * @param stock the name of the requested stock that is not listed in this Exchange
-         * @return the address of the found Exchange. Will return -1 if failed to find an address
-         */
-        private int askAddress(String stock){
+    /**
+     * Asks the Continent Server for address of another Exchange for processing External transactions
+     * (unless the address is already in the route cache)
+     * @param stock the name of the requested stock that is not listed in this Exchange
+     * @return the address of the found Exchange. Will return -1 if failed to find an address
+     */
+    private int askAddress(String stock){
 
-            // Initiates connection to Continent Server
-            Socket socketToServer;
-            try {
-                socketToServer = new Socket(serverIP, serverPort);
-            } catch (IOException e) {
-                System.out.println(exchangeName + ": Failed to ask address from Server. Will try to connect with Backup Server.");
-                try {
-                    socketToServer = new Socket(backupServerIP, backupServerPort);
-                } catch (IOException e1) {
-                    System.out.println(exchangeName + ": Failed to ask address from Backup Server as well. This transaction will fail.");
-                    return -1;
-                }
+        int cachedPort = routeCache.get(stock);
+        if (cachedPort != -1) {
+            return cachedPort;
+        }
+
+        // Initiates connection to Continent Server
+        MessageConnection connectionToServer = openServerConnection();
+        if (connectionToServer == null) {
+            return -1;
+        }
+
+        try {
+            // Sends the naming request to the Server
+            HashMap<String, String> queryMsg = new HashMap<>();
+            queryMsg.put("src", "Exchange");
+            queryMsg.put("Type", "Request");
+            queryMsg.put("StockName", stock);
+
+            // Sends the query message to the Continent Server
+            connectionToServer.write(new JSONObject(queryMsg));
+
+            // Reads response from Server
+            JSONObject responseObj = connectionToServer.read();
+
+            if (responseObj == null) {
+                return -1;
             }
 
-            try {
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socketToServer.getInputStream()));
-                PrintWriter socketWriter = new PrintWriter(socketToServer.getOutputStream(), true);
+            int port = responseObj.getInt("ExchangeAddress");
+            routeCache.put(stock, port);
+            return port;
 
-                // Sends the naming request to the Server
-                HashMap<String, String> queryMsg = new HashMap<>();
-                queryMsg.put("src", "Exchange");
-                queryMsg.put("Type", "Request");
-                queryMsg.put("StockName", stock);
+        } catch (IOException e) {
+            Log.warn("{}: Failed to ask address from both either Server or Backup Server. This transaction will fail.", exchangeName);
+            return -1;
+        } finally {
+            connectionToServer.close();
+        }
+    }
 
-                // Sends the query message to the Continent Server
-                socketWriter.println(new JSONObject(queryMsg));
+    /**
+     * Asks the Continent Server for the addresses of several Exchanges in one request, e.g. for the stocks of a mutual
+     * fund (the stocks already in the route cache are not asked for)
+     * @param stocks the names of the requested stocks, not listed in this Exchange
+     * @return the address of the Exchange listing each stock, -1 for a stock whose address could not be found
+     */
+    private HashMap<String, Integer> askAddresses(Collection<String> stocks) {
+
+        HashMap<String, Integer> stockPorts = new HashMap<>();
+        ArrayList<String> misses = new ArrayList<>();
+        for (String stock : stocks) {
+            int cachedPort = routeCache.get(stock);
+            stockPorts.put(stock, cachedPort);
+            if (cachedPort == -1) {
+                misses.add(stock);
+            }
+        }
+        if (misses.isEmpty()) {
+            return stockPorts;
+        }
 
-                // Reads response from Server
-                String response = socketReader.readLine();
+        MessageConnection connectionToServer = openServerConnection();
+        if (connectionToServer == null) {
+            return stockPorts;
+        }
 
-                if (response == null) {
-                    return -1;
-                }
+        try {
+            HashMap<String, Object> queryMsg = new HashMap<>();
+            queryMsg.put("src", "Exchange");
+            queryMsg.put("Type", "BatchRequest");
+            queryMsg.put("StockSet", misses);
+            connectionToServer.write(new JSONObject(queryMsg));
+
+            // Reads the addresses, in the same order as the stocks
+            JSONObject responseObj = connectionToServer.read();
+            if (responseObj == null) {
+                return stockPorts;
+            }
+            JSONArray stockSet = responseObj.getJSONArray("StockSet");
+            JSONArray addresses = responseObj.getJSONArray("ExchangeAddresses");
+            for (int i = 0; i < stockSet.length(); i++) {
+                int port = addresses.getInt(i);
+                stockPorts.put(stockSet.getString(i), port);
+                routeCache.put(stockSet.getString(i), port);
+            }
+            return stockPorts;
 
-                JSONObject responseObj = new JSONObject(response);
-                return responseObj.getInt("ExchangeAddress");
+        } catch (IOException | JSONException e) {
+            Log.warn("{}: Failed to ask addresses from both either Server or Backup Server. This transaction will fail.", exchangeName);
+            return stockPorts;
+        } finally {
+            connectionToServer.close();
+        }
+    }
 
-            } catch (IOException e) {
-                System.out.println(exchangeName + ": Failed to ask address from both either Server or Backup Server. This transaction will fail.");
-                return -1;
+    /**
+     * Opens a connection to the Continent Server, or to its Backup Server if the Server is down
+     * @return the connection, or null if neither can be reached
+     */
+    private MessageConnection openServerConnection() {
+        try {
+            return MessageConnection.open(serverIP, serverPort, binaryProtocol);
+        } catch (IOException e) {
+            Log.warn("{}: Failed to ask address from Server. Will try to connect with Backup Server.", exchangeName);
+            try {
+                return MessageConnection.open(backupServerIP, backupServerPort, binaryProtocol);
+            } catch (IOException e1) {
+                Log.warn("{}: Failed to ask address from Backup Server as well. This transaction will fail.", exchangeName);
+                return null;
             }
         }
     }
 
 
     /**
-     * Usage: java Exchange --exchangeName=<exchangeName> --serverName=<serverName>
+     * Usage: java Exchange --exchangeName=<exchangeName> --serverName=<serverName> [--ioMode=thread|nio]
+     *        [--eventLoops=<number of event loops>] [--workers=<number of worker threads>]
+     *        [--threadMode=platform|virtual] [--protocol=json|binary] [--poolSize=<connections per Exchange>]
+     *        [--routeCacheSize=<number of stocks>] [--durability=sync|batch|os]
+     *        [--checkpointRecords=<number of records>] [--marketData=csv|mapped|stream]
+     *        [--tapeWindow=<rows>] [--clock=real|accelerated|step] [--speed=<timestamps per second>]
+     *        [--logLevel=debug|info|warn|error|off] [--logSample=<n>]
      *
      * @param args the input arguments
      */
@@ -726,7 +967,9 @@ public class Exchange {
         String exchangeName = args[0].split("=")[1];
         String serverName = args[1].split("=")[1];
 
-        Exchange exchange = new Exchange(exchangeName, serverName);
+        Options options = new Options(args);
+        Log.configure(options);
+        Exchange exchange = new Exchange(exchangeName, serverName, options);
 
         exchange.loadStock();
         exchange.register();
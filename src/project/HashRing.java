@@ -0,0 +1,103 @@
+package project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * HashRing: assigns each stock to the continent Server owning its directory entry, by consistent hashing
+ * ("--directory=hash").
+ *
+ * Each Server is placed on a ring of 64-bit hashes at a number of points (virtual nodes), and a stock belongs to the
+ * Server of the first point at or after the hash of its name. The virtual nodes spread the stocks evenly, and a Server
+ * joining or leaving the ring only takes over or hands over the stocks between its own points and the previous ones:
+ * about 1/N of the stocks move, the others keep their owner.
+ *
+ * Every Server builds the same ring from the same names, so they all agree on the owners without asking each other.
+ * The members are the four continent Servers and do not change while the Servers run: a Server that is down keeps its
+ * points, a lookup then asks its backup and walks along the ring if neither answers. add() and remove() of a running
+ * ring are used to measure how many stocks would move (the hashring benchmark), not to move them.
+ */
+class HashRing {
+
+    private int virtualNodes;                       // the points of each Server on the ring
+    private TreeMap<Long, String> pointTable;       // stores <hash of a point, name of the Server>
+    private TreeSet<String> nodeSet;                // the names of the Servers on the ring
+
+    /**
+     * Instantiates a new empty HashRing.
+     *
+     * @param virtualNodes the number of points of each Server on the ring
+     */
+    HashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.pointTable = new TreeMap<>();
+        this.nodeSet = new TreeSet<>();
+    }
+
+    /**
+     * Adds a Server to the ring.
+     *
+     * @param node the name of the Server
+     */
+    synchronized void add(String node) {
+        if (this.nodeSet.add(node)) {
+            for (int i = 0; i < this.virtualNodes; i++) {
+                this.pointTable.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Removes a Server from the ring, its stocks go to the Servers after its points.
+     *
+     * @param node the name of the Server
+     */
+    synchronized void remove(String node) {
+        if (this.nodeSet.remove(node)) {
+            this.pointTable.values().removeIf(node::equals);
+            // a point of another Server may have had the same hash
+            for (String other : this.nodeSet) {
+                for (int i = 0; i < this.virtualNodes; i++) {
+                    this.pointTable.putIfAbsent(hash(other + "#" + i), other);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param stockName the stock
+     * @return the name of the Server owning the stock, or null if the ring is empty
+     */
+    synchronized String owner(String stockName) {
+        if (this.pointTable.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = this.pointTable.ceilingEntry(hash(stockName));
+        return point == null ? this.pointTable.firstEntry().getValue() : point.getValue();
+    }
+
+    /**
+     * @return the names of the Servers on the ring
+     */
+    synchronized SortedSet<String> nodes() {
+        return new TreeSet<>(this.nodeSet);
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, then the MurmurHash3 finalizer so that close names land far apart
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
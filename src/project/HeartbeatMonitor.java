@@ -0,0 +1,265 @@
+package project;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.*;
+
+/**
+ * HeartbeatMonitor: sends heartbeats to the nodes a Server depends on (the exchanges registered with it and its
+ * neighbouring Servers) and suspects the ones that stop answering ("--heartbeatMillis=<ms>", "--phiThreshold=<phi>").
+ *
+ * Each node gets a heartbeat every heartbeatMillis, on its own thread so a node that hangs does not delay the others.
+ * The failure detector is phi-accrual: from the mean and standard deviation of the recent intervals between answers,
+ * phi = -log10(probability that the next answer comes even later than now). A node is suspected when phi goes over the
+ * threshold (8 is a wrong suspicion about once in 10^8 heartbeats), which adapts to slow nodes instead of using a fixed
+ * timeout. A suspected node that answers again recovers.
+ */
+class HeartbeatMonitor {
+
+    private static final int MAX_SAMPLES = 100;             // the intervals kept per node
+    private static final int CHECKS_PER_INTERVAL = 4;       // how often phi is checked between two heartbeats
+
+    private String owner;                                   // the name of the Server, for printing messages
+    private long intervalMillis;
+    private double phiThreshold;
+    private ConcurrentHashMap<String, Node> nodeTable;      // stores <name of the node, node>
+    private ExecutorService pingers;
+
+    /**
+     * Sends a heartbeat to a node and waits for its answer.
+     */
+    interface Probe {
+        void ping() throws IOException;
+    }
+
+    /**
+     * Instantiates a new HeartbeatMonitor.
+     *
+     * @param owner          the name of the Server
+     * @param intervalMillis the time between two heartbeats to a node
+     * @param phiThreshold   the phi over which a node is suspected
+     */
+    HeartbeatMonitor(String owner, long intervalMillis, double phiThreshold) {
+        this.owner = owner;
+        this.intervalMillis = intervalMillis;
+        this.phiThreshold = phiThreshold;
+        this.nodeTable = new ConcurrentHashMap<>();
+        this.pingers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, owner + "-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sending the heartbeats.
+     */
+    void start() {
+        Thread ticker = new Thread(this::run, this.owner + "-heartbeats");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Starts watching a node, or watches it again from scratch (e.g. an exchange registering again).
+     *
+     * @param name      the name of the node
+     * @param probe     sends it a heartbeat
+     * @param onSuspect run when the node is suspected
+     * @param onRecover run when a suspected node answers again
+     */
+    void watch(String name, Probe probe, Runnable onSuspect, Runnable onRecover) {
+        this.nodeTable.put(name, new Node(name, probe, onSuspect, onRecover));
+    }
+
+    /**
+     * Stops watching a node.
+     *
+     * @param name the name of the node
+     */
+    void unwatch(String name) {
+        this.nodeTable.remove(name);
+    }
+
+    /**
+     * Forgets the history of a node, e.g. after a neighbouring Server was replaced by its backup.
+     *
+     * @param name the name of the node
+     */
+    void reset(String name) {
+        Node node = this.nodeTable.get(name);
+        if (node != null) {
+            this.nodeTable.put(name, new Node(name, node.probe, node.onSuspect, node.onRecover));
+        }
+    }
+
+    /**
+     * @param name the name of the node
+     * @return the current phi of the node, 0 if it is not watched
+     */
+    double phi(String name) {
+        Node node = this.nodeTable.get(name);
+        return node == null ? 0 : node.phi(System.nanoTime());
+    }
+
+    private void run() {
+        for (long check = 0; ; check++) {
+            long now = System.nanoTime();
+            for (Node node : this.nodeTable.values()) {
+                // a heartbeat still waiting for its answer is not sent again
+                if (check % CHECKS_PER_INTERVAL == 0 && node.inFlight.compareAndSet(false, true)) {
+                    this.pingers.execute(node::ping);
+                }
+                node.check(now);
+            }
+            try {
+                Thread.sleep(Math.max(1, this.intervalMillis / CHECKS_PER_INTERVAL));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A watched node, with its phi-accrual failure detector.
+     */
+    private class Node {
+
+        private String name;
+        private Probe probe;
+        private Runnable onSuspect;
+        private Runnable onRecover;
+        private AtomicBoolean inFlight;
+
+        private ArrayDeque<Long> intervals;         // the latest intervals between answers, in nanoseconds
+        private long sum;                           // of the intervals
+        private double sumOfSquares;                // of the intervals, in milliseconds
+        private long lastAnswer;                    // System.nanoTime() of the last answer
+        private boolean suspected;
+
+        Node(String name, Probe probe, Runnable onSuspect, Runnable onRecover) {
+            this.name = name;
+            this.probe = probe;
+            this.onSuspect = onSuspect;
+            this.onRecover = onRecover;
+            this.inFlight = new AtomicBoolean();
+            this.intervals = new ArrayDeque<>();
+            this.lastAnswer = System.nanoTime();
+            // starts as if the node answered every interval, give or take a quarter
+            addInterval(intervalMillis * 1000000L * 3 / 4);
+            addInterval(intervalMillis * 1000000L * 5 / 4);
+        }
+
+        void ping() {
+            try {
+                this.probe.ping();
+                answered(System.nanoTime());
+            } catch (IOException | RuntimeException e) {
+                // no answer: phi grows until the node answers again
+            } finally {
+                this.inFlight.set(false);
+            }
+        }
+
+        synchronized void answered(long now) {
+            addInterval(now - this.lastAnswer);
+            this.lastAnswer = now;
+            if (this.suspected) {
+                this.suspected = false;
+                Log.info("{} : {} answers heartbeats again", owner, this.name);
+                this.onRecover.run();
+            }
+        }
+
+        void check(long now) {
+            synchronized (this) {
+                if (this.suspected || phi(now) <= phiThreshold) {
+                    return;
+                }
+                this.suspected = true;
+            }
+            Log.warn("{} : suspect {} is down (phi {}, no answer for {} ms)", owner, this.name,
+                    String.format("%.1f", phi(now)), (now - this.lastAnswer) / 1000000);
+            this.onSuspect.run();
+        }
+
+        synchronized double phi(long now) {
+            double elapsedMillis = (now - this.lastAnswer) / 1e6;
+            double mean = this.sum / 1e6 / this.intervals.size();
+            double variance = this.sumOfSquares / this.intervals.size() - mean * mean;
+            // a node answering like clockwork would be suspected after a tiny delay
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), intervalMillis / 10.0);
+            // logistic approximation of the normal distribution
+            double y = (elapsedMillis - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (elapsedMillis > mean) {
+                return -Math.log10(e / (1.0 + e));
+            }
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+
+        private void addInterval(long nanos) {
+            this.intervals.addLast(nanos);
+            this.sum += nanos;
+            this.sumOfSquares += (nanos / 1e6) * (nanos / 1e6);
+            if (this.intervals.size() > MAX_SAMPLES) {
+                long oldest = this.intervals.removeFirst();
+                this.sum -= oldest;
+                this.sumOfSquares -= (oldest / 1e6) * (oldest / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Sends heartbeats to an Exchange on a connection kept open, opened again after a failure.
+     */
+    static class ExchangeProbe implements Probe {
+
+        private int port;
+        private boolean binaryProtocol;
+        private int timeoutMillis;                  // a heartbeat not answered within this time fails
+        private MessageConnection connection;
+
+        ExchangeProbe(int port, boolean binaryProtocol, int timeoutMillis) {
+            this.port = port;
+            this.binaryProtocol = binaryProtocol;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public synchronized void ping() throws IOException {
+            try {
+                if (this.connection == null) {
+                    this.connection = MessageConnection.open("127.0.0.1", this.port, this.binaryProtocol);
+                    this.connection.getSocket().setSoTimeout(this.timeoutMillis);
+                }
+                this.connection.write(heartbeat());
+                if (this.connection.read() == null) {
+                    throw new EOFException("Connection closed by the exchange");
+                }
+            } catch (IOException | JSONException e) {
+                if (this.connection != null) {
+                    this.connection.close();
+                    this.connection = null;
+                }
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return a heartbeat message
+     */
+    static JSONObject heartbeat() {
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("Type", "Heartbeat");
+        return new JSONObject(hm);
+    }
+}
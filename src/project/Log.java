@@ -0,0 +1,298 @@
+package project;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log: an asynchronous logger for the messages printed by Exchanges, Servers and Clients
+ * ("--logLevel=debug|info|warn|error|off", "--logSample=<n>").
+ *
+ * A message is a format with "{}" placeholders and its arguments, e.g. Log.info("{}: Client {} {}", name, id, result).
+ * The calling thread only copies the format and the arguments into a slot of a preallocated ring buffer; a background
+ * thread builds the strings and prints them, so printing never blocks a trade. Info messages of up to MAX_ARGS
+ * arguments are copied without allocating an argument array. Strings and boxed numbers are converted later by that
+ * thread; any other argument (e.g. a JSONObject another thread may still change) is converted to a string when it is
+ * logged. A message that cannot be formatted is printed as its format, and the writer goes on.
+ * When the ring buffer is full (the terminal or the disk is too slow), new messages are dropped and counted instead of
+ * waiting; the number of dropped messages is printed once the writer catches up.
+ * With "--logSample=n", only about one in n debug and info messages is kept; warnings and errors are always kept.
+ */
+class Log {
+
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    static final int OFF = 4;
+
+    private static final String[] LEVEL_NAMES = {"debug", "info", "warn", "error", "off"};
+    private static final int CAPACITY = 16384;          // slots in the ring buffer, a power of 2
+    private static final int MAX_ARGS = 8;
+
+    private static volatile int level = INFO;            // messages below this level are ignored
+    private static volatile int sample = 1;              // keeps one in this many debug and info messages
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();  // the next slot to be claimed by a logging thread
+    private static volatile long tail = 0;                    // the next slot to be printed by the writer thread
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // prints what is still in the ring buffer when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    /**
+     * One message waiting to be printed. "sequence" is written last, after the other fields, and tells the writer
+     * thread that the slot holds the message claimed at that position.
+     */
+    private static class Slot {
+        volatile long sequence = -1;
+        String format;
+        Object[] args = new Object[MAX_ARGS];
+        int numArgs;
+        Object[] moreArgs;                                  // when there are more than MAX_ARGS arguments
+    }
+
+    /**
+     * Reads the "--logLevel" and "--logSample" options.
+     *
+     * @param options the startup options of the process
+     */
+    static void configure(Options options) {
+        String levelName = options.get("logLevel", "info");
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equals(levelName)) {
+                level = i;
+            }
+        }
+        sample = Math.max(1, options.getInt("logSample", 1));
+        if (!LEVEL_NAMES[level].equals(levelName)) {
+            Log.warn("Invalid log level {}, using {}", levelName, LEVEL_NAMES[level]);
+        }
+    }
+
+    static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    static void debug(String format, Object... args) {
+        log(DEBUG, format, args);
+    }
+
+    static void info(String format) {
+        log(INFO, format, null, null, null, null, null, null, null, null, 0);
+    }
+
+    static void info(String format, Object arg0) {
+        log(INFO, format, arg0, null, null, null, null, null, null, null, 1);
+    }
+
+    static void info(String format, Object arg0, Object arg1) {
+        log(INFO, format, arg0, arg1, null, null, null, null, null, null, 2);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2) {
+        log(INFO, format, arg0, arg1, arg2, null, null, null, null, null, 3);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2, Object arg3) {
+        log(INFO, format, arg0, arg1, arg2, arg3, null, null, null, null, 4);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2, Object arg3, Object arg4) {
+        log(INFO, format, arg0, arg1, arg2, arg3, arg4, null, null, null, 5);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2, Object arg3, Object arg4, Object arg5) {
+        log(INFO, format, arg0, arg1, arg2, arg3, arg4, arg5, null, null, 6);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2, Object arg3, Object arg4, Object arg5,
+                     Object arg6) {
+        log(INFO, format, arg0, arg1, arg2, arg3, arg4, arg5, arg6, null, 7);
+    }
+
+    static void info(String format, Object arg0, Object arg1, Object arg2, Object arg3, Object arg4, Object arg5,
+                     Object arg6, Object arg7) {
+        log(INFO, format, arg0, arg1, arg2, arg3, arg4, arg5, arg6, arg7, 8);
+    }
+
+    static void info(String format, Object... args) {
+        log(INFO, format, args);
+    }
+
+    static void warn(String format, Object... args) {
+        log(WARN, format, args);
+    }
+
+    static void error(String format, Object... args) {
+        log(ERROR, format, args);
+    }
+
+    // up to MAX_ARGS arguments, e.g. the info messages of every order and trade, without allocating an array
+    private static void log(int messageLevel, String format, Object arg0, Object arg1, Object arg2, Object arg3,
+                            Object arg4, Object arg5, Object arg6, Object arg7, int numArgs) {
+        if (!keep(messageLevel)) {
+            return;
+        }
+        long sequence = claim();
+        if (sequence == -1) {
+            return;
+        }
+        Slot slot = slots[(int) (sequence & (CAPACITY - 1))];
+        slot.format = format;
+        slot.args[0] = snapshot(arg0);
+        slot.args[1] = snapshot(arg1);
+        slot.args[2] = snapshot(arg2);
+        slot.args[3] = snapshot(arg3);
+        slot.args[4] = snapshot(arg4);
+        slot.args[5] = snapshot(arg5);
+        slot.args[6] = snapshot(arg6);
+        slot.args[7] = snapshot(arg7);
+        slot.numArgs = numArgs;
+        slot.moreArgs = null;
+        slot.sequence = sequence;
+    }
+
+    private static void log(int messageLevel, String format, Object[] args) {
+        if (!keep(messageLevel)) {
+            return;
+        }
+        long sequence = claim();
+        if (sequence == -1) {
+            return;
+        }
+        Slot slot = slots[(int) (sequence & (CAPACITY - 1))];
+        slot.format = format;
+        Object[] target = args.length <= MAX_ARGS ? slot.args : new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            target[i] = snapshot(args[i]);
+        }
+        slot.moreArgs = args.length <= MAX_ARGS ? null : target;
+        slot.numArgs = args.length;
+        slot.sequence = sequence;
+    }
+
+    // an argument that cannot change is kept as is, any other one is converted to a string now
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long
+                || arg instanceof Double || arg instanceof Boolean || arg instanceof Character
+                || arg instanceof Short || arg instanceof Byte || arg instanceof Float) {
+            return arg;
+        }
+        try {
+            return String.valueOf(arg);
+        } catch (RuntimeException e) {
+            return "(" + arg.getClass().getSimpleName() + ": " + e + ")";
+        }
+    }
+
+    private static boolean keep(int messageLevel) {
+        if (messageLevel < level) {
+            return false;
+        }
+        return messageLevel >= WARN || sample == 1 || ThreadLocalRandom.current().nextInt(sample) == 0;
+    }
+
+    // claims the next slot of the ring buffer, or returns -1 (and counts the message as dropped) if it is full
+    private static long claim() {
+        while (true) {
+            long sequence = head.get();
+            if (sequence - tail >= CAPACITY) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (head.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * Prints the messages logged so far on the calling thread, e.g. before redirecting System.out.
+     */
+    static void flush() {
+        while (drain()) {
+            // until the ring buffer is empty
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            boolean printed;
+            try {
+                printed = drain();
+            } catch (RuntimeException e) {
+                // e.g. System.out failing: the writer must keep running, or every later message would be lost
+                printed = false;
+            }
+            if (!printed) {
+                LockSupport.parkNanos(200000);
+            }
+        }
+    }
+
+    // prints all the messages published so far, returns false if there was none
+    private static synchronized boolean drain() {
+        StringBuilder builder = new StringBuilder(4096);
+        long next = tail;
+        while (true) {
+            Slot slot = slots[(int) (next & (CAPACITY - 1))];
+            if (slot.sequence != next) {
+                break;
+            }
+            int messageStart = builder.length();
+            try {
+                format(builder, slot);
+            } catch (RuntimeException e) {
+                builder.setLength(messageStart);
+                builder.append(slot.format).append(" (log message could not be formatted: ").append(e).append(")");
+            }
+            builder.append(System.lineSeparator());
+            slot.format = null;
+            Arrays.fill(slot.args, null);
+            slot.moreArgs = null;
+            next++;
+            tail = next;
+
+            if (builder.length() > 64 * 1024) {
+                System.out.print(builder);
+                builder.setLength(0);
+            }
+        }
+
+        long numDropped = dropped.getAndSet(0);
+        if (numDropped > 0) {
+            builder.append("(").append(numDropped).append(" log messages dropped)").append(System.lineSeparator());
+        }
+        if (builder.length() == 0) {
+            return false;
+        }
+        System.out.print(builder);
+        System.out.flush();
+        return true;
+    }
+
+    private static void format(StringBuilder builder, Slot slot) {
+        Object[] args = slot.moreArgs != null ? slot.moreArgs : slot.args;
+        String format = slot.format;
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = format.indexOf("{}", start)) != -1 && argIndex < slot.numArgs) {
+            builder.append(format, start, placeholder);
+            builder.append(args[argIndex++]);
+            start = placeholder + 2;
+        }
+        builder.append(format, start, format.length());
+    }
+}
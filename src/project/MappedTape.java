@@ -0,0 +1,49 @@
+package project;
+import java.nio.ByteBuffer;
+
+/**
+ * MappedTape: a Tape read directly from the memory-mapped market data file (see MarketDataFile).
+ *
+ * The prices and quantities of a stock are two columns of the file; reading them does not copy anything to the heap,
+ * and all the Exchanges mapping the same file share the same pages of the page cache.
+ */
+class MappedTape implements Tape {
+
+    private String stockName;                       // for the error messages
+    private ByteBuffer data;                        // the mapped file, read-only and shared by all the stocks
+    private int priceOffset;                        // the position of the price at timeIndex 1 (8 bytes per price)
+    private int qtyOffset;                          // the position of the quantity at timeIndex 1 (4 bytes per quantity)
+    private int lastTime;                           // the last timeIndex of the tape
+
+    MappedTape(String stockName, ByteBuffer data, int priceOffset, int qtyOffset, int lastTime) {
+        this.stockName = stockName;
+        this.data = data;
+        this.priceOffset = priceOffset;
+        this.qtyOffset = qtyOffset;
+        this.lastTime = lastTime;
+    }
+
+    // absolute reads do not move the position of the buffer, so the stocks can share it between threads
+    @Override
+    public double getPrice(int time) {
+        checkTime(time);
+        return this.data.getDouble(this.priceOffset + (time - 1) * 8);
+    }
+
+    @Override
+    public int getQty(int time) {
+        checkTime(time);
+        return this.data.getInt(this.qtyOffset + (time - 1) * 4);
+    }
+
+    @Override
+    public int getLastTime() {
+        return this.lastTime;
+    }
+
+    private void checkTime(int time) {
+        if (time < 1 || time > this.lastTime) {
+            throw new IndexOutOfBoundsException(this.stockName + " has no price or quantity at timeIndex " + time);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package project;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/**
+ * MarketDataBenchmarks: the benchmarks of loading and keeping the price and quantity tapes of the Exchanges.
+ * Run by Benchmark: java Benchmark --benchmark=<name> [--key=value ...]
+ *
+ * tape:        heap footprint and lookup time of the price and quantity tape of the stocks of one exchange (runs in this
+ *              process): the previous boxed Hashtables against the primitive arrays of Stock.
+ *              Options: --stocks=54 --timestamps=2223 --lookups=10000000
+ *
+ * marketdata:  startup of the Exchanges (runs in this process, reads the csv files of the current directory): loads the
+ *              stocks of each exchange by parsing the csv files as before, then by mapping the market data file (converted
+ *              first if it is missing or out of date). Prints the load time and the heap kept by the tapes.
+ *              Options: --exchanges=<exchange>,<exchange>,... (default: all exchanges)
+ *
+ * csvload:     loading the stocks of one exchange from the csv files of the current directory (runs in this process):
+ *              the previous CSVReader, which splits every line into Strings, against the CSVColumnReader of
+ *              Exchange.loadCsv, on the real files and on synthetic files with the data lines repeated --scale times.
+ *              Options: --exchangeName=Shenzhen --scale=100 --rounds=3
+ *
+ * stream:      the tapes of one exchange loaded in full before registering against streamed with a window of rows
+ *              (runs in this process, writes synthetic csv files to the current directory): for each length of the files,
+ *              the time until the exchange can register and the heap kept by the tapes, then the time to read the whole
+ *              stream by moving the clock.
+ *              Options: --exchangeName=Shenzhen --scales=1,10,100 (data lines repeated) --tapeWindow=60
+ */
+class MarketDataBenchmarks {
+
+    private Options options;
+
+    MarketDataBenchmarks(Options options) {
+        this.options = options;
+    }
+
+    void tape() {
+
+        int numStocks = this.options.getInt("stocks", 54);
+        int numTimestamps = this.options.getInt("timestamps", 2223);
+        int lookups = this.options.getInt("lookups", 10000000);
+
+        // 1. the previous tables: two boxed Hashtables per stock
+        long before = usedHeap();
+        ArrayList<Hashtable<Integer, Double>> priceTables = new ArrayList<>();
+        ArrayList<Hashtable<Integer, Integer>> qtyTables = new ArrayList<>();
+        for (int s = 0; s < numStocks; s++) {
+            Hashtable<Integer, Double> priceTable = new Hashtable<>();
+            Hashtable<Integer, Integer> qtyTable = new Hashtable<>();
+            for (int t = 1; t <= numTimestamps; t++) {
+                priceTable.put(t, 10.0 + (s * 31 + t) % 1000 / 100.0);
+                qtyTable.put(t, (s + t) % 7 == 0 ? 100 * (t % 5) : 0);
+            }
+            priceTables.add(priceTable);
+            qtyTables.add(qtyTable);
+        }
+        long tableBytes = usedHeap() - before;
+
+        // 2. the primitive tape of Stock
+        before = usedHeap();
+        ArrayList<Stock> stocks = new ArrayList<>();
+        for (int s = 0; s < numStocks; s++) {
+            Stock stock = new Stock("STOCK" + s, "Shenzhen");
+            for (int t = 1; t <= numTimestamps; t++) {
+                stock.setPrice(t, 10.0 + (s * 31 + t) % 1000 / 100.0);
+                stock.setQuantity(t, (s + t) % 7 == 0 ? 100 * (t % 5) : 0);
+            }
+            stock.trimTape();
+            stocks.add(stock);
+        }
+        long tapeBytes = usedHeap() - before;
+
+        double checksum = 0;
+        long tableNanos = 0;
+        long tapeNanos = 0;
+        for (int round = 0; round < 2; round++) {   // the first round warms up the JIT
+            long begin = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int s = i % numStocks;
+                int t = 1 + (int) ((i * 7919L) % numTimestamps);
+                checksum += priceTables.get(s).get(t) + qtyTables.get(s).get(t);
+            }
+            tableNanos = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int s = i % numStocks;
+                int t = 1 + (int) ((i * 7919L) % numTimestamps);
+                checksum += stocks.get(s).getPrice(t) + stocks.get(s).getQty(t);
+            }
+            tapeNanos = System.nanoTime() - begin;
+        }
+
+        System.out.println(numStocks + " stocks x " + numTimestamps + " timestamps (one exchange):");
+        System.out.println("  Hashtables (before): " + String.format("%1$,12d", tableBytes) + " bytes of heap, "
+                + String.format("%1$,.1f", tableNanos / (double) lookups) + " ns per price and quantity lookup");
+        System.out.println("  primitive tape:      " + String.format("%1$,12d", tapeBytes) + " bytes of heap, "
+                + String.format("%1$,.1f", tapeNanos / (double) lookups) + " ns per price and quantity lookup");
+        if (checksum == 0 || priceTables.isEmpty() || qtyTables.isEmpty()) {
+            System.out.println();
+        }
+    }
+
+    void marketData() {
+
+        String csvPriceFile = "price_stocks.csv";
+        String csvQtyFile = "qty_stocks.csv";
+        String dataFile = MarketDataFile.DEFAULT_FILE;
+        String[] exchanges = this.options.get("exchanges", "Bombay,Brussels,EuronextParis,Frankfurt,HongKong,"
+                + "Johannesburg,Lisbon,London,NewYorkStockExchange,SaoPaulo,Seoul,Shanghai,Shenzhen,Sydney,Tokyo,"
+                + "Toronto,Zurich").split(",");
+
+        try {
+            if (!MarketDataFile.isUpToDate(dataFile, csvPriceFile, csvQtyFile)) {
+                long begin = System.nanoTime();
+                MarketDataFile.convert(csvPriceFile, csvQtyFile, dataFile);
+                System.out.println("Converted the csv files into " + dataFile + " in "
+                        + (System.nanoTime() - begin) / 1000000 + " ms (once)");
+            }
+
+            // 1. every exchange parses the csv files into its own heap, as before
+            ArrayList<Hashtable<String, Stock>> csvTables = new ArrayList<>();
+            long before = usedHeap();
+            long begin = System.nanoTime();
+            for (String exchange : exchanges) {
+                Hashtable<String, Stock> stockTable = new Hashtable<>();
+                Exchange.loadCsv(csvPriceFile, csvQtyFile, exchange, stockTable, new Hashtable<>());
+                csvTables.add(stockTable);
+            }
+            long csvNanos = System.nanoTime() - begin;
+            long csvBytes = usedHeap() - before;
+
+            // 2. every exchange maps the market data file
+            ArrayList<Hashtable<String, Stock>> mappedTables = new ArrayList<>();
+            before = usedHeap();
+            begin = System.nanoTime();
+            for (String exchange : exchanges) {
+                Hashtable<String, Stock> stockTable = new Hashtable<>();
+                MarketDataFile.load(dataFile, exchange, stockTable, new Hashtable<>());
+                mappedTables.add(stockTable);
+            }
+            long mappedNanos = System.nanoTime() - begin;
+            long mappedBytes = usedHeap() - before;
+
+            int numStocks = 0;
+            for (Hashtable<String, Stock> stockTable : mappedTables) {
+                numStocks += stockTable.size();
+            }
+            System.out.println(exchanges.length + " exchanges, " + numStocks + " stocks:");
+            System.out.println("  csv files (before): " + String.format("%1$,8.1f", csvNanos / 1e6 / exchanges.length)
+                    + " ms per exchange, " + String.format("%1$,12d", csvBytes) + " bytes of heap in total");
+            System.out.println("  mapped file:        " + String.format("%1$,8.1f", mappedNanos / 1e6 / exchanges.length)
+                    + " ms per exchange, " + String.format("%1$,12d", mappedBytes) + " bytes of heap in total, "
+                    + String.format("%1$,d", new File(dataFile).length()) + " bytes of page cache shared");
+            if (csvTables.isEmpty() || mappedTables.isEmpty()) {
+                System.out.println();
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot read the market data: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    void csvLoad() {
+
+        String exchangeName = this.options.get("exchangeName", "Shenzhen");
+        int scale = this.options.getInt("scale", 100);
+        int rounds = this.options.getInt("rounds", 3);
+
+        String csvPriceFile = "price_stocks.csv";
+        String csvQtyFile = "qty_stocks.csv";
+        String bigPriceFile = "benchmark_price.csv";
+        String bigQtyFile = "benchmark_qty.csv";
+
+        try {
+            // 1. the real files: keeps the best time of a few rounds
+            Hashtable<String, Stock> stockTable = new Hashtable<>();
+            Exchange.loadCsv(csvPriceFile, csvQtyFile, exchangeName, stockTable, new Hashtable<>());
+
+            long beforeNanos = Long.MAX_VALUE;
+            long afterNanos = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long begin = System.nanoTime();
+                loadCsvBefore(csvPriceFile, csvQtyFile, exchangeName, new Hashtable<>(), new Hashtable<>());
+                beforeNanos = Math.min(beforeNanos, System.nanoTime() - begin);
+                begin = System.nanoTime();
+                Exchange.loadCsv(csvPriceFile, csvQtyFile, exchangeName, new Hashtable<>(), new Hashtable<>());
+                afterNanos = Math.min(afterNanos, System.nanoTime() - begin);
+            }
+            long bytes = new File(csvPriceFile).length() + new File(csvQtyFile).length();
+            System.out.println(exchangeName + ", " + stockTable.size() + " stocks, real csv files ("
+                    + String.format("%1$,d", bytes) + " bytes):");
+            printLoadTime(beforeNanos, afterNanos, bytes);
+
+            // 2. synthetic files, scale times longer
+            repeatDataLines(csvPriceFile, bigPriceFile, scale);
+            repeatDataLines(csvQtyFile, bigQtyFile, scale);
+            bytes = new File(bigPriceFile).length() + new File(bigQtyFile).length();
+
+            long begin = System.nanoTime();
+            loadCsvBefore(bigPriceFile, bigQtyFile, exchangeName, new Hashtable<>(), new Hashtable<>());
+            beforeNanos = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            Exchange.loadCsv(bigPriceFile, bigQtyFile, exchangeName, new Hashtable<>(), new Hashtable<>());
+            afterNanos = System.nanoTime() - begin;
+            System.out.println(exchangeName + ", synthetic csv files " + scale + "x longer ("
+                    + String.format("%1$,d", bytes) + " bytes):");
+            printLoadTime(beforeNanos, afterNanos, bytes);
+
+        } catch (IOException e) {
+            System.out.println("Cannot read the csv files: " + e.getMessage());
+        } finally {
+            new File(bigPriceFile).delete();
+            new File(bigQtyFile).delete();
+        }
+    }
+
+    void stream() {
+
+        String exchangeName = this.options.get("exchangeName", "Shenzhen");
+        String[] scales = this.options.get("scales", "1,10,100").split(",");
+        int window = this.options.getInt("tapeWindow", 60);
+
+        String csvPriceFile = "benchmark_price.csv";
+        String csvQtyFile = "benchmark_qty.csv";
+
+        System.out.println(exchangeName + ", full load against a stream of " + window + " rows:");
+        try {
+            for (String scale : scales) {
+                repeatDataLines("price_stocks.csv", csvPriceFile, Integer.parseInt(scale));
+                repeatDataLines("qty_stocks.csv", csvQtyFile, Integer.parseInt(scale));
+
+                // 1. every row loaded before registering
+                long before = usedHeap();
+                long begin = System.nanoTime();
+                Hashtable<String, Stock> fullTable = new Hashtable<>();
+                Hashtable<Integer, String> fullTimes = new Hashtable<>();
+                Exchange.loadCsv(csvPriceFile, csvQtyFile, exchangeName, fullTable, fullTimes);
+                long fullNanos = System.nanoTime() - begin;
+                long fullBytes = usedHeap() - before;
+                int numRows = fullTimes.size();
+
+                // 2. only the header lines, then the loader thread fills the window
+                before = usedHeap();
+                begin = System.nanoTime();
+                Hashtable<String, Stock> streamTable = new Hashtable<>();
+                Hashtable<Integer, String> streamTimes = new Hashtable<>();
+                TapeStream tapeStream = new TapeStream(csvPriceFile, csvQtyFile, exchangeName, window, streamTable, streamTimes);
+                tapeStream.start();
+                long streamNanos = System.nanoTime() - begin;
+                for (Stock stock : streamTable.values()) {
+                    stock.getPrice(Math.min(window - 1, numRows));  // waits for a full window (and the row before the clock)
+                }
+                long streamBytes = usedHeap() - before;
+
+                // 3. moves the clock through the whole tape, as the TimeUpdateTask would, reading every row
+                begin = System.nanoTime();
+                double checksum = 0;
+                for (int time = 1; time <= numRows; time++) {
+                    tapeStream.advance(time);
+                    for (Stock stock : streamTable.values()) {
+                        checksum += stock.getPrice(time) + stock.getQty(time);
+                    }
+                }
+                long replayNanos = System.nanoTime() - begin;
+
+                System.out.println("  " + String.format("%1$,9d", numRows) + " rows, full load: "
+                        + String.format("%1$,9.1f", fullNanos / 1e6) + " ms before registering, "
+                        + String.format("%1$,12d", fullBytes) + " bytes of heap");
+                System.out.println("  " + String.format("%1$,9d", numRows) + " rows, stream:    "
+                        + String.format("%1$,9.1f", streamNanos / 1e6) + " ms before registering, "
+                        + String.format("%1$,12d", streamBytes) + " bytes of heap, whole stream read in "
+                        + String.format("%1$,.1f", replayNanos / 1e6) + " ms");
+                if (checksum == 0) {
+                    System.out.println();
+                }
+                fullTable.clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot read the csv files: " + e.getMessage());
+        } finally {
+            new File(csvPriceFile).delete();
+            new File(csvQtyFile).delete();
+        }
+    }
+
+    private static void printLoadTime(long beforeNanos, long afterNanos, long bytes) {
+        System.out.println("  CSVReader (before): " + String.format("%1$,10.1f", beforeNanos / 1e6) + " ms, "
+                + String.format("%1$,8.1f", bytes / 1e6 / (beforeNanos / 1e9)) + " MB/s");
+        System.out.println("  CSVColumnReader:    " + String.format("%1$,10.1f", afterNanos / 1e6) + " ms, "
+                + String.format("%1$,8.1f", bytes / 1e6 / (afterNanos / 1e9)) + " MB/s");
+    }
+
+    // copies the 4 header lines of a csv file, then its data lines the given number of times
+    private static void repeatDataLines(String csvFile, String copyFile, int times) throws IOException {
+        ArrayList<String> header = new ArrayList<>();
+        ArrayList<String> data = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), "ISO-8859-1"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                (header.size() < 4 ? header : data).add(line);
+            }
+        }
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(copyFile), "ISO-8859-1"), 1 << 16)) {
+            for (String line : header) {
+                writer.write(line);
+                writer.newLine();
+            }
+            for (int i = 0; i < times; i++) {
+                for (String line : data) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    // the previous Exchange.loadStock: every line is split into Strings by CSVReader
+    private static void loadCsvBefore(String csvPriceFile, String csvQtyFile, String exchangeName,
+                                      Hashtable<String, Stock> stockTable, Hashtable<Integer, String> timeIndexTable) throws IOException {
+
+        final int EXCHANGE_LINE = 3,
+                STOCK_LINE = 4;
+
+        CSVReader csvPriceReader = new CSVReader(csvPriceFile);
+        CSVReader csvQtyReader = new CSVReader(csvQtyFile);
+        ArrayList<Integer> columnIndices = new ArrayList<>();
+        Hashtable<Integer, Stock> stockIndexTable = new Hashtable<>();
+
+        while (csvPriceReader.hasNextLine()) {
+            csvQtyReader.hasNextLine();
+            java.util.List<String> line = csvPriceReader.readLine();
+            if (csvPriceReader.getCurrentLineIndex() == EXCHANGE_LINE) {
+                for (int i = 0; i < line.size(); i++) {
+                    if (line.get(i).replaceAll("[^A-Za-z]+", "").equals(exchangeName)) {
+                        columnIndices.add(i);
+                    }
+                }
+                continue;
+            }
+            if (csvPriceReader.getCurrentLineIndex() == STOCK_LINE) {
+                for (Integer columnIndex : columnIndices) {
+                    String stockName = line.get(columnIndex).replaceAll("[^A-Za-z]+", "");
+                    stockIndexTable.put(columnIndex, new Stock(stockName, exchangeName));
+                }
+                continue;
+            }
+            if (csvPriceReader.getCurrentLineIndex() > STOCK_LINE) {
+                int currentSecond = csvPriceReader.getCurrentLineIndex() - STOCK_LINE;
+                timeIndexTable.put(currentSecond, line.get(0) + " " + line.get(1));
+                for (Integer columnIndex : columnIndices) {
+                    Stock stock = stockIndexTable.get(columnIndex);
+                    stock.setPrice(currentSecond, Double.parseDouble(line.get(columnIndex)));
+                    try {
+                        stock.setQuantity(currentSecond, Integer.parseInt(csvQtyReader.readLine().get(columnIndex)));
+                    } catch (NumberFormatException e) {
+                        stock.setQuantity(currentSecond, 0);
+                    }
+                    stockTable.put(stock.getName(), stock);
+                }
+            }
+        }
+        for (Stock stock : stockTable.values()) {
+            stock.trimTape();
+        }
+        csvPriceReader.close();
+        csvQtyReader.close();
+    }
+
+    // the heap in use after a garbage collection (approximate)
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+}
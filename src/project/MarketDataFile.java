@@ -0,0 +1,285 @@
+package project;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * MarketDataFile: the price and quantity tapes of all the stocks in one binary file, converted once from the csv files
+ * and memory-mapped read-only by every Exchange started with "--marketData=mapped".
+ *
+ * Usage: java MarketDataFile [--priceFile=price_stocks.csv] [--qtyFile=qty_stocks.csv] [--dataFile=market_data.bin]
+ *
+ * The file is (big-endian):
+ *   header:    [magic: 4 bytes] [version: 4 bytes] [number of timestamps: 4 bytes] [number of stocks: 4 bytes]
+ *   timestamps: [timestamp: string] ... (timeIndex 1 first)
+ *   directory: for each stock [stock name: string] [exchange name: string] [price offset: 8 bytes] [qty offset: 8 bytes]
+ *   columns:   for each stock the prices (8 bytes each) then the quantities (4 bytes each) at each timeIndex
+ * A string is [length: 2 bytes] [UTF-8 bytes]; the columns start at a multiple of 8 bytes.
+ *
+ * An Exchange only reads the header and the directory; its tapes (see MappedTape) read the columns in place, so the
+ * Exchanges on one machine share a single copy of the tapes in the page cache instead of each parsing the csv files
+ * into its own heap.
+ */
+class MarketDataFile {
+
+    static final String DEFAULT_FILE = "market_data.bin";
+
+    private static final int MAGIC = 0x4D4B5444;    // "MKTD"
+    private static final int VERSION = 1;
+
+    /**
+     * Converts the csv files into a market data file. The file is written next to the target and then renamed, so
+     * Exchanges mapping the former file keep reading a consistent one.
+     *
+     * @param priceFile the csv file of the prices
+     * @param qtyFile   the csv file of the quantities
+     * @param dataFile  the market data file to be written
+     * @throws IOException if a file cannot be read or written
+     */
+    static void convert(String priceFile, String qtyFile, String dataFile) throws IOException {
+
+        final int EXCHANGE_LINE = 3,
+                STOCK_LINE = 4;
+
+        final int DATE_COL = 0,
+                TIME_COL = 1;
+
+        List<String> timestamps = new ArrayList<>();
+        List<String> stockNames = new ArrayList<>();
+        List<String> exchangeNames = new ArrayList<>();
+        List<Integer> columnIndices = new ArrayList<>();
+        List<double[]> prices = new ArrayList<>();   // one row per timestamp, one value per stock
+        List<int[]> quantities = new ArrayList<>();
+
+        CSVReader csvPriceReader = new CSVReader(priceFile);
+        CSVReader csvQtyReader = new CSVReader(qtyFile);
+        try {
+            List<String> exchangeLine = null;
+            while (csvPriceReader.hasNextLine()) {
+                csvQtyReader.hasNextLine();
+                List<String> line = csvPriceReader.readLine();
+                List<String> qtyLine = csvQtyReader.readLine();
+
+                if (csvPriceReader.getCurrentLineIndex() == EXCHANGE_LINE) {
+                    exchangeLine = line;
+                    continue;
+                }
+
+                // the same names as Exchange.loadStock: keep only letters
+                if (csvPriceReader.getCurrentLineIndex() == STOCK_LINE) {
+                    for (int i = TIME_COL + 1; i < line.size(); i++) {
+                        String stockName = line.get(i).replaceAll("[^A-Za-z]+", "");
+                        String exchangeName = i < exchangeLine.size() ? exchangeLine.get(i).replaceAll("[^A-Za-z]+", "") : "";
+                        if (!stockName.isEmpty() && !exchangeName.isEmpty()) {
+                            stockNames.add(stockName);
+                            exchangeNames.add(exchangeName);
+                            columnIndices.add(i);
+                        }
+                    }
+                    continue;
+                }
+
+                if (csvPriceReader.getCurrentLineIndex() > STOCK_LINE) {
+                    timestamps.add(line.get(DATE_COL) + " " + line.get(TIME_COL));
+                    double[] priceRow = new double[columnIndices.size()];
+                    int[] qtyRow = new int[columnIndices.size()];
+                    for (int stock = 0; stock < columnIndices.size(); stock++) {
+                        int columnIndex = columnIndices.get(stock);
+                        try {
+                            priceRow[stock] = Double.parseDouble(line.get(columnIndex));
+                        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                            priceRow[stock] = Double.NaN;   // not a stock column, e.g. the column of the row labels
+                        }
+                        try {
+                            qtyRow[stock] = Integer.parseInt(qtyLine.get(columnIndex));
+                        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                            qtyRow[stock] = 0;
+                        }
+                    }
+                    prices.add(priceRow);
+                    quantities.add(qtyRow);
+                }
+            }
+        } finally {
+            csvPriceReader.close();
+            csvQtyReader.close();
+        }
+
+        // drops the columns without a price at each timestamp, which Exchange.loadStock could not read either
+        List<Integer> stocks = new ArrayList<>();
+        for (int stock = 0; stock < columnIndices.size(); stock++) {
+            boolean hasPrices = true;
+            for (double[] priceRow : prices) {
+                hasPrices &= !Double.isNaN(priceRow[stock]);
+            }
+            if (hasPrices) {
+                stocks.add(stock);
+            }
+        }
+
+        int numTimestamps = timestamps.size();
+        int numStocks = stocks.size();
+
+        // the size of the header, the timestamps and the directory, to place the columns after them
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(numTimestamps);
+        header.writeInt(numStocks);
+        for (String timestamp : timestamps) {
+            writeString(header, timestamp);
+        }
+        int directoryStart = header.size();
+        for (int stock : stocks) {
+            writeString(header, stockNames.get(stock));
+            writeString(header, exchangeNames.get(stock));
+            header.writeLong(0);
+            header.writeLong(0);
+        }
+
+        long columnsStart = (header.size() + 7) / 8 * 8;
+        long columnSize = (long) numTimestamps * 8 + ((long) numTimestamps * 4 + 7) / 8 * 8;
+        if (columnsStart + columnSize * numStocks > Integer.MAX_VALUE) {
+            throw new IOException("Market data too large to be mapped: " + numStocks + " stocks, " + numTimestamps + " timestamps");
+        }
+
+        // fills in the offsets of the directory now that they are known
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+        headerBuffer.position(directoryStart);
+        for (int stock = 0; stock < numStocks; stock++) {
+            skipString(headerBuffer);
+            skipString(headerBuffer);
+            long priceOffset = columnsStart + columnSize * stock;
+            headerBuffer.putLong(priceOffset);
+            headerBuffer.putLong(priceOffset + (long) numTimestamps * 8);
+        }
+
+        Path target = Paths.get(dataFile);
+        Path temporary = Paths.get(dataFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary.toFile()), 1 << 16))) {
+            out.write(headerBuffer.array());
+            for (long i = headerBuffer.capacity(); i < columnsStart; i++) {
+                out.writeByte(0);
+            }
+            for (int stock : stocks) {
+                for (int time = 0; time < numTimestamps; time++) {
+                    out.writeDouble(prices.get(time)[stock]);
+                }
+                for (int time = 0; time < numTimestamps; time++) {
+                    out.writeInt(quantities.get(time)[stock]);
+                }
+                if (numTimestamps % 2 == 1) {
+                    out.writeInt(0);
+                }
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the market data file and loads the stocks of an Exchange, with their tapes reading the mapped file.
+     *
+     * @param dataFile       the market data file
+     * @param exchangeName   the name of the Exchange, e.g. "Shenzhen"
+     * @param stockTable     filled with <stock name, stock object> for the stocks of this Exchange
+     * @param timeIndexTable filled with the timeIndex and its corresponding timestamp
+     * @throws IOException if the file cannot be read or is not a market data file
+     */
+    static void load(String dataFile, String exchangeName, Hashtable<String, Stock> stockTable,
+                     Hashtable<Integer, String> timeIndexTable) throws IOException {
+
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Paths.get(dataFile), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (data.getInt() != MAGIC) {
+                throw new IOException(dataFile + " is not a market data file");
+            }
+            int version = data.getInt();
+            if (version != VERSION) {
+                throw new IOException(dataFile + " has version " + version + ", expected " + VERSION);
+            }
+            int numTimestamps = data.getInt();
+            int numStocks = data.getInt();
+
+            for (int time = 1; time <= numTimestamps; time++) {
+                timeIndexTable.put(time, readString(data));
+            }
+            for (int i = 0; i < numStocks; i++) {
+                String stockName = readString(data);
+                String stockExchange = readString(data);
+                long priceOffset = data.getLong();
+                long qtyOffset = data.getLong();
+                if (stockExchange.equals(exchangeName)) {
+                    if (qtyOffset + (long) numTimestamps * 4 > data.capacity()) {
+                        throw new IOException(dataFile + " is truncated");
+                    }
+                    Tape tape = new MappedTape(stockName, data, (int) priceOffset, (int) qtyOffset, numTimestamps);
+                    stockTable.put(stockName, new Stock(stockName, exchangeName, tape));
+                }
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException(dataFile + " is truncated");
+        }
+    }
+
+    /**
+     * Whether the market data file exists and was written after the csv files were last changed.
+     */
+    static boolean isUpToDate(String dataFile, String priceFile, String qtyFile) {
+        File data = new File(dataFile);
+        return data.isFile()
+                && data.lastModified() >= new File(priceFile).lastModified()
+                && data.lastModified() >= new File(qtyFile).lastModified();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) {
+
+        Options options = new Options(args);
+        String priceFile = options.get("priceFile", "price_stocks.csv");
+        String qtyFile = options.get("qtyFile", "qty_stocks.csv");
+        String dataFile = options.get("dataFile", DEFAULT_FILE);
+
+        try {
+            long start = System.nanoTime();
+            convert(priceFile, qtyFile, dataFile);
+            System.out.printf("Converted %s and %s into %s (%d bytes) in %d ms%n", priceFile, qtyFile, dataFile,
+                    new File(dataFile).length(), (System.nanoTime() - start) / 1000000);
+        } catch (FileNotFoundException e) {
+            System.out.println("Cannot find csv file: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("Failed to convert the csv files: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
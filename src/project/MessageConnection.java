@@ -0,0 +1,220 @@
+package project;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.json.*;
+
+/**
+ * MessageConnection: sends and receives messages over a socket, either as JSON lines or in the binary encoding of
+ * BinaryCodec.
+ *
+ * The protocol is chosen by the side opening the connection: a binary connection starts with BINARY_PREAMBLE, a JSON
+ * connection starts directly with its first message. The accepting side looks at the first byte it receives, so JSON
+ * clients keep working with Exchanges and Servers that also accept binary connections.
+ */
+class MessageConnection {
+
+    static final int BINARY_PREAMBLE = 0xB1;      // never the first byte of a JSON message
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+    private Socket socket;
+    private BufferedInputStream in;
+    private OutputStream out;
+
+    private Boolean binary;                       // null until the first byte of an accepted connection is read
+
+    private MessageConnection(Socket socket, Boolean binary) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.binary = binary;
+    }
+
+    /**
+     * Wraps an accepted socket. The protocol is detected when the first message is read.
+     *
+     * @param socket the accepted socket
+     * @return the connection
+     * @throws IOException if the socket streams cannot be opened
+     */
+    static MessageConnection accept(Socket socket) throws IOException {
+        return new MessageConnection(socket, null);
+    }
+
+    /**
+     * Opens a connection to an Exchange or a Server.
+     *
+     * @param host   the host name
+     * @param port   the port number
+     * @param binary true for the binary protocol, false for JSON lines
+     * @return the connection
+     * @throws IOException if the connection cannot be opened
+     */
+    static MessageConnection open(String host, int port, boolean binary) throws IOException {
+        // opened through a channel, so that isReusable() can see whether the other side closed the connection
+        Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+        MessageConnection connection = new MessageConnection(socket, binary);
+        if (binary) {
+            connection.out.write(BINARY_PREAMBLE);
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @return the message, or null if the connection was closed
+     * @throws IOException   if the connection failed
+     * @throws JSONException if the message is not valid
+     */
+    JSONObject read() throws IOException {
+
+        if (this.binary == null) {
+            this.in.mark(1);
+            int first = this.in.read();
+            if (first == -1) {
+                return null;
+            }
+            this.binary = first == BINARY_PREAMBLE;
+            if (!this.binary) {
+                this.in.reset();
+            }
+        }
+
+        if (this.binary) {
+            int length = readLength();
+            if (length == -1) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return BinaryCodec.decode(bytes, 0, length);
+        } else {
+            String line = readLine();
+            if (line == null) {
+                return null;
+            }
+            return new JSONObject(line);
+        }
+    }
+
+    /**
+     * Writes a message and flushes it.
+     *
+     * @param message the message
+     * @throws IOException if the connection failed
+     */
+    void write(JSONObject message) throws IOException {
+        synchronized (this.out) {
+            if (Boolean.TRUE.equals(this.binary)) {
+                byte[] bytes = BinaryCodec.encode(message);
+                this.out.write(bytes.length >>> 24);
+                this.out.write(bytes.length >>> 16);
+                this.out.write(bytes.length >>> 8);
+                this.out.write(bytes.length);
+                this.out.write(bytes);
+            } else {
+                this.out.write((message.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            this.out.flush();
+        }
+    }
+
+    Socket getSocket() {
+        return this.socket;
+    }
+
+    /**
+     * Checks a connection before reusing it for a new request: it must be open, must not have been closed by the other
+     * side and must not have received anything since the last response was read.
+     *
+     * @return true if the connection can be reused
+     */
+    boolean isReusable() {
+        try {
+            if (this.socket.isClosed() || this.socket.isInputShutdown() || this.in.available() != 0) {
+                return false;
+            }
+            SocketChannel channel = this.socket.getChannel();
+            if (channel == null) {
+                return true;
+            }
+            // a read that does not wait: 0 bytes while the connection is open, -1 once the other side closed it
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean isBinary() {
+        return Boolean.TRUE.equals(this.binary);
+    }
+
+    void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    // reads the 4 byte length prefix of a binary message, or returns -1 if the connection was closed before it
+    private int readLength() throws IOException {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = this.in.read();
+            if (b == -1) {
+                if (i == 0) {
+                    return -1;
+                }
+                throw new EOFException("Connection closed in the middle of a message");
+            }
+            length = length << 8 | b;
+        }
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid message length " + length);
+        }
+        return length;
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = this.in.read(bytes, read, bytes.length - read);
+            if (n == -1) {
+                throw new EOFException("Connection closed in the middle of a message");
+            }
+            read += n;
+        }
+    }
+
+    // reads a JSON line, like BufferedReader.readLine()
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = this.in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String result = line.toString("UTF-8");
+        if (result.endsWith("\r")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,470 @@
+package project;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.*;
+
+/**
+ * NetworkBenchmarks: the benchmarks of the connections of Clients and Exchanges and of their protocol.
+ * Run by Benchmark: java Benchmark --benchmark=<name> [--key=value ...]
+ *
+ * connections: holds a number of idle client connections on an Exchange while a few clients send orders as fast as
+ *              possible, then checks that every held connection still gets an answer.
+ *              Start the Exchange with --ioMode=thread or --ioMode=nio and compare.
+ *              Options: --exchangeName=Shenzhen --stock=JINGGONGSCIENCE --connections=1000 --clients=20 --seconds=10
+ *                       --pipeline=0 (orders in flight per client, 0 to wait for each response)
+ *
+ * forwarded:   clients connected to one Exchange buy and sell a stock listed on another Exchange as fast as possible, so
+ *              every order is forwarded. Start the Exchanges with --poolSize=0 --routeCacheSize=0 (a new connection and a
+ *              Server lookup per forwarded order) or with the defaults and compare. --pid=<pid of the forwarding
+ *              Exchange> also prints its open file descriptors before and after.
+ *              Options: --exchangeName=London --stock=JINGGONGSCIENCE --clients=20 --seconds=10
+ *
+ * latency:     the load of scenario 5 (--clients=10) or scenario 6 (--clients=1000 --rounds=2): random clients connected
+ *              to random exchanges send random orders. Prints the p50/p99 latency of the orders, and the peak thread
+ *              count and RSS of the processes given in --pids (read from /proc).
+ *              Start the Servers and Exchanges with --threadMode=platform or --threadMode=virtual and compare.
+ *              Options: --clients=10 --rounds=10 --minPeriod=2000 --maxPeriod=5000 --pids=<pid>,<pid>,...
+ *                       --exchanges=<exchange>,<exchange>,... (default: all exchanges)
+ *
+ * replay:      clients send orders to an Exchange as fast as possible while its clock replays the tape. Start the Servers
+ *              with --clock=real, --clock=accelerated --speed=<N> or --clock=step and compare. Prints the orders
+ *              completed and failed in each slice of the run, so a slowdown or failures as the tape goes by show up.
+ *              Options: --exchangeName=Shenzhen --stock=JINGGONGSCIENCE --clients=4 --seconds=20 --slices=10
+ *
+ * codec:       micro benchmark of encoding and decoding an order, a response and a registration with JSON and with
+ *              BinaryCodec (runs in this process). Options: --iterations=1000000
+ */
+class NetworkBenchmarks {
+
+    private Options options;
+    private boolean binaryProtocol;   // whether the benchmark clients use the binary protocol (--protocol=binary)
+
+    NetworkBenchmarks(Options options) {
+        this.options = options;
+        this.binaryProtocol = options.get("protocol", "json").equals("binary");
+    }
+
+    void connections() {
+
+        String exchangeName = this.options.get("exchangeName", "Shenzhen");
+        String stock = this.options.get("stock", "JINGGONGSCIENCE");
+        int numConnections = this.options.getInt("connections", 1000);
+        int numClients = this.options.getInt("clients", 20);
+        int seconds = this.options.getInt("seconds", 10);
+        int pipeline = this.options.getInt("pipeline", 0);
+        int port = new ExchangeUtils(exchangeName).getPort();
+
+        // 1. opens the idle connections and keeps them open
+        ArrayList<MessageConnection> idleConnections = new ArrayList<>();
+        for (int i = 0; i < numConnections; i++) {
+            try {
+                idleConnections.add(MessageConnection.open("localhost", port, this.binaryProtocol));
+            } catch (IOException e) {
+                System.out.println("Failed to open connection " + (i + 1) + ": " + e.getMessage());
+                break;
+            }
+        }
+        System.out.println("Opened " + idleConnections.size() + " idle connections to " + exchangeName);
+
+        // 2. sends orders from the active clients, alternating buy and sell so that the quantity stays the same
+        long completed = sendOrders(exchangeName, stock, numClients, seconds, pipeline);
+
+        // 3. checks that the idle connections are still served
+        int responsive = 0;
+        for (MessageConnection connection : idleConnections) {
+            try {
+                connection.write(order(0, "S", stock, 0));
+                if (connection.read() != null) {
+                    responsive++;
+                }
+                connection.close();
+            } catch (IOException e) {
+                // counted as not responsive
+            }
+        }
+
+        System.out.println("Connections held: " + responsive + " / " + numConnections);
+        System.out.println("Requests completed: " + completed + " in " + seconds + " s by " + numClients + " clients");
+        System.out.println("Requests per second: " + String.format("%1$,.1f", completed / (double) seconds));
+    }
+
+    void forwarded() {
+
+        String exchangeName = this.options.get("exchangeName", "London");
+        String stock = this.options.get("stock", "JINGGONGSCIENCE");
+        int numClients = this.options.getInt("clients", 20);
+        int seconds = this.options.getInt("seconds", 10);
+        String pid = this.options.get("pid", "");
+
+        int fdsBefore = pid.isEmpty() ? -1 : Benchmark.countFileDescriptors(pid);
+        long completed = sendOrders(exchangeName, stock, numClients, seconds, 0);
+        int fdsAfter = pid.isEmpty() ? -1 : Benchmark.countFileDescriptors(pid);
+
+        System.out.println("Forwarded orders completed: " + completed + " in " + seconds + " s by " + numClients + " clients");
+        System.out.println("Forwarded orders per second: " + String.format("%1$,.1f", completed / (double) seconds));
+        if (!pid.isEmpty()) {
+            System.out.println("Open file descriptors of " + exchangeName + ": " + fdsBefore + " before, " + fdsAfter + " after");
+        }
+    }
+
+    void latency() {
+
+        int numClients = this.options.getInt("clients", 10);
+        int rounds = this.options.getInt("rounds", 10);
+        int minPeriod = this.options.getInt("minPeriod", 2000);
+        int maxPeriod = this.options.getInt("maxPeriod", 5000);
+        String[] pids = this.options.get("pids", "").split(",");
+
+        ArrayList<String> stocks = new ArrayList<>();
+        ArrayList<String> exchanges = new ArrayList<>();
+        Client.readTable(stocks, exchanges);
+        if (!this.options.get("exchanges", "").isEmpty()) {
+            // only connects the clients to the given exchanges, e.g. when not all of them are running
+            exchanges = new ArrayList<>(Arrays.asList(this.options.get("exchanges", "").split(",")));
+        }
+        ArrayList<String> clientExchanges = exchanges;
+
+        // samples the thread count and the RSS of the given processes while the clients are running
+        Hashtable<String, Integer> maxThreads = new Hashtable<>();
+        Hashtable<String, Integer> maxRssKB = new Hashtable<>();
+        Thread monitor = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (String pid : pids) {
+                    if (!pid.isEmpty()) {
+                        sampleProcess(pid, maxThreads, maxRssKB);
+                    }
+                }
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        monitor.start();
+
+        ArrayList<Long> latencies = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= numClients; i++) {
+            int clientID = i;
+            Thread thread = new Thread(() -> {
+                String exchangeName = clientExchanges.get(ThreadLocalRandom.current().nextInt(clientExchanges.size()));
+                int port = new ExchangeUtils(exchangeName).getPort();
+                try {
+                    MessageConnection connection = MessageConnection.open("localhost", port, this.binaryProtocol);
+                    for (int round = 0; round < rounds; round++) {
+                        Thread.sleep(ThreadLocalRandom.current().nextInt(minPeriod, maxPeriod + 1));
+
+                        String stock = stocks.get(ThreadLocalRandom.current().nextInt(stocks.size()));
+                        String action = ThreadLocalRandom.current().nextBoolean() ? "B" : "S";
+                        int qty = ThreadLocalRandom.current().nextInt(1, 401);
+
+                        long begin = System.nanoTime();
+                        connection.write(order(clientID, action, stock, qty));
+                        if (connection.read() == null) {
+                            System.out.println("Client " + clientID + ": connection closed by " + exchangeName);
+                            return;
+                        }
+                        long latency = System.nanoTime() - begin;
+                        synchronized (latencies) {
+                            latencies.add(latency);
+                        }
+                    }
+                    connection.close();
+                } catch (IOException e) {
+                    System.out.println("Client " + clientID + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        monitor.interrupt();
+
+        Collections.sort(latencies);
+        System.out.println("Orders completed: " + latencies.size() + " by " + numClients + " clients");
+        if (!latencies.isEmpty()) {
+            System.out.println("Latency p50: " + String.format("%1$,.2f", Benchmark.percentile(latencies, 50) / 1e6) + " ms");
+            System.out.println("Latency p99: " + String.format("%1$,.2f", Benchmark.percentile(latencies, 99) / 1e6) + " ms");
+            System.out.println("Latency max: " + String.format("%1$,.2f", latencies.get(latencies.size() - 1) / 1e6) + " ms");
+        }
+        for (String pid : maxThreads.keySet()) {
+            System.out.println("Process " + pid + ": peak threads " + maxThreads.get(pid) + ", peak RSS " + maxRssKB.get(pid) / 1024 + " MB");
+        }
+    }
+
+    void replay() {
+
+        String exchangeName = this.options.get("exchangeName", "Shenzhen");
+        String stock = this.options.get("stock", "JINGGONGSCIENCE");
+        int numClients = this.options.getInt("clients", 4);
+        int seconds = this.options.getInt("seconds", 20);
+        int numSlices = Math.max(1, this.options.getInt("slices", 10));
+        int port = new ExchangeUtils(exchangeName).getPort();
+
+        // the orders completed and failed in each slice of the run
+        AtomicLong[] completed = new AtomicLong[numSlices];
+        AtomicLong[] failed = new AtomicLong[numSlices];
+        for (int i = 0; i < numSlices; i++) {
+            completed[i] = new AtomicLong();
+            failed[i] = new AtomicLong();
+        }
+        long sliceMillis = Math.max(1, seconds * 1000L / numSlices);
+        long start = System.currentTimeMillis();
+        long deadline = start + sliceMillis * numSlices;
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= numClients; i++) {
+            int clientID = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    MessageConnection connection = MessageConnection.open("localhost", port, this.binaryProtocol);
+                    boolean buy = true;
+                    long now;
+                    while ((now = System.currentTimeMillis()) < deadline) {
+                        int slice = (int) ((now - start) / sliceMillis);
+                        connection.write(order(clientID, buy ? "B" : "S", stock, 1));
+                        JSONObject response = connection.read();
+                        if (response == null) {
+                            System.out.println("Client " + clientID + ": connection closed by " + exchangeName);
+                            failed[slice].incrementAndGet();
+                            return;
+                        }
+                        if (response.optString("result").equals("Succeeded")) {
+                            completed[slice].incrementAndGet();
+                        } else {
+                            failed[slice].incrementAndGet();
+                        }
+                        buy = !buy;
+                    }
+                    connection.close();
+                } catch (IOException e) {
+                    System.out.println("Client " + clientID + ": " + e.getMessage());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Benchmark.joinAll(threads);
+
+        long totalCompleted = 0;
+        long totalFailed = 0;
+        System.out.println("Orders to " + exchangeName + " by " + numClients + " clients, per slice of " + sliceMillis + " ms:");
+        for (int i = 0; i < numSlices; i++) {
+            totalCompleted += completed[i].get();
+            totalFailed += failed[i].get();
+            System.out.println(String.format("  %6.1f s: %8d completed %6d failed %10.1f orders/s", i * sliceMillis / 1000.0,
+                    completed[i].get(), failed[i].get(), completed[i].get() * 1000.0 / sliceMillis));
+        }
+        System.out.println("Total: " + totalCompleted + " completed, " + totalFailed + " failed, "
+                + String.format("%1$,.1f", totalCompleted * 1000.0 / (sliceMillis * numSlices)) + " orders/s");
+    }
+
+    void codec() {
+
+        int iterations = this.options.getInt("iterations", 1000000);
+
+        HashMap<String, Object> order = new HashMap<>();
+        order.put("clientName", 1);
+        order.put("src", "client");
+        order.put("action", "B");
+        order.put("qty", 100);
+        order.put("stock", "JINGGONGSCIENCE");
+
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("action", "B");
+        response.put("qty", 100);
+        response.put("stock", "JINGGONGSCIENCE");
+        response.put("result", "Succeeded");
+
+        HashMap<String, Object> registration = new HashMap<>();
+        registration.put("Type", "Registration");
+        registration.put("ExchangeName", "Shenzhen");
+        registration.put("Address", 10012);
+        ArrayList<String> stockSet = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            stockSet.add("STOCK" + i);
+        }
+        registration.put("StockSet", stockSet);
+
+        ArrayList<String> names = new ArrayList<>(Arrays.asList("order", "response", "registration"));
+        ArrayList<HashMap<String, Object>> messages = new ArrayList<>();
+        messages.add(order);
+        messages.add(response);
+        messages.add(registration);
+
+        for (int m = 0; m < messages.size(); m++) {
+            HashMap<String, Object> message = messages.get(m);
+            // registrations are sent once per exchange, so fewer iterations are enough
+            int n = names.get(m).equals("registration") ? iterations / 20 : iterations;
+
+            String json = new JSONObject(message).toString();
+            byte[] binary = BinaryCodec.encode(new JSONObject(message));
+
+            // the JSON path as it was: HashMap -> JSONObject -> String (and back by parsing the String)
+            long checksum = 0;
+            for (int round = 0; round < 2; round++) {   // the first round warms up the JIT
+                long begin = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    checksum += new JSONObject(message).toString().length();
+                }
+                long jsonEncode = System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    checksum += new JSONObject(json).length();
+                }
+                long jsonDecode = System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    checksum += BinaryCodec.encode(new JSONObject(message)).length;
+                }
+                long binaryEncode = System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    checksum += BinaryCodec.decode(binary, 0, binary.length).length();
+                }
+                long binaryDecode = System.nanoTime() - begin;
+
+                if (round == 1) {
+                    System.out.println(names.get(m) + " (" + json.length() + " bytes JSON, " + (binary.length + 4) + " bytes binary):");
+                    System.out.println("  JSON   encode " + String.format("%1$,.0f", jsonEncode / (double) n) + " ns, decode "
+                            + String.format("%1$,.0f", jsonDecode / (double) n) + " ns");
+                    System.out.println("  binary encode " + String.format("%1$,.0f", binaryEncode / (double) n) + " ns, decode "
+                            + String.format("%1$,.0f", binaryDecode / (double) n) + " ns");
+                }
+            }
+            if (checksum == 0) {
+                System.out.println();
+            }
+        }
+    }
+
+    // clients send orders as fast as possible for the given time, alternating buy and sell so that the quantity stays
+    // the same, returns the number of orders completed
+    private long sendOrders(String exchangeName, String stock, int numClients, int seconds, int pipeline) {
+
+        int port = new ExchangeUtils(exchangeName).getPort();
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= numClients; i++) {
+            int clientID = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    MessageConnection connection = MessageConnection.open("localhost", port, this.binaryProtocol);
+                    if (pipeline > 0) {
+                        pipelinedOrders(clientID, connection, stock, pipeline, deadline, completed);
+                        return;
+                    }
+                    boolean buy = true;
+                    while (System.currentTimeMillis() < deadline) {
+                        connection.write(order(clientID, buy ? "B" : "S", stock, 1));
+                        if (connection.read() == null) {
+                            System.out.println("Client " + clientID + ": connection closed by " + exchangeName);
+                            return;
+                        }
+                        completed.incrementAndGet();
+                        buy = !buy;
+                    }
+                    connection.close();
+                } catch (IOException e) {
+                    System.out.println("Client " + clientID + ": " + e.getMessage());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return completed.get();
+    }
+
+    // sends orders tagged with a RequestID without waiting for the responses, with at most "pipeline" in flight
+    private void pipelinedOrders(int clientID, MessageConnection connection, String stock, int pipeline, long deadline,
+                                 AtomicLong completed) throws IOException {
+
+        Semaphore window = new Semaphore(pipeline);
+        Thread reader = new Thread(() -> {
+            try {
+                while (connection.read() != null) {
+                    completed.incrementAndGet();
+                    window.release();
+                }
+            } catch (IOException e) {
+                // closed below when the benchmark is over
+            }
+        });
+        reader.start();
+
+        boolean buy = true;
+        int requestID = 0;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                window.acquire();
+                JSONObject msg = order(clientID, buy ? "B" : "S", stock, 1);
+                msg.put("RequestID", ++requestID);
+                connection.write(msg);
+                buy = !buy;
+            }
+            // waits for the responses still in flight
+            window.tryAcquire(pipeline, 5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // stops sending
+        }
+        connection.close();
+    }
+
+    // reads the "Threads:" and "VmRSS:" lines of /proc/<pid>/status and keeps the maximum seen so far
+    private static void sampleProcess(String pid, Hashtable<String, Integer> maxThreads, Hashtable<String, Integer> maxRssKB) {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].equals("Threads:")) {
+                    maxThreads.merge(pid, Integer.parseInt(fields[1]), Math::max);
+                } else if (fields[0].equals("VmRSS:")) {
+                    maxRssKB.merge(pid, Integer.parseInt(fields[1]), Math::max);
+                }
+            }
+        } catch (IOException e) {
+            // the process is gone or this is not Linux
+        }
+    }
+
+    // builds a client order in the same format as Client
+    private static JSONObject order(int clientID, String action, String stock, int qty) {
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("clientName", clientID);
+        hm.put("src", "client");
+        hm.put("action", action);
+        hm.put("qty", qty);
+        hm.put("stock", stock);
+        return new JSONObject(hm);
+    }
+}
@@ -0,0 +1,394 @@
+package project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.json.*;
+
+/**
+ * NioFrontEnd: a selector based acceptor/reader for an Exchange ("--ioMode=nio").
+ *
+ * One acceptor thread accepts connections and hands them round-robin to a small number of event loops. Each event
+ * loop reads from its connections without blocking and splits the bytes into messages: newline framed JSON, or
+ * length prefixed binary messages when the connection starts with MessageConnection.BINARY_PREAMBLE. Complete
+ * messages are handed to a pool of worker threads running the transaction logic (which may still block, e.g. when
+ * asking the Server for an address), and the responses are written back by the event loop.
+ */
+class NioFrontEnd {
+
+    /**
+     * The transaction logic that turns a request message into a response message.
+     */
+    interface MessageHandler {
+        JSONObject handle(JSONObject message);
+    }
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private String name;                          // the name of the Exchange, for printing messages
+    private ServerSocketChannel serverChannel;    // the channel accepting incoming connections
+    private MessageHandler handler;               // the transaction logic of the Exchange
+    private EventLoop[] eventLoops;               // the event loops reading and writing the accepted connections
+    private ExecutorService workers;              // the threads running the transaction logic
+
+    /**
+     * Instantiates a new NioFrontEnd.
+     *
+     * @param name          the name of the Exchange
+     * @param serverChannel the bound server socket channel of the Exchange
+     * @param handler       the transaction logic
+     * @param numEventLoops the number of event loop threads
+     * @param workers       the threads running the transaction logic
+     */
+    NioFrontEnd(String name, ServerSocketChannel serverChannel, MessageHandler handler, int numEventLoops, ExecutorService workers) {
+        this.name = name;
+        this.serverChannel = serverChannel;
+        this.handler = handler;
+        this.eventLoops = new EventLoop[numEventLoops];
+        this.workers = workers;
+    }
+
+    /**
+     * Starts the event loops, then accepts connections in an infinite loop on the calling thread.
+     */
+    void run() throws IOException {
+
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new EventLoop();
+            Thread thread = new Thread(this.eventLoops[i], this.name + "-event-loop-" + i);
+            thread.start();
+        }
+
+        Log.info("{}: Accepting connections with {} event loops", this.name, this.eventLoops.length);
+
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = this.serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                this.eventLoops[next].register(channel);
+                next = (next + 1) % this.eventLoops.length;
+
+            } catch (IOException e) {
+                Log.warn("{}: Failed to accept a new request: {}", this.name, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * An event loop owns a Selector and all the connections registered with it.
+     */
+    private class EventLoop implements Runnable {
+
+        private Selector selector;
+        private ConcurrentLinkedQueue<SocketChannel> newChannels;     // accepted, waiting to be registered
+        private ConcurrentLinkedQueue<Connection> pendingWrites;      // have responses waiting to be written
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+            this.newChannels = new ConcurrentLinkedQueue<>();
+            this.pendingWrites = new ConcurrentLinkedQueue<>();
+        }
+
+        void register(SocketChannel channel) {
+            this.newChannels.add(channel);
+            this.selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            this.pendingWrites.add(connection);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = this.newChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+                            key.attach(new Connection(this, channel, key));
+                        } catch (ClosedChannelException e) {
+                            // closed by the peer before being registered
+                        }
+                    }
+
+                    Connection connection;
+                    while ((connection = this.pendingWrites.poll()) != null) {
+                        connection.flush();
+                    }
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("{}: Event loop failed to select: {}", name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one accepted connection: the partially read message, the messages waiting for the transaction
+     * logic and the responses waiting to be written.
+     * Messages of a connection are processed one at a time so that the responses are sent back in order, except
+     * pipelined messages (carrying a "RequestID"), which are processed concurrently and answered as they complete.
+     */
+    private class Connection {
+
+        private EventLoop eventLoop;
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer;
+        private byte[] pending;                          // bytes read but not yet framed into a complete message
+        private int pendingSize;
+        private Boolean binary;                          // null until the first byte is read
+
+        private ArrayDeque<byte[]> inbox;                // complete messages waiting for the transaction logic
+        private boolean processing;                      // whether a worker is currently draining the inbox
+        private ConcurrentLinkedQueue<ByteBuffer> outbox; // responses waiting to be written
+
+        Connection(EventLoop eventLoop, SocketChannel channel, SelectionKey key) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.key = key;
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.pending = new byte[READ_BUFFER_SIZE];
+            this.pendingSize = 0;
+            this.binary = null;
+            this.inbox = new ArrayDeque<>();
+            this.processing = false;
+            this.outbox = new ConcurrentLinkedQueue<>();
+        }
+
+        /**
+         * Reads what is available on the channel and dispatches every complete message.
+         * Called on the event loop thread.
+         */
+        void read() {
+            int n;
+            try {
+                n = this.channel.read(this.readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n == -1) {
+                close();
+                return;
+            }
+
+            this.readBuffer.flip();
+            int start = this.readBuffer.position();
+            int end = this.readBuffer.limit();
+            if (this.binary == null && start < end) {
+                this.binary = (this.readBuffer.get(start) & 0xFF) == MessageConnection.BINARY_PREAMBLE;
+                if (this.binary) {
+                    start++;
+                }
+            }
+            if (this.pendingSize + end - start > this.pending.length) {
+                this.pending = Arrays.copyOf(this.pending, Math.max(this.pending.length * 2, this.pendingSize + end - start));
+            }
+            System.arraycopy(this.readBuffer.array(), start, this.pending, this.pendingSize, end - start);
+            this.pendingSize += end - start;
+            this.readBuffer.clear();
+
+            int consumed;
+            try {
+                consumed = this.binary ? frameBinary() : frameLines();
+            } catch (IOException e) {
+                Log.warn("{}: Closing connection: {}", name, e.getMessage());
+                close();
+                return;
+            }
+            System.arraycopy(this.pending, consumed, this.pending, 0, this.pendingSize - consumed);
+            this.pendingSize -= consumed;
+        }
+
+        // dispatches the complete newline terminated messages in pending, returns the number of bytes consumed
+        private int frameLines() {
+            int start = 0;
+            for (int i = 0; i < this.pendingSize; i++) {
+                if (this.pending[i] == '\n') {
+                    int lineEnd = i;
+                    if (lineEnd > start && this.pending[lineEnd - 1] == '\r') {
+                        lineEnd--;
+                    }
+                    if (lineEnd > start) {
+                        dispatch(Arrays.copyOfRange(this.pending, start, lineEnd));
+                    }
+                    start = i + 1;
+                }
+            }
+            return start;
+        }
+
+        // dispatches the complete length prefixed messages in pending, returns the number of bytes consumed
+        private int frameBinary() throws IOException {
+            int start = 0;
+            while (this.pendingSize - start >= 4) {
+                int length = (this.pending[start] & 0xFF) << 24 | (this.pending[start + 1] & 0xFF) << 16
+                        | (this.pending[start + 2] & 0xFF) << 8 | (this.pending[start + 3] & 0xFF);
+                if (length < 0) {
+                    throw new IOException("Invalid message length " + length);
+                }
+                if (this.pendingSize - start - 4 < length) {
+                    break;
+                }
+                dispatch(Arrays.copyOfRange(this.pending, start + 4, start + 4 + length));
+                start += 4 + length;
+            }
+            return start;
+        }
+
+        private void dispatch(byte[] message) {
+            synchronized (this) {
+                this.inbox.add(message);
+                if (this.processing) {
+                    return;
+                }
+                this.processing = true;
+            }
+            workers.execute(this::process);
+        }
+
+        /**
+         * Drains the inbox on a worker thread.
+         */
+        private void process() {
+            while (true) {
+                byte[] message;
+                synchronized (this) {
+                    message = this.inbox.poll();
+                    if (message == null) {
+                        this.processing = false;
+                        return;
+                    }
+                }
+
+                final JSONObject request;
+                try {
+                    if (this.binary) {
+                        request = BinaryCodec.decode(message, 0, message.length);
+                    } else {
+                        request = new JSONObject(new String(message, StandardCharsets.UTF_8));
+                    }
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+
+                if (request.has("RequestID")) {
+                    // pipelined: the client matches the response by its RequestID, so it does not wait for the others
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                respond(request);
+                            } catch (RuntimeException e) {
+                                Log.warn("{}: Failed to process request {}: {}", name, request.opt("RequestID"), e);
+                            }
+                        }
+                    });
+                    continue;
+                }
+
+                try {
+                    respond(request);
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        private void respond(JSONObject request) {
+            byte[] response;
+            if (this.binary) {
+                byte[] encoded = BinaryCodec.encode(handler.handle(request));
+                response = ByteBuffer.allocate(4 + encoded.length).putInt(encoded.length).put(encoded).array();
+            } else {
+                response = (handler.handle(request).toString() + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            send(response);
+        }
+
+        // same as a thread per connection: the connection is dropped and the client sees it closed
+        private void fail(RuntimeException e) {
+            Log.warn("{}: Failed to process request: {}", name, e);
+            close();
+            synchronized (this) {
+                this.inbox.clear();
+                this.processing = false;
+            }
+        }
+
+        private void send(byte[] response) {
+            this.outbox.add(ByteBuffer.wrap(response));
+            this.eventLoop.requestWrite(this);
+        }
+
+        /**
+         * Writes as many pending responses as the channel accepts, and waits for OP_WRITE if some are left.
+         * Called on the event loop thread.
+         */
+        void flush() {
+            if (!this.key.isValid()) {
+                return;
+            }
+            try {
+                ByteBuffer buffer;
+                while ((buffer = this.outbox.peek()) != null) {
+                    this.channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    this.outbox.poll();
+                }
+                this.key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            this.key.cancel();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package project;
+import java.util.Hashtable;
+
+/**
+ * Options: for parsing the "--key=value" command line arguments given to Exchange, Server and ClientTest.
+ */
+class Options {
+
+    private Hashtable<String, String> optionTable;  // stores <key, value> of each option, e.g. <"ioMode", "nio">
+
+    /**
+     * Instantiates a new Options by parsing all "--key=value" arguments.
+     *
+     * @param args the command line arguments
+     */
+    Options(String[] args) {
+        this.optionTable = new Hashtable<>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                continue;
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            this.optionTable.put(key, value);
+        }
+    }
+
+    String get(String key, String defaultValue) {
+        return this.optionTable.getOrDefault(key, defaultValue);
+    }
+
+    int getInt(String key, int defaultValue) {
+        String value = this.optionTable.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid value for option --{}: {}, using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
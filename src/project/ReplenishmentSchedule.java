@@ -0,0 +1,100 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+
+/**
+ * ReplenishmentSchedule: the quantities added to the stocks of an Exchange by the clock, computed from the tapes when
+ * the stocks are loaded.
+ *
+ * Only the timeIndexes having replenishments are stored, each with only the stocks whose quantity changes, so a tick
+ * of the clock costs nothing for the stocks that are not replenished (and most ticks replenish no stock at all).
+ */
+class ReplenishmentSchedule {
+
+    private Hashtable<Integer, Tick> tickTable;     // stores <timeIndex, replenishments at that timeIndex>
+
+    /**
+     * The replenishments of one timeIndex.
+     */
+    static class Tick {
+
+        final Stock[] stocks;                       // the replenished stocks
+        final String[] stockNames;                  // their names, for the log
+        final int[] quantities;                     // the quantity added to each of them
+
+        Tick(Stock[] stocks, int[] quantities) {
+            this.stocks = stocks;
+            this.quantities = quantities;
+            this.stockNames = new String[stocks.length];
+            for (int i = 0; i < stocks.length; i++) {
+                this.stockNames[i] = stocks[i].getName();
+            }
+        }
+    }
+
+    ReplenishmentSchedule() {
+        this.tickTable = new Hashtable<>();
+    }
+
+    /**
+     * Computes the schedule of stocks whose tapes are fully loaded.
+     *
+     * @param stocks the stocks of an Exchange
+     * @return the replenishments of each timeIndex of their tapes
+     */
+    static ReplenishmentSchedule of(Collection<Stock> stocks) {
+
+        HashMap<Integer, ArrayList<Stock>> stockLists = new HashMap<>();
+        HashMap<Integer, ArrayList<Integer>> qtyLists = new HashMap<>();
+        for (Stock stock : stocks) {
+            for (int time = 1; time <= stock.getLastTime(); time++) {
+                int qty = stock.getQty(time);
+                if (qty > 0) {
+                    stockLists.computeIfAbsent(time, t -> new ArrayList<>()).add(stock);
+                    qtyLists.computeIfAbsent(time, t -> new ArrayList<>()).add(qty);
+                }
+            }
+        }
+
+        ReplenishmentSchedule schedule = new ReplenishmentSchedule();
+        for (int time : stockLists.keySet()) {
+            ArrayList<Stock> stockList = stockLists.get(time);
+            ArrayList<Integer> qtyList = qtyLists.get(time);
+            int[] quantities = new int[qtyList.size()];
+            for (int i = 0; i < quantities.length; i++) {
+                quantities[i] = qtyList.get(i);
+            }
+            schedule.put(time, new Tick(stockList.toArray(new Stock[0]), quantities));
+        }
+        return schedule;
+    }
+
+    /**
+     * Gets the replenishments of a timeIndex.
+     *
+     * @param time the timeIndex
+     * @return the replenishments, or null if no stock is replenished
+     */
+    Tick get(int time) {
+        return this.tickTable.get(time);
+    }
+
+    // for a schedule filled while the tapes are read (see TapeStream)
+    void put(int time, Tick tick) {
+        this.tickTable.put(time, tick);
+    }
+
+    void remove(int time) {
+        this.tickTable.remove(time);
+    }
+
+    /**
+     * @return the number of timeIndexes having replenishments
+     */
+    int size() {
+        return this.tickTable.size();
+    }
+}
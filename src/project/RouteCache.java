@@ -0,0 +1,55 @@
+package project;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RouteCache: remembers the port of the Exchange listing each stock that is not listed in this Exchange
+ * ("--routeCacheSize=<number of stocks>").
+ *
+ * The routes are filled from the responses of the continent Server to askAddress, so the Server is only asked once
+ * per stock. They almost never change: a route is removed when forwarding an order to it fails, at the same time as
+ * the Server is notified, and the next order for that stock asks the Server again.
+ * The least recently used route is dropped when the cache is full. A size of 0 disables the cache.
+ */
+class RouteCache {
+
+    private int capacity;                                  // max number of routes kept
+    private LinkedHashMap<String, Integer> routeTable;     // stores <stock name, Exchange port>, least recently used first
+
+    /**
+     * Instantiates a new RouteCache.
+     *
+     * @param capacity the max number of routes kept, 0 to disable the cache
+     */
+    RouteCache(int capacity) {
+        this.capacity = capacity;
+        this.routeTable = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > RouteCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached port of the Exchange listing a stock.
+     *
+     * @param stock the stock name
+     * @return the port, or -1 if the route is not cached
+     */
+    synchronized int get(String stock) {
+        Integer port = this.routeTable.get(stock);
+        return port == null ? -1 : port;
+    }
+
+    synchronized void put(String stock, int port) {
+        if (this.capacity > 0 && port != -1) {
+            this.routeTable.put(stock, port);
+        }
+    }
+
+    synchronized void invalidate(String stock) {
+        this.routeTable.remove(stock);
+    }
+}
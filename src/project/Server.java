@@ -4,10 +4,19 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.*;
 
 /**
- *
+ * Usage: java Server --serverName=<Server Name> --startTime=<seconds> [--threadMode=platform|virtual]
+ *        [--protocol=json|binary] [--clock=real|accelerated|step] [--speed=<timestamps per second>]
+ *        [--unknownStockTtl=<milliseconds>] [--heartbeatMillis=<milliseconds>] [--phiThreshold=<phi>]
+ *        [--directory=ring|hash]
+ *        [--logLevel=debug|info|warn|error|off] [--logSample=<n>]
  */
 public class Server {
 
@@ -23,25 +32,45 @@ public class Server {
         serverAddressTable.put("AmericaBackup", 4445);
     }
 
+    private static final String LEFT_SERVER = "left server";    // the neighbours, as named by the heartbeat monitor
+    private static final String RIGHT_SERVER = "right server";
+    private static final String PRIMARY_SERVER = "primary server";    // watched by a backup
+    private static final int VIRTUAL_NODES = 100;                 // the points of each server on the hash ring
+
     private String serverName;  // the name of this Server
     private int portNumber;
     private ServerSocket serverSocket;
 
     private long startTime;
-
-    private int leftPort;    // the port number of the Server on the left
-    private int rightPort;   // the port number of the Server on the right
-
-    private Hashtable<String, Integer> exchangeAddressTable; // <ExchangeName, ExchangeAddress>
-    private Hashtable<String, HashSet<String>> exchangeStockTable;   // <ExchangeName, StockNames>
-    private HashSet<String> internalExchangeSet;  //
-
-    public Server(String serverName, long startTime) {
+    private TradingClock clock;  // how fast the timestamps go by, sent to the exchanges with the start time
+
+    private volatile int leftPort;    // the port number of the Server on the left
+    private volatile int rightPort;   // the port number of the Server on the right
+
+    private StockDirectory stockDirectory;  // the registered and cached exchanges, and <StockName, ExchangeName>
+    private ConcurrentHashMap<String, CompletableFuture<JSONObject>> inFlightLookups; // <StockName, answer of the ring>
+    private ServerLink serverLink;          // the long-lived connections to the neighbouring servers and their backups
+    private HashRing hashRing;              // the server owning the directory entry of each stock, null in "ring" mode
+    private DirectoryReplicator replicator; // streams the stock directory to the backup, or applies it on the backup
+    private HeartbeatMonitor heartbeatMonitor; // suspects registered exchanges and neighbours that stop answering, or null
+    private int heartbeatMillis;               // the time between two heartbeats to a node, 0 for no heartbeats
+    private Hashtable<String, Integer> registeredExchanges; // on a backup: <ExchangeName, port> of the exchanges
+                                                             // registered with it, watched while its primary is down
+    private volatile boolean primaryDown;      // on a backup: whether its primary server is suspected to be down
+
+    private ExecutorService connectionExecutor;   // runs the handler of each connection, on platform or virtual threads
+    private boolean binaryProtocol;               // whether the connections to other servers use the binary protocol
+
+    public Server(String serverName, long startTime, Options options) {
         this.serverName = serverName;
-        this.startTime = startTime;
-        this.exchangeAddressTable = new Hashtable<>();
-        this.exchangeStockTable = new Hashtable<>();
-        this.internalExchangeSet = new HashSet<>();
+        this.clock = new TradingClock(options);
+        this.startTime = startTime + this.clock.startDelayMillis();
+        this.stockDirectory = new StockDirectory(options.getInt("unknownStockTtl", 10000));
+        this.inFlightLookups = new ConcurrentHashMap<>();
+        this.connectionExecutor = ConnectionExecutors.create(options.get("threadMode", "platform"), serverName);
+        this.binaryProtocol = options.get("protocol", "json").equals("binary");
+        this.serverLink = new ServerLink(serverName, this.binaryProtocol);
+        this.replicator = new DirectoryReplicator(serverName, this.stockDirectory, this.serverLink);
 
         switch (serverName) {
             case "Asia":
@@ -70,121 +99,91 @@ public class Server {
                 break;
         }
 
+        // in "hash" mode, the stocks of each exchange are also published to the servers owning them, which answer the
+        // lookups of the other servers in one hop; the ring is still walked for notifications and when an owner misses
+        if (options.get("directory", "ring").equals("hash")) {
+            this.hashRing = new HashRing(VIRTUAL_NODES);
+            for (String name : serverAddressTable.keySet()) {
+                if (!name.endsWith("Backup")) {
+                    this.hashRing.add(name);
+                }
+            }
+        }
+
+        // a primary server keeps its backup up to date with the routes it learns
+        if (serverAddressTable.containsKey(serverName + "Backup")) {
+            this.replicator.start(serverAddressTable.get(serverName + "Backup"));
+        }
+
+        // drop down exchanges from the directory, and switch to the backup of a down neighbour, before traffic hits them
+        this.heartbeatMillis = options.getInt("heartbeatMillis", 1000);
+        if (this.heartbeatMillis > 0) {
+            double phiThreshold = Double.parseDouble(options.get("phiThreshold", "8"));
+            this.heartbeatMonitor = new HeartbeatMonitor(serverName, this.heartbeatMillis, phiThreshold);
+            if (this.leftPort != -1) {
+                this.heartbeatMonitor.watch(LEFT_SERVER, () -> serverLink.request(leftPort, HeartbeatMonitor.heartbeat()),
+                        () -> updateNextPort(leftPort), () -> {});
+            }
+            if (this.rightPort != -1) {
+                this.heartbeatMonitor.watch(RIGHT_SERVER, () -> serverLink.request(rightPort, HeartbeatMonitor.heartbeat()),
+                        () -> updateNextPort(rightPort), () -> {});
+            }
+            // the primary watches the exchanges of the continent, its backup only takes over while the primary is down,
+            // so that each exchange gets one heartbeat and one notification when it fails
+            if (isBackup()) {
+                this.registeredExchanges = new Hashtable<>();
+                String primaryName = serverName.substring(0, serverName.length() - "Backup".length());
+                int primaryPort = serverAddressTable.get(primaryName);
+                this.heartbeatMonitor.watch(PRIMARY_SERVER,
+                        () -> serverLink.request(primaryPort, HeartbeatMonitor.heartbeat()),
+                        () -> watchRegisteredExchanges(true), () -> watchRegisteredExchanges(false));
+            }
+            this.heartbeatMonitor.start();
+        }
+
         try {
             this.serverSocket = new ServerSocket(serverAddressTable.get(this.serverName));
-            System.out.println("Server " + this.serverName + " opened Server Socket on Port " + serverAddressTable.get(this.serverName));
+            Log.info("Server {} opened Server Socket on Port {}", this.serverName, serverAddressTable.get(this.serverName));
 
             while (true) {
                 Socket socket = serverSocket.accept();
 
-                long beginTime = this.startTime;
-                new Thread() {
+                connectionExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        try (
-                                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                                PrintWriter socketWriter = new PrintWriter(new BufferedOutputStream(socket.getOutputStream()), true);
-                        ) {
-
-                            String input = socketReader.readLine();
+                        try {
+                            MessageConnection connection = MessageConnection.accept(socket);
 
                             //action,exchangeName
-                            JSONObject obj = new JSONObject(input);
-                            String type = obj.getString("Type");
-
-                            // originalPort is the port # of the server that originates a address request to other server(s)
-                            // it's used for a server to decide whether to ask left side or right side
-                            int originalPort = -1;
-
-                            // handle registration request from exchange
-                            if (type.equals("Registration")) {
-
-                                System.out.println(serverName + " : receive registration request");
-
-                                int exchangePort = obj.getInt("Address");
-                                String exchangeName = obj.getString("ExchangeName");
-
-                                // get StockSet from obj and turn it back to HashSet
-                                JSONArray arr = obj.getJSONArray("StockSet");
-                                ArrayList<String> list = new ArrayList<String>();
-                                if (arr != null) {
-                                    int len = arr.length();
-                                    for (int i=0;i<len;i++){
-                                        list.add(arr.get(i).toString());
-                                    }
-                                }
-                                HashSet<String> stockTable = new HashSet<String>(list);
-
-                                registerExchange(exchangeName, exchangePort, stockTable);
-
-                                // send the StartTime back to the exchange in registration
-                                HashMap<String, Object> hm = new HashMap<>();
-                                hm.put("StartTime", beginTime);
-                                JSONObject stObj = new JSONObject(hm);
-                                socketWriter.println(stObj.toString());
+                            JSONObject obj = connection.read();
+                            if (obj == null) {
+                                return;
                             }
-                            // handle request from exchange asking for address of a stock
-                            else if (type.equals("Request")) {
-                                String stockName = obj.getString("StockName");
-                                String src = obj.getString("src");
-                                if (src.equals("server")) {
-                                    originalPort = obj.getInt("OriginalPort");
-                                }
-
-                                String exchange;
-                                int exchangeAddress;
-                                // if the stocked is in an exchange under or cached in the server
-                                if ((exchange = getExchangeWithStock(stockName)) != null) {
-                                    System.out.println(serverName + " : receive routing request, find exchange address at local");
-
-                                    exchangeAddress = getInternalExchangeAddress(exchange);
-
-                                    // generate a message to answer the exchange with an exchange address for the stock
-                                    HashMap<String, Object> hm = new HashMap<>();
-                                    hm.put("ExchangeAddress", exchangeAddress);
-                                    hm.put("ExchangeName", exchange);
-                                    JSONObject exAddrObj = new JSONObject(hm);
-                                    socketWriter.println(exAddrObj.toString());
-
-//                                    System.out.println(serverName + " : send " + exAddrObj.toString());
-                                }
-                                // if the stock is outside of this server or never requested by the server
-                                else {
-                                    System.out.println(serverName + " : receive routing request, ask next server for exchange address");
-                                    getExternalExchangeAddress(originalPort, stockName, socket, socketWriter);
-                                }
+
+                            // the ServerLink of a neighbouring server: many messages, answered by their RequestID
+                            if (obj.has("RequestID")) {
+                                serveLink(connection, obj);
+                                return;
                             }
-                            // handle notification from exchange about an exchange can't be connected
-                            else if (type.equals("Notify")) {
-                                System.out.println(serverName + " : reveice notification, an exchange's down");
-
-                                String source = obj.getString("src");
-                                int downExAddr = obj.getInt("ExchangeAddress");
-                                String downExName = "";
-                                String downStockName = "";
-                                if (source.equals("server")) {
-                                    originalPort = obj.getInt("OriginalPort");
-                                    downExName = obj.getString("ExchangeName");
-
-                                    removeDownExchangeCache(downExName,downExAddr);
-                                }
-                                else {
-                                    downStockName = obj.getString("StockName");
-
-                                    if (getExchangeWithStock(downStockName) != null) {
-                                        downExName = getExchangeWithStock(downStockName);
-
-                                        removeDownExchangeCache(downExName,downExAddr);
-                                    }
-                                }
-
-                                notifyDownExchange(downExAddr, downExName, originalPort);
+
+                            // exchanges send one message per connection
+                            JSONObject response = handleMessage(obj);
+                            if (response != null) {
+                                connection.write(response);
                             }
                         } catch (IOException e) {
                             System.exit(1);
+                        } catch (JSONException e) {
+                            Log.warn("{} : receive an invalid message: {}", serverName, e.getMessage());
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // already closed
+                            }
                         }
                     }
-                }.start();
+                });
             }
 
         } catch (IOException e) {
@@ -193,22 +192,315 @@ public class Server {
 
     }
 
-    // add exchange address and exchange stock set to exchangeAddressTable and exchangeStockTable
+    // handle the messages of a link until the neighbouring server closes it, each on its own thread since a lookup
+    // may wait for the next servers
+    private void serveLink(MessageConnection connection, JSONObject first) {
+        JSONObject obj = first;
+        try {
+            do {
+                final JSONObject request = obj;
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            JSONObject response = handleMessage(request);
+                            if (response == null) {
+                                response = new JSONObject();
+                            }
+                            response.put("RequestID", request.get("RequestID"));
+                            connection.write(response);
+                        } catch (IOException | JSONException e) {
+                            Log.warn("{} : failed to answer request {} of a server: {}", serverName, request.opt("RequestID"), e.getMessage());
+                        }
+                    }
+                });
+            } while ((obj = connection.read()) != null);
+        } catch (IOException e) {
+            // the neighbouring server went down, it opens a new link when it is back
+            Log.info("{} : link of a server closed: {}", serverName, e.getMessage());
+        }
+    }
+
+    // handle a registration, address request or notification from an exchange or a server
+    // return the response to be sent back, or null if there is none
+    private JSONObject handleMessage(JSONObject obj) {
+
+        String type = obj.getString("Type");
+
+        // originalPort is the port # of the server that originates a address request to other server(s)
+        // it's used for a server to decide whether to ask left side or right side
+        int originalPort = -1;
+
+        // handle registration request from exchange
+        if (type.equals("Registration")) {
+
+            Log.info("{} : receive registration request", serverName);
+
+            int exchangePort = obj.getInt("Address");
+            String exchangeName = obj.getString("ExchangeName");
+
+            // get StockSet from obj and turn it back to HashSet
+            JSONArray arr = obj.getJSONArray("StockSet");
+            ArrayList<String> list = new ArrayList<String>();
+            if (arr != null) {
+                int len = arr.length();
+                for (int i=0;i<len;i++){
+                    list.add(arr.get(i).toString());
+                }
+            }
+            HashSet<String> stockTable = new HashSet<String>(list);
+
+            registerExchange(exchangeName, exchangePort, stockTable);
+
+            // send the StartTime and the Clock back to the exchange in registration
+            HashMap<String, Object> hm = new HashMap<>();
+            hm.put("StartTime", this.startTime);
+            hm.put("Clock", clock.toString());
+            return new JSONObject(hm);
+        }
+        // handle request from exchange asking for address of a stock
+        else if (type.equals("Request")) {
+            String stockName = obj.getString("StockName");
+            String src = obj.getString("src");
+            if (src.equals("server")) {
+                originalPort = obj.getInt("OriginalPort");
+            }
+
+            String exchange;
+            int exchangeAddress;
+            // if the stocked is in an exchange under or cached in the server
+            if ((exchange = getExchangeWithStock(stockName)) != null
+                    && (exchangeAddress = getInternalExchangeAddress(exchange)) != -1) {
+                Log.info("{} : receive routing request, find exchange address at local", serverName);
+
+                // generate a message to answer the exchange with an exchange address for the stock
+                HashMap<String, Object> hm = new HashMap<>();
+                hm.put("ExchangeAddress", exchangeAddress);
+                hm.put("ExchangeName", exchange);
+                return new JSONObject(hm);
+            }
+            // if no exchange listed the stock when an exchange last asked for it, less than the TTL ago
+            else if (originalPort == -1 && stockDirectory.isUnknown(stockName)) {
+                Log.info("{} : receive routing request, stock {} is not listed anywhere", serverName, stockName);
+
+                HashMap<String, Object> hm = new HashMap<>();
+                hm.put("ExchangeAddress", -1);
+                return new JSONObject(hm);
+            }
+            // if the stock is outside of this server or never requested by the server
+            else {
+                Log.info("{} : receive routing request, ask next server for exchange address", serverName);
+                return getExternalExchangeAddress(originalPort, stockName);
+            }
+        }
+        // handle request from exchange (or server) asking for the exchanges of a list of stocks in one round trip
+        else if (type.equals("BatchRequest")) {
+            JSONArray arr = obj.getJSONArray("StockSet");
+            ArrayList<String> stockNames = new ArrayList<>();
+            for (int i = 0; i < arr.length(); i++) {
+                stockNames.add(arr.getString(i));
+            }
+            if (obj.getString("src").equals("server")) {
+                originalPort = obj.getInt("OriginalPort");
+            }
+            Log.info("{} : receive batch routing request for {} stocks", serverName, stockNames.size());
+            return getBatchExchangeAddresses(originalPort, stockNames);
+        }
+        // handle notification from exchange about an exchange can't be connected
+        else if (type.equals("Notify")) {
+            Log.info("{} : reveice notification, an exchange's down", serverName);
+
+            String source = obj.getString("src");
+            int downExAddr = obj.getInt("ExchangeAddress");
+            String downExName = "";
+            String downStockName = "";
+            if (source.equals("server")) {
+                originalPort = obj.getInt("OriginalPort");
+                downExName = obj.getString("ExchangeName");
+
+                removeDownExchangeCache(downExName,downExAddr);
+            }
+            else {
+                downStockName = obj.getString("StockName");
+
+                String exchange = getExchangeWithStock(downStockName);
+                if (exchange != null) {
+                    downExName = exchange;
+
+                    removeDownExchangeCache(downExName,downExAddr);
+                }
+            }
+
+            notifyDownExchange(downExAddr, downExName, originalPort);
+        }
+        // handle a change of the directory of the primary server, on its backup
+        else if (type.equals("Replicate")) {
+            return replicator.apply(obj);
+        }
+        // handle a heartbeat from a neighbouring server
+        else if (type.equals("Heartbeat")) {
+            return HeartbeatMonitor.heartbeat();
+        }
+        // handle the stocks of an exchange published to this server, which owns them on the hash ring
+        else if (type.equals("Publish")) {
+            JSONArray arr = obj.getJSONArray("StockSet");
+            ArrayList<String> stockNames = new ArrayList<>();
+            for (int i = 0; i < arr.length(); i++) {
+                stockNames.add(arr.getString(i));
+            }
+            this.stockDirectory.cache(stockNames, obj.getString("ExchangeName"), obj.getInt("Address"));
+            return new JSONObject();
+        }
+        // handle a lookup of a stock this server owns on the hash ring: answered from its directory only
+        else if (type.equals("Lookup")) {
+            String stockName = obj.getString("StockName");
+            String exchange = getExchangeWithStock(stockName);
+            HashMap<String, Object> hm = new HashMap<>();
+            hm.put("ExchangeAddress", exchange == null ? -1 : getInternalExchangeAddress(exchange));
+            if (exchange != null) {
+                hm.put("ExchangeName", exchange);
+            }
+            return new JSONObject(hm);
+        }
+        return null;
+    }
+
+    // add exchange address and exchange stock set to the stock directory
     private void registerExchange(String exchangeName, int exchangePort, HashSet<String> stockTable) {
-        this.exchangeAddressTable.put(exchangeName, exchangePort);
-        this.exchangeStockTable.put(exchangeName, stockTable);
-        this.internalExchangeSet.add(exchangeName);
+        this.stockDirectory.register(exchangeName, exchangePort, stockTable);
+        if (this.heartbeatMonitor != null) {
+            if (isBackup()) {
+                synchronized (this.registeredExchanges) {
+                    this.registeredExchanges.put(exchangeName, exchangePort);
+                    if (this.primaryDown) {
+                        watchExchange(exchangeName, exchangePort);
+                    }
+                }
+            } else {
+                watchExchange(exchangeName, exchangePort);
+            }
+        }
+        publishExchange(exchangeName, exchangePort, stockTable);
+    }
+
+    // in "hash" mode, send the stocks of an exchange registered with this server to the servers owning them
+    private void publishExchange(String exchangeName, int exchangePort, Collection<String> stockNames) {
+        if (this.hashRing == null) {
+            return;
+        }
+        HashMap<String, List<String>> ownerStocks = new HashMap<>();    // <owner server, stocks it owns>
+        for (String stockName : stockNames) {
+            ownerStocks.computeIfAbsent(this.hashRing.owner(stockName), owner -> new ArrayList<>()).add(stockName);
+        }
+        connectionExecutor.execute(() -> {
+            for (Map.Entry<String, List<String>> entry : ownerStocks.entrySet()) {
+                int ownerPort = serverAddressTable.get(entry.getKey());
+                if (ownerPort == this.portNumber) {
+                    continue;
+                }
+                HashMap<String, Object> hm = new HashMap<>();
+                hm.put("Type", "Publish");
+                hm.put("ExchangeName", exchangeName);
+                hm.put("Address", exchangePort);
+                hm.put("StockSet", entry.getValue());
+                JSONObject message = new JSONObject(hm);
+                try {
+                    askServerOrBackup(ownerPort, message);
+                    Log.info("{} : publish {} stocks of {} to {}", serverName, entry.getValue().size(), exchangeName,
+                            entry.getKey());
+                } catch (IOException e) {
+                    Log.warn("{} : can't publish the stocks of {} to {} or its backup", serverName, exchangeName,
+                            entry.getKey());
+                }
+            }
+        });
+    }
+
+    // in "hash" mode, ask the server owning a stock for its exchange, then walk along the ring if the owner misses it
+    // (e.g. the owner was down when the exchange registered)
+    private JSONObject hashLookup(String stockName, JSONObject message) {
+        int ownerPort = serverAddressTable.get(this.hashRing.owner(stockName));
+        if (ownerPort != this.portNumber) {
+            HashMap<String, Object> hm = new HashMap<>();
+            hm.put("Type", "Lookup");
+            hm.put("StockName", stockName);
+            try {
+                JSONObject obj = askServerOrBackup(ownerPort, new JSONObject(hm));
+                int exchangeAddr = obj.optInt("ExchangeAddress", -1);
+                if (exchangeAddr != -1 && obj.has("ExchangeName")) {
+                    Log.info("{} : receive {} from the owner of {}", serverName, obj, stockName);
+                    this.stockDirectory.cache(stockName, obj.getString("ExchangeName"), exchangeAddr);
+                    return obj;
+                }
+            } catch (IOException e) {
+                Log.warn("{} : can't ask the owner of {} or its backup", serverName, stockName);
+            }
+        }
+        return ringLookup(stockName, message);
     }
 
-    // get address of an exchange that is under this server
+    // send a request to a server, or to its backup if the server is down
+    private JSONObject askServerOrBackup(int port, JSONObject message) throws IOException {
+        try {
+            return serverLink.request(port, message);
+        } catch (IOException e) {
+            return serverLink.request(pairedPort(port), message);
+        }
+    }
+
+    // send heartbeats to a registered exchange: a down exchange is removed from the directory and the other servers
+    // are notified, as if a trade with it had failed; it is added back with its stocks if it answers again
+    private void watchExchange(String exchangeName, int exchangePort) {
+        List<String> stockNames = new ArrayList<>();
+        int timeoutMillis = (int) Math.min(Integer.MAX_VALUE, 10L * this.heartbeatMillis);
+        this.heartbeatMonitor.watch("exchange " + exchangeName,
+                new HeartbeatMonitor.ExchangeProbe(exchangePort, this.binaryProtocol, timeoutMillis),
+                () -> {
+                    synchronized (stockNames) {
+                        stockNames.clear();
+                        stockNames.addAll(this.stockDirectory.getStocks(exchangeName));
+                    }
+                    removeDownExchangeCache(exchangeName, exchangePort);
+                    notifyDownExchange(exchangePort, exchangeName, -1);
+                },
+                () -> {
+                    synchronized (stockNames) {
+                        if (getInternalExchangeAddress(exchangeName) == -1 && !stockNames.isEmpty()) {
+                            this.stockDirectory.register(exchangeName, exchangePort, stockNames);
+                            publishExchange(exchangeName, exchangePort, stockNames);
+                        }
+                    }
+                });
+    }
+
+    // on a backup, start sending heartbeats to the exchanges registered with it when its primary is down, and stop when
+    // the primary answers again
+    private void watchRegisteredExchanges(boolean primaryDown) {
+        synchronized (this.registeredExchanges) {
+            this.primaryDown = primaryDown;
+            for (Map.Entry<String, Integer> entry : this.registeredExchanges.entrySet()) {
+                if (primaryDown) {
+                    watchExchange(entry.getKey(), entry.getValue());
+                } else {
+                    this.heartbeatMonitor.unwatch("exchange " + entry.getKey());
+                }
+            }
+        }
+        Log.info("{} : {} sending heartbeats to the exchanges of the continent", serverName,
+                primaryDown ? "start" : "stop");
+    }
+
+    private boolean isBackup() {
+        return this.serverName.endsWith("Backup");
+    }
+
+    // get address of an exchange that is under or cached in this server, -1 if it was removed meanwhile
     private int getInternalExchangeAddress(String exchangeName) {
-        return this.exchangeAddressTable.get(exchangeName);
+        return this.stockDirectory.getAddress(exchangeName);
     }
 
     // get address of an exchange that is outside of this server
-    private void getExternalExchangeAddress(int originalPort, String stockName, Socket socket, PrintWriter socketWriter) {
-
-        String exchange;
+    private JSONObject getExternalExchangeAddress(int originalPort, String stockName) {
 
         HashMap<String, Object> hm = new HashMap<>();
         hm.put("Type", "Request");
@@ -218,83 +510,248 @@ public class Server {
         // if source for address request is server
         if (originalPort != -1) {
             hm.put("OriginalPort", originalPort);
-            JSONObject messageObj = new JSONObject(hm);
-            String message = messageObj.toString();
+            JSONObject message = new JSONObject(hm);
             // if the original server's on the right to this server, ask the left server for address; else, ask right server
             if (originalPort > this.portNumber) {
-                if (this.leftPort != -1) startNextSocket(originalPort, leftPort, message, stockName, socket);
+                if (this.leftPort != -1) return askNextServer(originalPort, leftPort, message, stockName);
                 else {
                     HashMap<String, Object> hashMap = new HashMap<>();
                     hashMap.put("ExchangeAddress", -1);
                     JSONObject noAddrObj = new JSONObject(hashMap);
-                    socketWriter.println(noAddrObj.toString());
 
-                    System.out.println(serverName + " : reach left end, send " + noAddrObj.toString());
+                    Log.info("{} : reach left end, send {}", serverName, noAddrObj);
+                    return noAddrObj;
                 }
             }
             else {
-                if (this.rightPort != -1) startNextSocket(originalPort, rightPort, message, stockName, socket);
+                if (this.rightPort != -1) return askNextServer(originalPort, rightPort, message, stockName);
                 else {
                     HashMap<String, Object> hashMap = new HashMap<>();
                     hashMap.put("ExchangeAddress", -1);
                     JSONObject noAddrObj = new JSONObject(hashMap);
-                    socketWriter.println(noAddrObj.toString());
 
-                    System.out.println(serverName + " : reach right end, send " + noAddrObj.toString());
+                    Log.info("{} : reach right end, send {}", serverName, noAddrObj);
+                    return noAddrObj;
                 }
             }
         }
         // if source is exchange, then this server is the one of all servers that originated this address request
         else {
             hm.put("OriginalPort", this.portNumber);
-            JSONObject messageObj = new JSONObject(hm);
-            String message = messageObj.toString();
-            // if this server has two neighboring servers, ask left side first,
-            // if left side cannot find the stock, then ask right side, whether right side finds it or not, send back to the exchange
-            if (this.leftPort != -1 && this.rightPort != -1) {
+            return lookupOnce(stockName, new JSONObject(hm));
+        }
+
+    }
+
+    // ask the other servers for the exchange of a stock, only once for all the exchanges asking for it at the same time:
+    // the first request walks along the ring, the others wait for its answer (which is cached by then)
+    private JSONObject lookupOnce(String stockName, JSONObject message) {
+
+        CompletableFuture<JSONObject> lookup = new CompletableFuture<>();
+        CompletableFuture<JSONObject> inFlight = this.inFlightLookups.putIfAbsent(stockName, lookup);
+        if (inFlight != null) {
+            Log.info("{} : join the lookup in flight for {}", serverName, stockName);
+            return inFlight.join();
+        }
+
+        try {
+            JSONObject result;
+            // a lookup may have finished between the local check and this one
+            String exchange = getExchangeWithStock(stockName);
+            int exchangeAddress = exchange == null ? -1 : getInternalExchangeAddress(exchange);
+            if (exchangeAddress != -1) {
                 HashMap<String, Object> hashMap = new HashMap<>();
-                int leftResult = twoSideStartNextSocket(this.portNumber, leftPort, message, stockName, socket);
-                if (leftResult != -1) {
-                    hashMap.put("ExchangeAddress", leftResult);
-                }
-                else {
-                    int rightResult = twoSideStartNextSocket(this.portNumber, rightPort, message, stockName, socket);
-                    hashMap.put("ExchangeAddress", rightResult);
+                hashMap.put("ExchangeAddress", exchangeAddress);
+                hashMap.put("ExchangeName", exchange);
+                result = new JSONObject(hashMap);
+            } else {
+                result = this.hashRing != null ? hashLookup(stockName, message) : ringLookup(stockName, message);
+                if (result.optInt("ExchangeAddress", -1) == -1) {
+                    this.stockDirectory.cacheUnknown(stockName);
                 }
-                JSONObject exAddrObj = new JSONObject(hashMap);
-                socketWriter.println(exAddrObj.toString());
-                System.out.println(serverName + " : send " + exAddrObj.toString());
+            }
+            lookup.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlightLookups.remove(stockName, lookup);
+        }
+    }
 
+    // find the exchanges of a list of stocks: the stocks under or cached in this server are answered right away, the
+    // others are looked up together, in one walk along the ring (or one hop to each owner in "hash" mode)
+    // return {"StockSet": [...], "ExchangeNames": [...], "ExchangeAddresses": [...]}, "" and -1 for a stock not found
+    private JSONObject getBatchExchangeAddresses(int originalPort, List<String> stockNames) {
+
+        HashMap<String, String> exchangeNames = new HashMap<>();     // <StockName, ExchangeName> of the stocks found
+        HashMap<String, Integer> exchangeAddresses = new HashMap<>(); // <StockName, ExchangeAddress> of the stocks found
+        ArrayList<String> misses = new ArrayList<>();
+        for (String stockName : stockNames) {
+            String exchange = getExchangeWithStock(stockName);
+            int exchangeAddress = exchange == null ? -1 : getInternalExchangeAddress(exchange);
+            if (exchangeAddress != -1) {
+                exchangeNames.put(stockName, exchange);
+                exchangeAddresses.put(stockName, exchangeAddress);
+            } else if (originalPort != -1 || !stockDirectory.isUnknown(stockName)) {
+                misses.add(stockName);
             }
-            // if this server has only one neighboring server, ask it for address and send the result right back to the exchange (via startNextSocket() method)
-            else if (this.leftPort == -1) {
-                startNextSocket(this.portNumber, rightPort, message, stockName, socket);
-            } else if (this.rightPort == -1) {
-                startNextSocket(this.portNumber, leftPort, message, stockName, socket);
+        }
+
+        if (!misses.isEmpty()) {
+            HashMap<String, Object> hm = new HashMap<>();
+            hm.put("Type", "BatchRequest");
+            hm.put("src", "server");
+            hm.put("StockSet", misses);
+
+            // if source for address request is server, pass the misses on in the same direction, until an end
+            if (originalPort != -1) {
+                hm.put("OriginalPort", originalPort);
+                int nextPort = originalPort > this.portNumber ? this.leftPort : this.rightPort;
+                if (nextPort != -1) {
+                    readBatch(askNextServerBatch(nextPort, new JSONObject(hm)), exchangeNames, exchangeAddresses);
+                }
+            }
+            // this server originated the request: in "hash" mode ask the owners, each stock at the same time
+            else if (this.hashRing != null) {
+                ArrayList<CompletableFuture<Void>> lookups = new ArrayList<>();
+                for (String stockName : misses) {
+                    HashMap<String, Object> request = new HashMap<>();
+                    request.put("Type", "Request");
+                    request.put("src", "server");
+                    request.put("StockName", stockName);
+                    request.put("OriginalPort", this.portNumber);
+                    JSONObject message = new JSONObject(request);
+                    lookups.add(CompletableFuture.runAsync(() -> {
+                        JSONObject result = lookupOnce(stockName, message);
+                        if (result.optInt("ExchangeAddress", -1) != -1 && result.has("ExchangeName")) {
+                            synchronized (exchangeAddresses) {
+                                exchangeNames.put(stockName, result.getString("ExchangeName"));
+                                exchangeAddresses.put(stockName, result.getInt("ExchangeAddress"));
+                            }
+                        }
+                    }, connectionExecutor));
+                }
+                CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).join();
+            }
+            // in "ring" mode, send all the misses to both sides at the same time
+            else {
+                hm.put("OriginalPort", this.portNumber);
+                ArrayList<CompletableFuture<JSONObject>> sides = new ArrayList<>();
+                for (int nextPort : new int[]{this.leftPort, this.rightPort}) {
+                    if (nextPort != -1) {
+                        sides.add(CompletableFuture.supplyAsync(
+                                () -> askNextServerBatch(nextPort, new JSONObject(hm)), connectionExecutor));
+                    }
+                }
+                for (CompletableFuture<JSONObject> side : sides) {
+                    readBatch(side.join(), exchangeNames, exchangeAddresses);
+                }
+                for (String stockName : misses) {
+                    if (exchangeAddresses.containsKey(stockName)) {
+                        this.stockDirectory.cache(stockName, exchangeNames.get(stockName), exchangeAddresses.get(stockName));
+                    } else {
+                        this.stockDirectory.cacheUnknown(stockName);
+                    }
+                }
             }
         }
 
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<Integer> addresses = new ArrayList<>();
+        for (String stockName : stockNames) {
+            names.add(exchangeNames.getOrDefault(stockName, ""));
+            addresses.add(exchangeAddresses.getOrDefault(stockName, -1));
+        }
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("StockSet", stockNames);
+        hm.put("ExchangeNames", names);
+        hm.put("ExchangeAddresses", addresses);
+        return new JSONObject(hm);
     }
 
-    private void removeDownExchangeCache(String downExName, int downExAddr) {
+    // add the stocks found in the answer to a batch routing request to the maps, for those not found yet
+    private static void readBatch(JSONObject batch, Map<String, String> exchangeNames, Map<String, Integer> exchangeAddresses) {
+        JSONArray stockNames = batch.optJSONArray("StockSet");
+        JSONArray names = batch.optJSONArray("ExchangeNames");
+        JSONArray addresses = batch.optJSONArray("ExchangeAddresses");
+        if (stockNames == null || names == null || addresses == null) {
+            return;
+        }
+        for (int i = 0; i < stockNames.length(); i++) {
+            int exchangeAddress = addresses.getInt(i);
+            if (exchangeAddress != -1 && !exchangeAddresses.containsKey(stockNames.getString(i))) {
+                exchangeNames.put(stockNames.getString(i), names.getString(i));
+                exchangeAddresses.put(stockNames.getString(i), exchangeAddress);
+            }
+        }
+    }
 
-        // if the exchange down is under this server, remove the exchange if it's not back (address not changed)
-        if (internalExchangeSet.contains(downExName)) {
-            if (exchangeAddressTable.get(downExName) == downExAddr) {
-                exchangeAddressTable.remove(downExName);
-                exchangeStockTable.remove(downExName);
-                internalExchangeSet.remove(downExName);
+    // send a batch routing request to a next server on its link, if fails, to the backup of next server
+    // return its answer, or an empty answer if the next server and its backup cannot answer
+    private JSONObject askNextServerBatch(int nextPort, JSONObject message) {
+        try {
+            return serverLink.request(nextPort, message);
+        } catch (IOException e) {
+            Log.warn("Can't connect to server: {}", nextPort);
+            try {
+                JSONObject obj = serverLink.request(pairedPort(nextPort), message);
+                updateNextPort(nextPort);
+                return obj;
+            } catch (IOException e1) {
+                Log.warn("Can't connect next server's backup: {}", pairedPort(nextPort));
+                return new JSONObject();
             }
         }
-        else {
-            // if this server has the exchange's address in the routing table, delete it
-            if (exchangeAddressTable.containsKey(downExName)) {
-                exchangeAddressTable.remove(downExName);
-                exchangeStockTable.remove(downExName);
+    }
+
+    // walk along the ring from this server to find the exchange of a stock
+    private JSONObject ringLookup(String stockName, JSONObject message) {
+
+        // if this server has two neighboring servers, ask both sides at the same time and send back the first side that
+        // finds the stock, or -1 once both sides could not find it
+        if (this.leftPort != -1 && this.rightPort != -1) {
+            int left = this.leftPort;
+            int right = this.rightPort;
+            CompletableFuture<JSONObject> answer = new CompletableFuture<>();
+            AtomicInteger sidesLeft = new AtomicInteger(2);
+            AtomicBoolean resolved = new AtomicBoolean();    // set once a side found the stock
+            for (int nextPort : new int[]{left, right}) {
+                CompletableFuture<JSONObject> side = CompletableFuture.supplyAsync(
+                        () -> askNextServer(this.portNumber, nextPort, message, stockName, resolved),
+                        connectionExecutor);
+                side.whenComplete((result, e) -> {
+                    if (e == null && result.optInt("ExchangeAddress", -1) != -1) {
+                        resolved.set(true);
+                        answer.complete(result);
+                    } else if (sidesLeft.decrementAndGet() == 0) {
+                        HashMap<String, Object> hashMap = new HashMap<>();
+                        hashMap.put("ExchangeAddress", -1);
+                        answer.complete(new JSONObject(hashMap));
+                    }
+                });
             }
+            // the other side stops at its next step: it does not start its walk, try the backup of a down neighbour or
+            // cache a late answer; a request already sent to the next server still ends there
+            JSONObject exAddrObj = answer.join();
+            Log.info("{} : send {}", serverName, exAddrObj);
+            return exAddrObj;
+        }
+        // if this server has only one neighboring server, ask it for address and send the result right back to the exchange
+        else if (this.leftPort == -1) {
+            return askNextServer(this.portNumber, rightPort, message, stockName);
+        } else {
+            return askNextServer(this.portNumber, leftPort, message, stockName);
         }
     }
 
+    // if the exchange down is under this server, remove the exchange if it's not back (address not changed),
+    // if this server has the exchange's address in the routing table, delete it
+    private void removeDownExchangeCache(String downExName, int downExAddr) {
+        this.stockDirectory.remove(downExName, downExAddr);
+    }
+
     // notify other servers about the down exchange
     private void notifyDownExchange(int exchangeAddr, String exchangeName, int originalPort) {
         HashMap<String, Object> hm = new HashMap<>();
@@ -306,8 +763,7 @@ public class Server {
         // if source for notification is server
         if (originalPort != -1) {
             hm.put("OriginalPort", originalPort);
-            JSONObject messageObj = new JSONObject(hm);
-            String message = messageObj.toString();
+            JSONObject message = new JSONObject(hm);
 
             // if the original server's on the right to this server, notify the left server
             if (originalPort > this.portNumber) {
@@ -324,8 +780,7 @@ public class Server {
         // if source is exchange, then this server is the one of all servers that originated this notification
         else {
             hm.put("OriginalPort", this.portNumber);
-            JSONObject messageObj = new JSONObject(hm);
-            String message = messageObj.toString();
+            JSONObject message = new JSONObject(hm);
 
             // if this server has two neighboring servers, notify both
             if (this.leftPort != -1 && this.rightPort != -1) {
@@ -341,237 +796,116 @@ public class Server {
         }
     }
 
-    // create connection to the next server for notification of the down exchange
-    private void notifyNextServer(int nextPort, String message) {
-
-        String serverIP = "127.0.0.1";
+    // send the notification of the down exchange to the next server on its link
+    private void notifyNextServer(int nextPort, JSONObject message) {
 
-        Socket notifySocket;
-        PrintWriter out;
         try {
-            notifySocket = new Socket(serverIP, nextPort);
-            out = new PrintWriter(new BufferedOutputStream(notifySocket.getOutputStream()), true);
-            out.println(message);
+            serverLink.send(nextPort, message);
 
         } catch (IOException e) {
-            System.out.println("On notify: can't connect to server: " + nextPort);
-            nextPort = nextPort + 1;
+            Log.warn("On notify: can't connect to server: {}", nextPort);
 
             try {
-                notifySocket = new Socket(serverIP, nextPort);
-                out = new PrintWriter(new BufferedOutputStream(notifySocket.getOutputStream()), true);
-                out.println(message);
+                serverLink.send(pairedPort(nextPort), message);
 
                 updateNextPort(nextPort);
             } catch (IOException e1) {
-                System.out.println("On notify: can't connect to server's backup");
+                Log.warn("On notify: can't connect to server's backup");
             }
 
         }
     }
 
-    // check if the stock is in one of the exchanges under this server
+    // check if the stock is in one of the exchanges under or cached in this server
     // return exchange name if found it, otherwise return null
     private String getExchangeWithStock(String stockName) {
-        for (String exchangeName : exchangeStockTable.keySet()) {
-            if (exchangeStockTable.get(exchangeName).contains(stockName)) {
-                return exchangeName;
-            }
-        }
-        return null;
+        return this.stockDirectory.getExchange(stockName);
     }
 
-    // send address request for the stock to a next server
-    // return the exchange address, or -1 if exchange's not found
-    private int twoSideStartNextSocket(int originalPort, int nextPort, String message, String stockName, Socket socket) {
-
-        String serverIP = "127.0.0.1";
-
-        Socket nextSocket;
-        BufferedReader in;
-        PrintWriter out;
-
-        // create connection to the next server, if fails, connect to the backup of next server
-        try {
-            nextSocket = new Socket(serverIP, nextPort);
-            in = new BufferedReader(new InputStreamReader(nextSocket.getInputStream()));
-            out = new PrintWriter(new BufferedOutputStream(nextSocket.getOutputStream()), true);
-
-            out.println(message);
-        } catch (IOException e) {
-            System.out.println("Can't connect to server: "+nextPort);
-            nextPort = nextPort + 1;
-            try {
-                nextSocket = new Socket(serverIP, nextPort);
-                in = new BufferedReader(new InputStreamReader(nextSocket.getInputStream()));
-                out = new PrintWriter(new BufferedOutputStream(nextSocket.getOutputStream()), true);
-
-                out.println(message);
-
-                updateNextPort(nextPort);
-            } catch (IOException e1) {
-                System.out.println("Can't connect next server's backup: "+(nextPort+1));
-                return -1;
-            }
-        }
-
-        try {
-            String input = "";
-            String exchangeName = "";
-            int exchangeAddr = -1;
-            if ((input = in.readLine()) != null) {
-
-                nextSocket.close();
-
-                JSONObject obj = new JSONObject(input);
-                exchangeAddr = obj.getInt("ExchangeAddress");
-
-                // cache the exchange address and stock-exchange relation
-                if (exchangeAddr != -1) {
-
-                    exchangeName = obj.getString("ExchangeName");
-                    this.exchangeAddressTable.put(exchangeName, exchangeAddr);
-                    if (exchangeStockTable.containsKey(exchangeName)) {
-                        exchangeStockTable.get(exchangeName).add(stockName);
-                    } else {
-
-                        exchangeStockTable.put(exchangeName, new HashSet<>());
-                        exchangeStockTable.get(exchangeName).add(stockName);
-                    }
-                }
-            }
-            // if readLine() returns null, the connection to next server has broken
-            else {
-                exchangeAddr = -1;
-                updateNextPort(nextPort);
-            }
-            return exchangeAddr;
-
-        } catch (IOException e) {
-            return -1;
-        }
-
+    // send address request for the stock to a next server on its link, if fails, to the backup of next server
+    // return its answer, or an answer with ExchangeAddress -1 if the next server and its backup cannot answer
+    private JSONObject askNextServer(int originalPort, int nextPort, JSONObject message, String stockName) {
+        return askNextServer(originalPort, nextPort, message, stockName, new AtomicBoolean());
     }
 
-    // send address request for the stock to a next server, and send the answer right back to the upper requester
-    private void startNextSocket(int originalPort, int nextPort, String message, String stockName, Socket socket) {
+    // same, but gives up with -1 as soon as the other side of the ring has found the stock (resolved is set)
+    private JSONObject askNextServer(int originalPort, int nextPort, JSONObject message, String stockName,
+                                     AtomicBoolean resolved) {
 
-        String serverIP = "127.0.0.1";
+        HashMap<String, Object> notFound = new HashMap<>();
+        notFound.put("ExchangeAddress", -1);
+        if (resolved.get()) {
+            return new JSONObject(notFound);
+        }
 
-        Socket nextSocket;
-        BufferedReader in;
-        PrintWriter out;
-        // create connection to the next server
+        JSONObject obj;
         try {
-            nextSocket = new Socket(serverIP, nextPort);
-
-            in = new BufferedReader(new InputStreamReader(nextSocket.getInputStream()));
-            out = new PrintWriter(new BufferedOutputStream(nextSocket.getOutputStream()), true);
-
-            out.println(message);
+            obj = serverLink.request(nextPort, message);
         }
-        // if fails, connect to the backup of next server
         catch (IOException e) {
-            System.out.println("Can't connect to server: "+nextPort);
-            nextPort = nextPort + 1;
+            Log.warn("Can't connect to server: {}", nextPort);
+            if (resolved.get()) {
+                return new JSONObject(notFound);
+            }
             try {
-                nextSocket = new Socket(serverIP, nextPort);
-                in = new BufferedReader(new InputStreamReader(nextSocket.getInputStream()));
-                out = new PrintWriter(new BufferedOutputStream(nextSocket.getOutputStream()), true);
-
-                out.println(message);
+                obj = serverLink.request(pairedPort(nextPort), message);
 
                 updateNextPort(nextPort);
             }
-            // if fails to connect to the back up, inform the upper server/exchange
+            // if fails with the back up as well, inform the upper server/exchange
             catch (IOException e1) {
-                System.out.println("Can't connect next server's backup: "+(nextPort+1));
-
-                try {
-                    PrintWriter ackOut = new PrintWriter(new BufferedOutputStream(socket.getOutputStream()), true);
-                    HashMap<String, Object> hashMap = new HashMap<>();
-                    hashMap.put("ExchangeAddress", -1);
-                    JSONObject exAddrObj = new JSONObject(hashMap);
-//                    System.out.println(serverName + " : " + "back: "+exAddrObj.toString());
-                    ackOut.println(exAddrObj.toString());
-
-                } catch (IOException e2) {
-                    System.out.println("Connection to the last server/exchange has broken. ");
-                }
-                return;
+                Log.warn("Can't connect next server's backup: {}", pairedPort(nextPort));
+                return new JSONObject(notFound);
             }
         }
 
+        Log.info("{} : receive {}", serverName, obj);
 
-        try {
-            String input = "";
-
-            if ((input = in.readLine()) != null) {
-                PrintWriter ackOut = new PrintWriter(new BufferedOutputStream(socket.getOutputStream()), true);
-                ackOut.println(input);
-                System.out.println(serverName + " : receive " + input);
-
-                nextSocket.close();
-
-                if (originalPort == this.portNumber) {
-
-                    JSONObject obj = new JSONObject(input);
-                    int exchangeAddr = obj.getInt("ExchangeAddress");
-
-                    // cache the exchange address and stock-exchange relation
-                    if (exchangeAddr != -1) {
-                        String exchangeName = obj.getString("ExchangeName");
-                        this.exchangeAddressTable.put(exchangeName, exchangeAddr);
-                        if (exchangeStockTable.containsKey(exchangeName)) {
-                            exchangeStockTable.get(exchangeName).add(stockName);
-                        }
-                        else {
-
-                            exchangeStockTable.put(exchangeName, new HashSet<>());
-                            exchangeStockTable.get(exchangeName).add(stockName);
-                        }
-                    }
-                }
-            }
-            // if readLine() returns null, the connection to next server has broken
-            else {
-                updateNextPort(nextPort);
-                PrintWriter ackOut = new PrintWriter(new BufferedOutputStream(socket.getOutputStream()), true);
-                HashMap<String, Object> hashMap = new HashMap<>();
-                hashMap.put("ExchangeAddress", -1);
-                JSONObject exAddrObj = new JSONObject(hashMap);
-                ackOut.println(exAddrObj.toString());
-            }
-
-        } catch (IOException e) {
-            return;
+        int exchangeAddr = obj.optInt("ExchangeAddress", -1);
+        // cache the exchange address and stock-exchange relation, unless the other side already did
+        if (originalPort == this.portNumber && exchangeAddr != -1 && obj.has("ExchangeName") && !resolved.get()) {
+            this.stockDirectory.cache(stockName, obj.getString("ExchangeName"), exchangeAddr);
         }
+        return obj;
     }
 
-    // if a next server is down, update the leftPort or rightPort of this server to its backup
-    private void updateNextPort(int nextPort) {
+    // the port of the backup of a server, or of the server of a backup
+    private static int pairedPort(int port) {
+        return port % 1111 == 0 ? port + 1 : port - 1;
+    }
+
+    // if a next server is down (given its port), update the leftPort or rightPort of this server to its backup
+    // (or back to the server if the backup is down), unless another request already did
+    private synchronized void updateNextPort(int nextPort) {
 
         if (nextPort > this.portNumber) {
-            if (nextPort % 1111 == 0) {
-                rightPort += 1;
-            }
-            else {
-                rightPort -= 1;
+            if (rightPort == nextPort) {
+                rightPort = pairedPort(nextPort);
+                resetHeartbeats(RIGHT_SERVER);
             }
-
         }
         else {
-            if (nextPort % 1111 == 0) {
-                leftPort += 1;
-            }
-            else {
-                leftPort -= 1;
+            if (leftPort == nextPort) {
+                leftPort = pairedPort(nextPort);
+                resetHeartbeats(LEFT_SERVER);
             }
         }
     }
 
+    // the heartbeats of a neighbour start over on its new port
+    private void resetHeartbeats(String neighbour) {
+        if (this.heartbeatMonitor != null) {
+            Log.info("{} : {} is now on port {}", serverName, neighbour, neighbour.equals(LEFT_SERVER) ? leftPort : rightPort);
+            this.heartbeatMonitor.reset(neighbour);
+        }
+    }
+
     /**
-     * Usage: java Server --serverName=<Server Name>
+     * Usage: java Server --serverName=<Server Name> --startTime=<seconds> [--threadMode=platform|virtual]
+     *        [--protocol=json|binary] [--clock=real|accelerated|step] [--speed=<timestamps per second>]
+     *        [--unknownStockTtl=<milliseconds>] [--heartbeatMillis=<milliseconds>] [--phiThreshold=<phi>]
+     *        [--directory=ring|hash]
+     *        [--logLevel=debug|info|warn|error|off] [--logSample=<n>]
      * @param args
      */
     public static void main(String[] args) {
@@ -587,7 +921,7 @@ public class Server {
                 br.close();
                 startTime = Long.parseLong(value);
             } catch (IOException e) {
-                System.out.println("Can't find log file.");
+                Log.error("Can't find log file.");
             }
         }
         else {
@@ -598,13 +932,13 @@ public class Server {
                 log.flush();
                 log.close();
             } catch (FileNotFoundException e) {
-                System.out.println("Can't find log file. ");
+                Log.error("Can't find log file. ");
             }
         }
 
-        startTime += 20000;
-
-        Server server = new Server(serverName, startTime);
+        Options options = new Options(args);
+        Log.configure(options);
+        Server server = new Server(serverName, startTime, options);
 
     }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+package project;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.*;
+
+/**
+ * ServerLink: the long-lived connections of a Server to its neighbouring Servers (and their backups), one per
+ * neighbour, shared by all the lookups and notifications going through this Server.
+ *
+ * Every message sent on a link carries a "RequestID". The neighbour handles the messages of a link concurrently and
+ * copies the RequestID into each response, so a reader thread per link hands each response to the request waiting for
+ * it, in whatever order they come back. A walk along the ring then costs no connection handshake per hop, and no socket
+ * is left open per message.
+ *
+ * A link found broken is closed with all the requests waiting on it, and the next message opens a new one. A request
+ * failing on a link that was already open is sent once more on a new link: lookups and notifications can be repeated.
+ */
+class ServerLink {
+
+    private static final String HOST = "127.0.0.1";
+    private static final long RESPONSE_TIMEOUT_SECONDS = 30;  // how long a request waits for its response
+
+    private String owner;                                     // the name of the Server, for printing messages
+    private boolean binaryProtocol;                           // whether the links use the binary protocol
+    private AtomicInteger nextRequestID;                      // the RequestID of the next message, unique per Server
+    private Hashtable<Integer, Link> linkTable;               // stores <port, link to the Server listening on it>
+
+    /**
+     * Instantiates a new ServerLink.
+     *
+     * @param owner          the name of the Server
+     * @param binaryProtocol whether the links use the binary protocol
+     */
+    ServerLink(String owner, boolean binaryProtocol) {
+        this.owner = owner;
+        this.binaryProtocol = binaryProtocol;
+        this.nextRequestID = new AtomicInteger();
+        this.linkTable = new Hashtable<>();
+    }
+
+    /**
+     * Sends a request to a Server and waits for its response.
+     *
+     * @param port    the port of the Server
+     * @param request the request, without RequestID
+     * @return the response, without RequestID
+     * @throws IOException if the Server cannot be reached, or did not respond in time
+     */
+    JSONObject request(int port, JSONObject request) throws IOException {
+        Link link = link(port);
+        try {
+            return link.request(request);
+        } catch (IOException e) {
+            if (!link.closed || !link.answered) {
+                throw e;
+            }
+            // e.g. the Server was restarted since the link was opened
+            Log.info("{} : link to server {} was broken, reconnecting", this.owner, port);
+            return link(port).request(request);
+        }
+    }
+
+    /**
+     * Sends a message to a Server without waiting for its response, e.g. a notification.
+     *
+     * @param port    the port of the Server
+     * @param message the message, without RequestID
+     * @throws IOException if the Server cannot be reached
+     */
+    void send(int port, JSONObject message) throws IOException {
+        Link link = link(port);
+        try {
+            link.send(message);
+        } catch (IOException e) {
+            if (!link.answered) {
+                throw e;
+            }
+            link(port).send(message);
+        }
+    }
+
+    // the open link to a Server, or a new one
+    private Link link(int port) throws IOException {
+        synchronized (this.linkTable) {
+            Link link = this.linkTable.get(port);
+            if (link == null || link.closed) {
+                link = new Link(port, MessageConnection.open(HOST, port, this.binaryProtocol));
+                this.linkTable.put(port, link);
+                link.start();
+            }
+            return link;
+        }
+    }
+
+    /**
+     * The connection to one Server, and the requests waiting for a response on it.
+     */
+    private class Link {
+
+        private int port;
+        private MessageConnection connection;
+        private ConcurrentHashMap<Integer, CompletableFuture<JSONObject>> pendingRequests;  // <RequestID, response>
+        private volatile boolean closed;
+        private volatile boolean answered;           // whether the Server responded on this link before
+
+        Link(int port, MessageConnection connection) {
+            this.port = port;
+            this.connection = connection;
+            this.pendingRequests = new ConcurrentHashMap<>();
+        }
+
+        void start() {
+            Thread reader = new Thread(this::readResponses, owner + "-link-" + this.port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        JSONObject request(JSONObject request) throws IOException {
+            int requestID = nextRequestID.incrementAndGet();
+            CompletableFuture<JSONObject> response = new CompletableFuture<>();
+            this.pendingRequests.put(requestID, response);
+            try {
+                if (this.closed) {
+                    throw new IOException("Link to server " + this.port + " closed");
+                }
+                write(request, requestID);
+                return response.get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw new IOException("Link to server " + this.port + " closed: " + e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                throw new IOException("No response from server " + this.port + " to request " + requestID);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for server " + this.port);
+            } finally {
+                this.pendingRequests.remove(requestID);
+            }
+        }
+
+        // the response will be dropped by the reader, as no request waits for it
+        void send(JSONObject message) throws IOException {
+            write(message, nextRequestID.incrementAndGet());
+        }
+
+        private void write(JSONObject message, int requestID) throws IOException {
+            JSONObject tagged = new JSONObject(message.toString());
+            tagged.put("RequestID", requestID);
+            try {
+                this.connection.write(tagged);
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        private void readResponses() {
+            try {
+                JSONObject response;
+                while ((response = this.connection.read()) != null) {
+                    this.answered = true;
+                    Object requestID = response.remove("RequestID");
+                    if (requestID instanceof Number) {
+                        CompletableFuture<JSONObject> pending = this.pendingRequests.get(((Number) requestID).intValue());
+                        if (pending != null) {
+                            pending.complete(response);
+                        }
+                    }
+                }
+                close(new IOException("connection closed by the server"));
+            } catch (IOException | JSONException e) {
+                close(e instanceof IOException ? (IOException) e : new IOException(e.getMessage()));
+            }
+        }
+
+        private void close(IOException cause) {
+            this.closed = true;
+            this.connection.close();
+            synchronized (linkTable) {
+                linkTable.remove(this.port, this);
+            }
+            for (Map.Entry<Integer, CompletableFuture<JSONObject>> pending : this.pendingRequests.entrySet()) {
+                pending.getValue().completeExceptionally(cause);
+            }
+        }
+    }
+}
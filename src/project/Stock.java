@@ -1,5 +1,4 @@
 package project;
-import java.util.Hashtable;
 
 /**
  * Stock: for storing all necessary information of stocks in this project.
@@ -10,10 +9,9 @@ public class Stock {
     private String stockName;                       // the name of this Stock in the given csv file, e.g. "ACCOR"
     private String exchangeName;                    // the name of the Exchange where this Stock is listed
 
-    private Hashtable<Integer, Double> priceTable;  // stores <timeIndex, price> of this Stock
-    private Hashtable<Integer, Integer> qtyTable;   // stores <timeIndex, quantity> of this Stock
+    private Tape tape;                              // the price and quantity of this Stock at each timeIndex
 
-    private int currentQty;                         // the current quantity of this Stock
+    private StockInventory inventory;               // the current quantity of this Stock
 
     private ExchangeUtils exchangeUtils;            // for dealing with currency of the price of this Stock
     private double currencyToUSD;                   // the current price of this Stock in USD
@@ -26,13 +24,23 @@ public class Stock {
      * @param exchangeName the exchange name of where this Stock is listed
      */
     Stock(String stockName, String exchangeName) {
+        this(stockName, exchangeName, new ArrayTape(stockName));
+    }
+
+    /**
+     * Instantiates a new Stock with an already loaded tape.
+     *
+     * @param stockName    the name of this Stock
+     * @param exchangeName the exchange name of where this Stock is listed
+     * @param tape         the price and quantity of this Stock at each timeIndex
+     */
+    Stock(String stockName, String exchangeName, Tape tape) {
         this.stockName = stockName;
         this.exchangeName = exchangeName;
 
-        this.priceTable = new Hashtable<>();
-        this.qtyTable = new Hashtable<>();
+        this.tape = tape;
 
-        this.currentQty = 0;
+        this.inventory = new StockInventory(0);
 
         this.exchangeUtils = new ExchangeUtils(this.exchangeName);
         this.currencyToUSD = exchangeUtils.getCurrencyToUSD();
@@ -42,7 +50,7 @@ public class Stock {
 
     @Override
     public String toString() {
-        return String.valueOf(this.currentQty);
+        return String.valueOf(this.inventory.get());
     }
 
     public String currentPriceToString(int time) {
@@ -60,48 +68,65 @@ public class Stock {
     }
 
 
+    // only for a Stock loaded from the csv files, while loading
     void setPrice(int time, double price) {
-        this.priceTable.put(time, price);
+        ((ArrayTape) this.tape).setPrice(time, price);
     }
 
 
     void setQuantity(int time, int quantity) {
-        this.qtyTable.put(time, quantity);
+        ((ArrayTape) this.tape).setQuantity(time, quantity);
     }
 
 
     double getPrice(int time) {
-        return this.priceTable.get(time);
+        return this.tape.getPrice(time);
     }
 
     int getQty(int time) {
-        return this.qtyTable.get(time);
+        return this.tape.getQty(time);
+    }
+
+    int getLastTime() {
+        return this.tape.getLastTime();
+    }
+
+    /**
+     * Shrinks the tape of a Stock loaded from the csv files once all the timestamps are loaded.
+     */
+    void trimTape() {
+        if (this.tape instanceof ArrayTape) {
+            ((ArrayTape) this.tape).trim();
+        }
     }
 
     int getCurrentQty() {
-        return this.currentQty;
+        return this.inventory.get();
     }
 
     void addCurrentQty(int qty) {
-        this.currentQty += qty;
+        this.inventory.add(qty);
     }
 
     boolean deCurrentQty(int qty) {
-        if(this.currentQty < qty){
-            return false;
-        }else{
-            this.currentQty -= qty;
-            return true;
-        }
+        return this.inventory.reserve(qty);
     }
 
     void printPriceTable() {
-        System.out.println(this.priceTable);
+        StringBuilder prices = new StringBuilder();
+        for (int time = 1; time <= this.tape.getLastTime(); time++) {
+            prices.append(time == 1 ? "[" : ", ").append(this.tape.getPrice(time));
+        }
+        System.out.println(prices.append("]"));
     }
 
 
     void printQtyTable() {
-        System.out.println(this.qtyTable);
+        StringBuilder quantities = new StringBuilder();
+        for (int time = 1; time <= this.tape.getLastTime(); time++) {
+            quantities.append(time == 1 ? "[" : ", ").append(this.tape.getQty(time));
+        }
+        System.out.println(quantities.append("]"));
     }
 
 }
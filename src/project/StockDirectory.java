@@ -0,0 +1,315 @@
+package project;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StockDirectory: the routing table of a continent Server, i.e. the exchanges registered with it and the exchanges of
+ * other continents it cached, with the stocks they list.
+ *
+ * Next to the stocks of each exchange, the directory keeps the inverted index <stock name, exchange name>, so finding
+ * the exchange of a stock is one lookup however many exchanges are known. Lookups do not lock; registrations, cache
+ * fills and removals lock the directory so both tables always change together.
+ *
+ * The directory also remembers for a while the stocks that no exchange of the ring lists (negative entries), so
+ * repeated requests for a bad symbol are answered without walking the ring again. An entry expires after the TTL, or
+ * as soon as an exchange listing the stock registers with this Server.
+ *
+ * Each registration, cache fill and removal gets the next sequence number and is kept in a log of the latest changes,
+ * which DirectoryReplicator streams to the backup of the Server. Negative entries are not logged.
+ */
+class StockDirectory {
+
+    private static final int MAX_UNKNOWN_STOCKS = 100000;  // bounds the negative entries kept for random bad symbols
+    private static final int MAX_LOGGED_CHANGES = 10000;   // a backup further behind gets a snapshot
+
+    static final String REGISTER = "register";
+    static final String CACHE = "cache";
+    static final String REMOVE = "remove";
+
+    /**
+     * A change of the directory: a registration, the stocks of an exchange cached by the Server, or a removal.
+     */
+    static class Change {
+
+        final long seq;                         // the sequence number of the change, 0 in a snapshot
+        final String kind;                      // REGISTER, CACHE or REMOVE
+        final String exchangeName;
+        final int address;
+        final Collection<String> stockNames;    // empty for REMOVE
+
+        Change(long seq, String kind, String exchangeName, int address, Collection<String> stockNames) {
+            this.seq = seq;
+            this.kind = kind;
+            this.exchangeName = exchangeName;
+            this.address = address;
+            this.stockNames = stockNames;
+        }
+    }
+
+    private ConcurrentHashMap<String, String> stockExchangeTable;       // <StockName, ExchangeName>
+    private ConcurrentHashMap<String, Integer> exchangeAddressTable;    // <ExchangeName, ExchangeAddress>
+    private ConcurrentHashMap<String, Set<String>> exchangeStockTable;  // <ExchangeName, StockNames>, for removing them
+    private Set<String> internalExchangeSet;                            // the exchanges registered with this Server
+    private ConcurrentHashMap<String, Long> unknownStockTable;          // <StockName, expiry in System.nanoTime()>
+    private long unknownStockTtlNanos;                                  // 0 to never remember unknown stocks
+    private long seq;                                                   // the sequence number of the last change
+    private ArrayDeque<Change> changeLog;                               // the latest changes, oldest first
+
+    /**
+     * Instantiates a new StockDirectory.
+     *
+     * @param unknownStockTtlMillis how long a stock no exchange lists is remembered, 0 to never remember it
+     */
+    StockDirectory(long unknownStockTtlMillis) {
+        this.stockExchangeTable = new ConcurrentHashMap<>();
+        this.exchangeAddressTable = new ConcurrentHashMap<>();
+        this.exchangeStockTable = new ConcurrentHashMap<>();
+        this.internalExchangeSet = ConcurrentHashMap.newKeySet();
+        this.unknownStockTable = new ConcurrentHashMap<>();
+        this.unknownStockTtlNanos = Math.max(0, unknownStockTtlMillis) * 1000000L;
+        this.changeLog = new ArrayDeque<>();
+    }
+
+    /**
+     * Adds an exchange registering with this Server, replacing the stocks it listed before (e.g. after a restart).
+     *
+     * @param exchangeName the name of the exchange
+     * @param address      the port it listens on
+     * @param stockNames   all the stocks it lists
+     */
+    synchronized void register(String exchangeName, int address, Collection<String> stockNames) {
+        removeStocks(exchangeName);
+        this.exchangeAddressTable.put(exchangeName, address);
+        this.exchangeStockTable.put(exchangeName, new HashSet<>(stockNames));
+        for (String stockName : stockNames) {
+            this.stockExchangeTable.put(stockName, exchangeName);
+            this.unknownStockTable.remove(stockName);
+        }
+        this.internalExchangeSet.add(exchangeName);
+        log(REGISTER, exchangeName, address, new ArrayList<>(stockNames));
+    }
+
+    /**
+     * Remembers that no exchange of the ring lists a stock, until the TTL expires or an exchange listing it registers.
+     *
+     * @param stockName the stock
+     */
+    synchronized void cacheUnknown(String stockName) {
+        // a stock registered or cached meanwhile is known
+        if (this.unknownStockTtlNanos == 0 || this.stockExchangeTable.containsKey(stockName)) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (this.unknownStockTable.size() >= MAX_UNKNOWN_STOCKS) {
+            this.unknownStockTable.values().removeIf(expiry -> now - expiry >= 0);
+            if (this.unknownStockTable.size() >= MAX_UNKNOWN_STOCKS) {
+                return;
+            }
+        }
+        this.unknownStockTable.put(stockName, now + this.unknownStockTtlNanos);
+    }
+
+    /**
+     * @param stockName the stock
+     * @return whether no exchange of the ring listed the stock when it was last looked up, less than the TTL ago
+     */
+    boolean isUnknown(String stockName) {
+        Long expiry = this.unknownStockTable.get(stockName);
+        if (expiry == null) {
+            return false;
+        }
+        if (System.nanoTime() - expiry >= 0) {
+            this.unknownStockTable.remove(stockName, expiry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caches the exchange of a stock, found by asking the other Servers.
+     *
+     * @param stockName    the stock
+     * @param exchangeName the exchange listing it
+     * @param address      the port the exchange listens on
+     */
+    synchronized void cache(String stockName, String exchangeName, int address) {
+        cache(Collections.singletonList(stockName), exchangeName, address);
+    }
+
+    /**
+     * Caches the exchange of several stocks, e.g. replicated from the primary Server.
+     *
+     * @param stockNames   the stocks
+     * @param exchangeName the exchange listing them
+     * @param address      the port the exchange listens on
+     */
+    synchronized void cache(Collection<String> stockNames, String exchangeName, int address) {
+        this.exchangeAddressTable.put(exchangeName, address);
+        Set<String> exchangeStocks = this.exchangeStockTable.computeIfAbsent(exchangeName, name -> new HashSet<>());
+        for (String stockName : stockNames) {
+            this.unknownStockTable.remove(stockName);
+            exchangeStocks.add(stockName);
+            String previous = this.stockExchangeTable.put(stockName, exchangeName);
+            if (previous != null && !previous.equals(exchangeName)) {
+                Set<String> previousStocks = this.exchangeStockTable.get(previous);
+                if (previousStocks != null) {
+                    previousStocks.remove(stockName);
+                }
+            }
+        }
+        log(CACHE, exchangeName, address, new ArrayList<>(stockNames));
+    }
+
+    /**
+     * Removes an exchange that is down, with all its stocks. An exchange registered with this Server is only removed if
+     * it did not register again meanwhile (at another address).
+     *
+     * @param exchangeName the name of the exchange
+     * @param address      the port it was listening on
+     */
+    synchronized void remove(String exchangeName, int address) {
+        Integer knownAddress = this.exchangeAddressTable.get(exchangeName);
+        if (knownAddress == null) {
+            return;
+        }
+        if (this.internalExchangeSet.contains(exchangeName)) {
+            if (knownAddress != address) {
+                return;
+            }
+            this.internalExchangeSet.remove(exchangeName);
+        }
+        removeStocks(exchangeName);
+        this.exchangeAddressTable.remove(exchangeName);
+        log(REMOVE, exchangeName, address, Collections.emptyList());
+    }
+
+    /**
+     * Applies a change made on another directory (see DirectoryReplicator).
+     *
+     * @param change the change
+     */
+    synchronized void apply(Change change) {
+        switch (change.kind) {
+            case REGISTER:
+                register(change.exchangeName, change.address, change.stockNames);
+                break;
+            case CACHE:
+                cache(change.stockNames, change.exchangeName, change.address);
+                break;
+            case REMOVE:
+                remove(change.exchangeName, change.address);
+                break;
+        }
+    }
+
+    /**
+     * Removes all the exchanges and stocks, e.g. before applying a snapshot. The sequence numbers go on.
+     */
+    synchronized void clear() {
+        this.stockExchangeTable.clear();
+        this.exchangeAddressTable.clear();
+        this.exchangeStockTable.clear();
+        this.internalExchangeSet.clear();
+    }
+
+    /**
+     * @return the sequence number of the last change
+     */
+    synchronized long getSeq() {
+        return this.seq;
+    }
+
+    /**
+     * Waits for changes after a sequence number.
+     *
+     * @param seq           the sequence number of the last change already seen
+     * @param timeoutMillis how long to wait for a change
+     * @return the changes after seq, oldest first (empty if there was none in time), or null if some of them are not
+     *         logged any more
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized List<Change> awaitChanges(long seq, long timeoutMillis) throws InterruptedException {
+        if (this.seq == seq) {
+            wait(timeoutMillis);
+        }
+        if (this.seq < seq || (this.seq > seq && (this.changeLog.isEmpty() || this.changeLog.peekFirst().seq > seq + 1))) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<>();
+        for (Change change : this.changeLog) {
+            if (change.seq > seq) {
+                changes.add(change);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * The changes rebuilding the whole directory (with sequence number 0), and the sequence number of the last change
+     * they include.
+     *
+     * @param snapshot filled with the changes: a registration for each exchange registered with this Server, a cache
+     *                 fill for each other exchange
+     * @return the sequence number of the snapshot
+     */
+    synchronized long snapshot(List<Change> snapshot) {
+        for (String exchangeName : this.exchangeAddressTable.keySet()) {
+            String kind = this.internalExchangeSet.contains(exchangeName) ? REGISTER : CACHE;
+            Set<String> stockNames = this.exchangeStockTable.getOrDefault(exchangeName, Collections.emptySet());
+            snapshot.add(new Change(0, kind, exchangeName, this.exchangeAddressTable.get(exchangeName),
+                    new ArrayList<>(stockNames)));
+        }
+        return this.seq;
+    }
+
+    /**
+     * @param stockName the stock
+     * @return the name of the exchange listing the stock, registered with or cached by this Server, or null
+     */
+    String getExchange(String stockName) {
+        return this.stockExchangeTable.get(stockName);
+    }
+
+    /**
+     * @param exchangeName the exchange
+     * @return the port the exchange listens on, or -1 if it is not known (any more)
+     */
+    int getAddress(String exchangeName) {
+        return this.exchangeAddressTable.getOrDefault(exchangeName, -1);
+    }
+
+    /**
+     * @param exchangeName the exchange
+     * @return a copy of the stocks of the exchange, empty if it is not known (any more)
+     */
+    synchronized List<String> getStocks(String exchangeName) {
+        return new ArrayList<>(this.exchangeStockTable.getOrDefault(exchangeName, Collections.emptySet()));
+    }
+
+    // gives the change the next sequence number and wakes up the replicator
+    private void log(String kind, String exchangeName, int address, Collection<String> stockNames) {
+        this.seq++;
+        this.changeLog.addLast(new Change(this.seq, kind, exchangeName, address, stockNames));
+        if (this.changeLog.size() > MAX_LOGGED_CHANGES) {
+            this.changeLog.removeFirst();
+        }
+        notifyAll();
+    }
+
+    // removes the stocks of an exchange from the index, unless another exchange took them over
+    private void removeStocks(String exchangeName) {
+        Set<String> stockNames = this.exchangeStockTable.remove(exchangeName);
+        if (stockNames != null) {
+            for (String stockName : stockNames) {
+                this.stockExchangeTable.remove(stockName, exchangeName);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package project;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StockInventory: the current quantity of a Stock, updated with compare-and-set instead of locks.
+ *
+ * Every Stock owns its own inventory, so orders for different stocks never contend with each other, and orders for
+ * the same stock never lose an update.
+ */
+class StockInventory {
+
+    private AtomicInteger quantity;   // the current quantity available to be bought
+
+    StockInventory(int quantity) {
+        this.quantity = new AtomicInteger(quantity);
+    }
+
+    int get() {
+        return this.quantity.get();
+    }
+
+    /**
+     * Adds quantity, e.g. for a sell order or a replenishment from the quantity table.
+     *
+     * @param qty the quantity to be added
+     */
+    void add(int qty) {
+        this.quantity.addAndGet(qty);
+    }
+
+    /**
+     * Takes quantity for a buy order, all or nothing: either the whole quantity is taken, or nothing is taken when
+     * there is not enough left.
+     *
+     * @param qty the quantity to be taken
+     * @return true if the quantity was taken, false if there was not enough left
+     */
+    boolean reserve(int qty) {
+        while (true) {
+            int current = this.quantity.get();
+            if (current < qty) {
+                return false;
+            }
+            if (this.quantity.compareAndSet(current, current - qty)) {
+                return true;
+            }
+        }
+    }
+}
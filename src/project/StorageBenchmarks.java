@@ -0,0 +1,426 @@
+package project;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StorageBenchmarks: the benchmarks of the state of an Exchange: its stock quantities, its logs and its
+ * replenishments.
+ * Run by Benchmark: java Benchmark --benchmark=<name> [--key=value ...]
+ *
+ * inventory:   stress test of StockInventory (runs in this process): threads do millions of offsetting sells and buys
+ *              on a few stocks at the same time, then the quantity of each stock is compared with the orders that
+ *              succeeded. Runs the same orders on an unsynchronized int (the previous Stock.currentQty) for comparison.
+ *              Options: --threads=8 --pairs=1000000 (sell/buy pairs per thread) --stocks=2
+ *
+ * wal:         micro benchmark of logging trades (runs in this process, writes to the current directory): the whole stock
+ *              table printed per trade as before, then the write-ahead log in each durability mode (os, batch, sync).
+ *              Options: --threads=8 --trades=2000 (per thread) --stocks=40 (size of the printed table)
+ *
+ * recovery:    restart time of an Exchange (runs in this process, writes to the current directory): writes logs of growing
+ *              sizes without and with checkpoints, then times reading them back as after a restart.
+ *              Options: --records=10000,100000,1000000 --checkpointRecords=100000 --stocks=40
+ *
+ * logging:     micro benchmark of printing trade messages (runs in this process): printing on the trading threads as before,
+ *              the asynchronous Log at info level and Log disabled, with the bytes each message allocates on the
+ *              calling thread. The messages go to --logFile, which is deleted after.
+ *              Options: --threads=8 --messages=200000 (per thread) --logFile=benchmark.out
+ *
+ * replenish:   cost of the ticks of the clock of an exchange listing many stocks (runs in this process, writes to the
+ *              current directory): every stock of the table checked and logged on its own at each tick as before,
+ *              against the ReplenishmentSchedule applied as one log record per tick.
+ *              Options: --stocks=1000 --changes=10 (stocks replenished at a replenishing tick) --every=60 (one tick in
+ *                       this many replenishes) --ticks=100000 --durability=os
+ */
+class StorageBenchmarks {
+
+    private Options options;
+
+    StorageBenchmarks(Options options) {
+        this.options = options;
+    }
+
+    void inventory() {
+
+        int numThreads = this.options.getInt("threads", 8);
+        int pairs = this.options.getInt("pairs", 1000000);
+        int numStocks = this.options.getInt("stocks", 2);
+        int initialQty = 1000;
+
+        StockInventory[] inventories = new StockInventory[numStocks];
+        int[] unsafeQty = new int[numStocks];
+        for (int i = 0; i < numStocks; i++) {
+            inventories[i] = new StockInventory(initialQty);
+            unsafeQty[i] = initialQty;
+        }
+
+        // net quantity sold minus bought for each stock, counted from the orders that succeeded
+        AtomicLong[] netSold = new AtomicLong[numStocks];
+        AtomicLong[] unsafeNetSold = new AtomicLong[numStocks];
+        for (int i = 0; i < numStocks; i++) {
+            netSold[i] = new AtomicLong();
+            unsafeNetSold[i] = new AtomicLong();
+        }
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            int threadIndex = t;
+            Thread thread = new Thread(() -> {
+                int stock = threadIndex % numStocks;
+                StockInventory inventory = inventories[stock];
+                long net = 0;
+                for (int i = 0; i < pairs; i++) {
+                    int qty = 1 + i % 100;
+                    // half of the threads sell then buy back, the other half buy (if enough is left) then sell back
+                    if (threadIndex % 2 == 0) {
+                        inventory.add(qty);
+                        net += qty;
+                        if (inventory.reserve(qty)) {
+                            net -= qty;
+                        }
+                    } else if (inventory.reserve(qty)) {
+                        net -= qty;
+                        inventory.add(qty);
+                        net += qty;
+                    }
+                }
+                netSold[stock].addAndGet(net);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Benchmark.joinAll(threads);
+        long elapsed = System.nanoTime() - begin;
+
+        // the same orders on an unsynchronized int, as Stock.addCurrentQty/deCurrentQty did before
+        threads.clear();
+        for (int t = 0; t < numThreads; t++) {
+            int threadIndex = t;
+            Thread thread = new Thread(() -> {
+                int stock = threadIndex % numStocks;
+                long net = 0;
+                for (int i = 0; i < pairs; i++) {
+                    int qty = 1 + i % 100;
+                    unsafeQty[stock] += qty;
+                    net += qty;
+                    if (unsafeQty[stock] >= qty) {
+                        unsafeQty[stock] -= qty;
+                        net -= qty;
+                    }
+                }
+                unsafeNetSold[stock].addAndGet(net);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Benchmark.joinAll(threads);
+
+        long operations = 2L * pairs * numThreads;
+        System.out.println("Orders: " + operations + " on " + numStocks + " stocks by " + numThreads + " threads in "
+                + String.format("%1$,.1f", elapsed / 1e6) + " ms (" + String.format("%1$,.0f", operations / (elapsed / 1e9)) + " orders/s)");
+        long totalDrift = 0;
+        long totalUnsafeDrift = 0;
+        for (int i = 0; i < numStocks; i++) {
+            long drift = inventories[i].get() - (initialQty + netSold[i].get());
+            long unsafeDrift = unsafeQty[i] - (initialQty + unsafeNetSold[i].get());
+            System.out.println("Stock " + i + ": quantity " + inventories[i].get() + ", drift " + drift
+                    + " (unsynchronized int: drift " + unsafeDrift + ")");
+            totalDrift += Math.abs(drift);
+            totalUnsafeDrift += Math.abs(unsafeDrift);
+        }
+        System.out.println("StockInventory total drift: " + totalDrift);
+        System.out.println("Unsynchronized int total drift: " + totalUnsafeDrift);
+    }
+
+    void wal() {
+
+        int numThreads = this.options.getInt("threads", 8);
+        int trades = this.options.getInt("trades", 2000);
+        int numStocks = this.options.getInt("stocks", 40);
+
+        Hashtable<String, Stock> stockTable = new Hashtable<>();
+        for (int i = 0; i < numStocks; i++) {
+            stockTable.put("STOCK" + i, new Stock("STOCK" + i, "Shenzhen"));
+        }
+
+        // the previous log: the whole stock table printed and flushed on every trade
+        File file = new File("benchmark.log");
+        try (PrintWriter logWriter = new PrintWriter(file)) {
+            long elapsed = runTrades(numThreads, trades, numStocks, (stockName, qty) -> {
+                synchronized (logWriter) {
+                    logWriter.println(stockTable);
+                    logWriter.flush();
+                }
+            });
+            printTrades("table (before)", numThreads * trades, elapsed, file.length());
+        } catch (IOException e) {
+            System.out.println("Failed to write " + file + ": " + e.getMessage());
+        }
+        file.delete();
+
+        for (String durability : new String[]{WriteAheadLog.OS, WriteAheadLog.BATCH, WriteAheadLog.SYNC}) {
+            file = new File("benchmark.wal.1");
+            file.delete();
+            WriteAheadLog wal = new WriteAheadLog("Benchmark", "benchmark", durability, 0);
+            try {
+                wal.recover();
+            } catch (IOException e) {
+                System.out.println("Failed to open " + file + ": " + e.getMessage());
+                return;
+            }
+            long elapsed = runTrades(numThreads, trades, numStocks, (stockName, qty) -> wal.commit(wal.append(stockName, qty, 1)));
+            printTrades("wal " + durability, numThreads * trades, elapsed, file.length());
+            file.delete();
+        }
+    }
+
+    void recovery() {
+
+        String[] sizes = this.options.get("records", "10000,100000,1000000").split(",");
+        int checkpointRecords = this.options.getInt("checkpointRecords", 100000);
+        int numStocks = this.options.getInt("stocks", 40);
+
+        for (String size : sizes) {
+            int numRecords = Integer.parseInt(size.trim());
+            for (boolean withCheckpoints : new boolean[]{false, true}) {
+                deleteLogFiles("benchmark");
+                WriteAheadLog wal = new WriteAheadLog("Benchmark", "benchmark", WriteAheadLog.OS, 0);
+                try {
+                    wal.recover();
+                    for (int i = 1; i <= numRecords; i++) {
+                        wal.append("STOCK" + (i % numStocks), i % 2 == 0 ? -1 : 2, i);
+                        if (withCheckpoints && i % checkpointRecords == 0) {
+                            wal.checkpoint();
+                        }
+                    }
+                    long bytes = 0;
+                    for (File file : logFiles("benchmark")) {
+                        bytes += file.length();
+                    }
+
+                    // restarts: a new log reads the checkpoint and the segments written after it
+                    long begin = System.nanoTime();
+                    Hashtable<String, Integer> qtyTable = new WriteAheadLog("Benchmark", "benchmark", WriteAheadLog.OS, 0).recover();
+                    long elapsed = System.nanoTime() - begin;
+
+                    int total = 0;
+                    for (int qty : qtyTable.values()) {
+                        total += qty;
+                    }
+                    System.out.println(String.format("%1$,10d", numRecords) + " records, "
+                            + (withCheckpoints ? "checkpoint every " + checkpointRecords : "no checkpoints        ") + ": "
+                            + String.format("%1$,12d", bytes) + " bytes on disk, recovered in "
+                            + String.format("%1$,8.1f", elapsed / 1e6) + " ms (total qty " + total + ")");
+                } catch (IOException e) {
+                    System.out.println("Failed to write or read the log: " + e.getMessage());
+                }
+            }
+        }
+        deleteLogFiles("benchmark");
+    }
+
+    void logging() {
+
+        int numThreads = this.options.getInt("threads", 8);
+        int messages = this.options.getInt("messages", 200000);
+        File file = new File(this.options.get("logFile", "benchmark.out"));
+
+        PrintStream stdout = System.out;
+        long[] elapsed = new long[3];
+        AtomicLong[] allocated = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+        try (PrintStream logStream = new PrintStream(new FileOutputStream(file), true)) {
+            System.setOut(logStream);
+
+            // each run logs the message of an Exchange for every order of a client, with its 8 arguments
+            // 1. printing as before: concatenating and printing on the trading thread
+            elapsed[0] = runMessages(numThreads, messages, allocated[0], (thread, i) ->
+                    System.out.println("Shenzhen 1/4/2016 14:00: Client " + thread + " requested to buy " + i
+                            + " STOCK 12.5 Succeeded"));
+
+            // 2. the asynchronous logger at info level
+            elapsed[1] = runMessages(numThreads, messages, allocated[1], (thread, i) ->
+                    Log.info("{} {}: Client {}{}{} {} {} {}", "Shenzhen", "1/4/2016 14:00", thread, " requested to buy ", i,
+                            "STOCK", "12.5", "Succeeded"));
+
+            // 3. logging disabled
+            Log.configure(new Options(new String[]{"--logLevel=off"}));
+            elapsed[2] = runMessages(numThreads, messages, allocated[2], (thread, i) ->
+                    Log.info("{} {}: Client {}{}{} {} {} {}", "Shenzhen", "1/4/2016 14:00", thread, " requested to buy ", i,
+                            "STOCK", "12.5", "Succeeded"));
+            Log.flush();
+        } catch (IOException e) {
+            System.setOut(stdout);
+            System.out.println("Failed to open " + file + ": " + e.getMessage());
+            return;
+        }
+        System.setOut(stdout);
+
+        // the lines printed by the asynchronous logger, the others were dropped because its ring buffer was full
+        long logged = -(long) numThreads * messages;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            while (reader.readLine() != null) {
+                logged++;
+            }
+        } catch (IOException e) {
+            logged = 0;
+        }
+        file.delete();
+
+        String[] names = {"System.out (before)", "Log, info", "Log, off"};
+        for (int i = 0; i < names.length; i++) {
+            System.out.println(String.format("%-20s", names[i]) + String.format("%1$,14.0f", numThreads * (double) messages / (elapsed[i] / 1e9))
+                    + " messages/s on the calling threads, " + String.format("%1$,.1f", allocated[i].get() / ((double) numThreads * messages))
+                    + " bytes allocated per message");
+        }
+        System.out.println("Log, info printed " + String.format("%1$,d", logged) + " of " + String.format("%1$,d", (long) numThreads * messages)
+                + " messages (including the dropped messages notices), the others were dropped instead of waiting");
+    }
+
+    void replenish() {
+
+        int numStocks = this.options.getInt("stocks", 1000);
+        int changes = this.options.getInt("changes", 10);
+        int every = this.options.getInt("every", 60);
+        int ticks = this.options.getInt("ticks", 100000);
+        String durability = this.options.get("durability", WriteAheadLog.OS);
+
+        for (boolean withSchedule : new boolean[]{false, true}) {
+            ArrayList<Stock> stocks = new ArrayList<>();
+            for (int s = 0; s < numStocks; s++) {
+                Stock stock = new Stock("STOCK" + s, "Shenzhen");
+                for (int t = 1; t <= ticks; t++) {
+                    // at one tick in every, "changes" stocks (a different set each time) are replenished
+                    boolean replenished = t % every == 1 && Math.floorMod(s - t / every * changes, numStocks) < changes;
+                    stock.setQuantity(t, replenished ? 100 : 0);
+                }
+                stock.trimTape();
+                stocks.add(stock);
+            }
+            ReplenishmentSchedule schedule = ReplenishmentSchedule.of(stocks);
+
+            deleteLogFiles("benchmark");
+            WriteAheadLog wal = new WriteAheadLog("Benchmark", "benchmark", durability, 0);
+            try {
+                wal.recover();
+            } catch (IOException e) {
+                System.out.println("Failed to open the log: " + e.getMessage());
+                return;
+            }
+
+            long records = 0;
+            long begin = System.nanoTime();
+            for (int timeIndex = 1; timeIndex <= ticks; timeIndex++) {
+                if (withSchedule) {
+                    ReplenishmentSchedule.Tick tick = schedule.get(timeIndex);
+                    if (tick != null) {
+                        for (int i = 0; i < tick.stocks.length; i++) {
+                            tick.stocks[i].addCurrentQty(tick.quantities[i]);
+                        }
+                        wal.commit(wal.append(tick.stockNames, tick.quantities, timeIndex));
+                        records++;
+                    }
+                } else {
+                    long lastSequence = -1;
+                    for (Stock stock : stocks) {
+                        if (stock.getQty(timeIndex) > 0) {
+                            stock.addCurrentQty(stock.getQty(timeIndex));
+                            lastSequence = wal.append(stock.getName(), stock.getQty(timeIndex), timeIndex);
+                            records++;
+                        }
+                    }
+                    wal.commit(lastSequence);
+                }
+            }
+            long elapsed = System.nanoTime() - begin;
+
+            long bytes = 0;
+            for (File file : logFiles("benchmark")) {
+                bytes += file.length();
+            }
+            long totalQty = 0;
+            for (Stock stock : stocks) {
+                totalQty += stock.getCurrentQty();
+            }
+            System.out.println((withSchedule ? "  schedule:             " : "  every stock (before): ")
+                    + String.format("%1$,10.1f", elapsed / (double) ticks) + " ns per tick, "
+                    + String.format("%1$,9d", records) + " records, " + String.format("%1$,11d", bytes) + " bytes of log, "
+                    + String.format("%1$,d", totalQty) + " shares added");
+        }
+        deleteLogFiles("benchmark");
+    }
+
+    // the checkpoint and segments of a write-ahead log in the current directory
+    private static ArrayList<File> logFiles(String baseName) {
+        ArrayList<File> files = new ArrayList<>();
+        File[] all = new File(".").listFiles();
+        if (all != null) {
+            for (File file : all) {
+                if (file.getName().startsWith(baseName + ".wal.") || file.getName().equals(baseName + ".ckpt")) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void deleteLogFiles(String baseName) {
+        for (File file : logFiles(baseName)) {
+            file.delete();
+        }
+    }
+
+    private interface Message {
+        void log(int thread, int i);
+    }
+
+    // logs the given number of messages on each thread, adds the bytes they allocated, returns the elapsed nanoseconds
+    private long runMessages(int numThreads, int messages, AtomicLong allocatedBytes, Message message) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ArrayList<Thread> threads = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            Thread logger = new Thread(() -> {
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                for (int i = 0; i < messages; i++) {
+                    message.log(thread, i);
+                }
+                allocatedBytes.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+            });
+            threads.add(logger);
+            logger.start();
+        }
+        Benchmark.joinAll(threads);
+        return System.nanoTime() - begin;
+    }
+
+    private interface Trade {
+        void log(String stockName, int qty);
+    }
+
+    // runs the given number of trades on each thread, returns the elapsed nanoseconds
+    private long runTrades(int numThreads, int trades, int numStocks, Trade trade) {
+        ArrayList<Thread> threads = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < trades; i++) {
+                    trade.log("STOCK" + (i % numStocks), i % 2 == 0 ? -1 : 1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Benchmark.joinAll(threads);
+        return System.nanoTime() - begin;
+    }
+
+    private static void printTrades(String name, int trades, long elapsedNanos, long fileLength) {
+        System.out.println(String.format("%-15s", name) + String.format("%1$,12.0f", trades / (elapsedNanos / 1e9)) + " trades/s, "
+                + String.format("%1$,8.1f", fileLength / (double) trades) + " bytes/trade");
+    }
+}
@@ -0,0 +1,17 @@
+package project;
+
+/**
+ * Tape: the price and the quantity added of a Stock at each timeIndex (the 1st timestamp of the csv files is
+ * timeIndex 1). Asking past the end of the tape is an error.
+ */
+interface Tape {
+
+    double getPrice(int time);
+
+    int getQty(int time);
+
+    /**
+     * @return the last timeIndex of the tape
+     */
+    int getLastTime();
+}
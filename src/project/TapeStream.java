@@ -0,0 +1,253 @@
+package project;
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+/**
+ * TapeStream: reads the price and quantity tapes of an Exchange from the csv files while it is trading, instead of
+ * loading all the timestamps before registering ("--marketData=stream", "--tapeWindow=<rows>").
+ *
+ * Only the header lines are read at startup, to create the stocks. A loader thread then reads the following lines into
+ * ring buffers of tapeWindow rows, and stays at most tapeWindow rows ahead of the clock of the Exchange (see advance):
+ * a row is overwritten once it is in the past. The memory used by the tapes does not depend on the length of the files.
+ * Asking for a row that was not read yet waits for the loader; asking for a row that was dropped is an error.
+ * The replenishments of each row read are added to the schedule of the Exchange, and removed with the row.
+ */
+class TapeStream {
+
+    private String exchangeName;
+    private CSVColumnReader csvPriceReader;
+    private CSVColumnReader csvQtyReader;
+    private int[] columnIndices;                    // the columns of the stocks of this Exchange in the csv files
+    private Hashtable<Integer, String> timeIndexTable;  // the timestamps of the rows in the window
+    private Stock[] stocks;                         // the stocks of this Exchange, in the order of columnIndices
+    private ReplenishmentSchedule schedule;         // the replenishments of the rows in the window
+
+    // row time is in slot time % window
+    private int window;
+    private double[][] prices;                      // prices[slot][stock]
+    private int[][] quantities;                     // quantities[slot][stock]
+
+    private volatile int loadedTime;                // the last timeIndex read from the files
+    private volatile int writingTime;               // the timeIndex being written, its slot is not valid any more
+    private volatile int clock;                     // the current timeIndex of the Exchange
+    private volatile boolean finished;              // whether the loader reached the end of the files (or failed)
+
+    /**
+     * Reads the header lines of the csv files and creates the stocks of an Exchange, with tapes reading this stream.
+     *
+     * @param csvPriceFile   the csv file of the prices
+     * @param csvQtyFile     the csv file of the quantities
+     * @param exchangeName   the name of the Exchange, e.g. "Shenzhen"
+     * @param window         the max number of rows kept, ahead of the clock
+     * @param stockTable     filled with <stock name, stock object> for the stocks of this Exchange
+     * @param timeIndexTable filled with the timestamps of the rows in the window
+     * @throws IOException if a csv file cannot be read
+     */
+    TapeStream(String csvPriceFile, String csvQtyFile, String exchangeName, int window,
+               Hashtable<String, Stock> stockTable, Hashtable<Integer, String> timeIndexTable) throws IOException {
+
+        final int EXCHANGE_LINE = 3,
+                STOCK_LINE = 4;
+
+        final int DATE_COL = 0,
+                TIME_COL = 1;
+
+        this.exchangeName = exchangeName;
+        this.timeIndexTable = timeIndexTable;
+        this.csvPriceReader = new CSVColumnReader(csvPriceFile);
+        this.csvQtyReader = new CSVColumnReader(csvQtyFile);
+        this.columnIndices = new int[0];
+        this.stocks = new Stock[0];
+        this.schedule = new ReplenishmentSchedule();
+        this.window = Math.max(2, window);
+        this.clock = 1;
+
+        // the same header lines as Exchange.loadCsv
+        while (this.csvPriceReader.getCurrentLineIndex() < STOCK_LINE && this.csvPriceReader.nextLine()) {
+            this.csvQtyReader.nextLine();
+
+            if (this.csvPriceReader.getCurrentLineIndex() == EXCHANGE_LINE) {
+                this.columnIndices = this.csvPriceReader.findColumns(exchangeName);
+                int[] projection = new int[this.columnIndices.length + 2];
+                projection[0] = DATE_COL;
+                projection[1] = TIME_COL;
+                System.arraycopy(this.columnIndices, 0, projection, 2, this.columnIndices.length);
+                this.csvPriceReader.project(projection);
+                this.csvQtyReader.project(this.columnIndices);
+            }
+
+            if (this.csvPriceReader.getCurrentLineIndex() == STOCK_LINE) {
+                this.stocks = new Stock[this.columnIndices.length];
+                for (int i = 0; i < this.columnIndices.length; i++) {
+                    String stockName = this.csvPriceReader.getLetters(this.columnIndices[i]);
+                    this.stocks[i] = new Stock(stockName, exchangeName, new Column(stockName, i));
+                    stockTable.put(stockName, this.stocks[i]);
+                }
+            }
+        }
+
+        this.prices = new double[this.window][this.columnIndices.length];
+        this.quantities = new int[this.window][this.columnIndices.length];
+    }
+
+    /**
+     * Starts reading the rows of the tapes in the background.
+     */
+    void start() {
+        Thread loader = new Thread(this::load, this.exchangeName + "-tape");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * @return the replenishments of the rows read so far and not dropped yet
+     */
+    ReplenishmentSchedule getSchedule() {
+        return this.schedule;
+    }
+
+    /**
+     * Waits until a row is read, e.g. before looking up its replenishments.
+     *
+     * @param time the timeIndex of the row
+     * @throws IndexOutOfBoundsException if the row was dropped or is past the end of the files
+     */
+    void await(int time) {
+        slot(time, this.exchangeName);
+    }
+
+    /**
+     * Moves the clock of the Exchange: the rows before the previous timeIndex may be dropped from now on.
+     *
+     * @param time the current timeIndex of the Exchange
+     */
+    synchronized void advance(int time) {
+        this.clock = time;
+        notifyAll();
+    }
+
+    private void load() {
+        final int STOCK_LINE = 4;
+        try {
+            while (this.csvPriceReader.nextLine()) {
+                this.csvQtyReader.nextLine();
+                int time = this.csvPriceReader.getCurrentLineIndex() - STOCK_LINE;
+
+                // keeps the rows of the previous and the current timeIndex, for the orders that are still running
+                synchronized (this) {
+                    while (time - this.window >= this.clock - 1) {
+                        wait();
+                    }
+                }
+
+                this.writingTime = time;
+                int slot = time % this.window;
+                int numReplenished = 0;
+                for (int i = 0; i < this.columnIndices.length; i++) {
+                    this.prices[slot][i] = this.csvPriceReader.getDouble(this.columnIndices[i]);
+                    this.quantities[slot][i] = this.csvQtyReader.getInt(this.columnIndices[i], 0);
+                    if (this.quantities[slot][i] > 0) {
+                        numReplenished++;
+                    }
+                }
+                this.schedule.remove(time - this.window);
+                if (numReplenished > 0) {
+                    Stock[] replenished = new Stock[numReplenished];
+                    int[] quantities = new int[numReplenished];
+                    for (int i = 0, j = 0; i < this.columnIndices.length; i++) {
+                        if (this.quantities[slot][i] > 0) {
+                            replenished[j] = this.stocks[i];
+                            quantities[j++] = this.quantities[slot][i];
+                        }
+                    }
+                    this.schedule.put(time, new ReplenishmentSchedule.Tick(replenished, quantities));
+                }
+                this.timeIndexTable.put(time, this.csvPriceReader.getString(0) + " " + this.csvPriceReader.getString(1));
+                this.timeIndexTable.remove(time - this.window);
+
+                synchronized (this) {
+                    this.loadedTime = time;     // publishes the row
+                    notifyAll();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("{}: Failed to read the tapes after timeIndex {}: {}", this.exchangeName, this.loadedTime, e);
+        } catch (InterruptedException e) {
+            // the Exchange is exiting
+        } finally {
+            close();
+        }
+    }
+
+    private synchronized void close() {
+        this.finished = true;
+        notifyAll();
+        try {
+            this.csvPriceReader.close();
+            this.csvQtyReader.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
+    }
+
+    // waits until the row is read, and checks it was not dropped
+    private int slot(int time, String stockName) {
+        if (time > this.loadedTime) {
+            synchronized (this) {
+                while (time > this.loadedTime && !this.finished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        checkTime(time, stockName);
+        return time % this.window;
+    }
+
+    private void checkTime(int time, String stockName) {
+        int loaded = this.loadedTime;
+        if (time < 1 || time > loaded || time <= this.writingTime - this.window) {
+            throw new IndexOutOfBoundsException(stockName + " has no price or quantity at timeIndex " + time
+                    + " (rows " + Math.max(1, loaded - this.window + 1) + " to " + loaded + " are read)");
+        }
+    }
+
+    /**
+     * The tape of one stock: a column of the ring buffers.
+     */
+    private class Column implements Tape {
+
+        private String stockName;
+        private int stock;                          // the index of the stock in the rows
+
+        Column(String stockName, int stock) {
+            this.stockName = stockName;
+            this.stock = stock;
+        }
+
+        @Override
+        public double getPrice(int time) {
+            double price = prices[slot(time, this.stockName)][this.stock];
+            checkTime(time, this.stockName);        // the row was not overwritten while reading it
+            return price;
+        }
+
+        @Override
+        public int getQty(int time) {
+            int qty = quantities[slot(time, this.stockName)][this.stock];
+            checkTime(time, this.stockName);
+            return qty;
+        }
+
+        // the last timeIndex read so far, the length of the tape once the loader finished
+        @Override
+        public int getLastTime() {
+            return loadedTime;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package project;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TradingClock: how fast the timestamps of the csv files go by ("--clock=real|accelerated|step", "--speed=<N>").
+ *
+ *   real:        a timestamp lasts one second, as in the tests.
+ *   accelerated: a timestamp lasts 1/N second, so the whole tape is replayed N times faster.
+ *   step:        the next timestamp starts as soon as the previous one is done, for pushing the whole tape through
+ *                the system as fast as possible. There is no shared timeline: each Exchange steps through its own
+ *                tape at its own pace, so an order forwarded to another Exchange meets it at another timestamp.
+ *                Step mode is meant for runs with a single Exchange, or where that does not matter.
+ *
+ * The continent Servers own the clock: they send it with the start time when an Exchange registers, so all the
+ * Exchanges of a continent follow the same clock. Clients scale the delays and periods of their orders with it, so the
+ * same scenario sends the same number of orders per timestamp.
+ */
+class TradingClock {
+
+    static final String REAL = "real";
+    static final String ACCELERATED = "accelerated";
+    static final String STEP = "step";
+
+    private static final long SECOND_NANOS = 1000000000L;
+    private static final long REGISTRATION_MILLIS = 20000;  // from starting the Servers to the first timestamp
+
+    private String mode;                            // "real", "accelerated" or "step"
+    private int speed;                              // timestamps per second in "accelerated" mode
+    private ScheduledExecutorService ticker;        // runs the ticks, created by scheduleTicks
+
+    /**
+     * Reads the "--clock" and "--speed" options.
+     *
+     * @param options the startup options of the process
+     */
+    TradingClock(Options options) {
+        this(options.get("clock", REAL), options.getInt("speed", 60));
+    }
+
+    /**
+     * Instantiates a new TradingClock.
+     *
+     * @param mode  "real", "accelerated" or "step"
+     * @param speed the number of timestamps per second in "accelerated" mode
+     */
+    TradingClock(String mode, int speed) {
+        this.mode = mode;
+        this.speed = Math.max(1, speed);
+        if (!mode.equals(REAL) && !mode.equals(ACCELERATED) && !mode.equals(STEP)) {
+            Log.warn("Invalid clock {}, using {}", mode, REAL);
+            this.mode = REAL;
+        }
+        if (this.mode.equals(REAL)) {
+            this.speed = 1;
+        }
+    }
+
+    /**
+     * Parses a clock sent by a Server, e.g. "accelerated:60".
+     *
+     * @param description the result of toString()
+     * @return the clock
+     */
+    static TradingClock parse(String description) {
+        int colon = description.indexOf(':');
+        if (colon == -1) {
+            return new TradingClock(description, 1);
+        }
+        return new TradingClock(description.substring(0, colon), Integer.parseInt(description.substring(colon + 1)));
+    }
+
+    /**
+     * The time between starting the Servers and the first timestamp, for the Exchanges to start and register. It is
+     * wall-clock time in every mode: starting a process does not go faster with the clock, and an Exchange registering
+     * after the first timestamp skips the timestamps it missed (in "step" mode it starts its tape when it registers).
+     *
+     * @return the delay in milliseconds
+     */
+    long startDelayMillis() {
+        return REGISTRATION_MILLIS;
+    }
+
+    boolean isStep() {
+        return this.mode.equals(STEP);
+    }
+
+    /**
+     * @return the wall-clock duration of a timestamp in nanoseconds, 0 in "step" mode
+     */
+    long tickNanos() {
+        return isStep() ? 0 : SECOND_NANOS / this.speed;
+    }
+
+    /**
+     * Converts a duration on the scale of the tape (1000 ms per timestamp) into wall-clock time, e.g. the period of the
+     * orders of a Client.
+     *
+     * @param tapeMillis the duration in milliseconds at real speed
+     * @return the duration in milliseconds at the speed of this clock, 0 in "step" mode
+     */
+    long toWallMillis(long tapeMillis) {
+        return isStep() ? 0 : tapeMillis / this.speed;
+    }
+
+    /**
+     * The timeIndex of the timestamp going on at a given time, for an Exchange joining a running system.
+     *
+     * @param startTime the time when the system started (timeIndex 1), in milliseconds
+     * @param now       the current time, in milliseconds
+     * @return the timeIndex, 1 in "step" mode where each Exchange starts its tape at its own pace
+     */
+    int timeIndexAt(long startTime, long now) {
+        if (isStep() || now < startTime) {
+            return 1;
+        }
+        long nanosPassed = (now - startTime) * 1000000L;
+        return Math.toIntExact((nanosPassed + tickNanos() - 1) / tickNanos() + 1);
+    }
+
+    /**
+     * The time until the next timestamp starts.
+     *
+     * @param startTime the time when the system started (timeIndex 1), in milliseconds
+     * @param now       the current time, in milliseconds
+     * @return the delay in nanoseconds
+     */
+    long nanosToNextTick(long startTime, long now) {
+        if (now < startTime) {
+            return (startTime - now) * 1000000L;
+        }
+        if (isStep()) {
+            return 0;
+        }
+        long nanosPassed = (now - startTime) * 1000000L;
+        return tickNanos() - nanosPassed % tickNanos();
+    }
+
+    /**
+     * Runs a task at each timestamp: at a fixed rate in "real" and "accelerated" mode, back to back in "step" mode.
+     *
+     * @param tick       the task
+     * @param delayNanos the time until the first timestamp
+     */
+    synchronized void scheduleTicks(Runnable tick, long delayNanos) {
+        this.ticker = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "clock"));
+        if (isStep()) {
+            this.ticker.scheduleWithFixedDelay(tick, delayNanos, 1, TimeUnit.NANOSECONDS);
+        } else {
+            this.ticker.scheduleAtFixedRate(tick, delayNanos, tickNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Stops the ticks, e.g. at the end of the tape.
+     */
+    synchronized void stop() {
+        if (this.ticker != null) {
+            this.ticker.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.mode.equals(ACCELERATED) ? this.mode + ":" + this.speed : this.mode;
+    }
+}
@@ -0,0 +1,486 @@
+package project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog: an append-only binary log of the changes of the stock quantities of an Exchange, with periodic
+ * checkpoints, for recovering the quantities after a failure.
+ *
+ * Each trade appends one record with the change of its stock, and each tick of the clock one record with the
+ * replenishments of all the stocks changing at that timeIndex:
+ *   [length of the body: 2 bytes] [sequence number: 8 bytes] [timeIndex: 4 bytes]
+ *   then for each stock: [signed qty: 4 bytes] [stock name: 2 bytes length + UTF-8 bytes]
+ *   and [CRC32 of the body: 4 bytes]
+ * The quantity of a stock is the sum of its changes. A record cut by a crash fails its length or CRC check and ends
+ * the replay.
+ *
+ * The records are written to segments "<exchange>.wal.<n>". Every checkpointRecords records
+ * ("--checkpointRecords=<n>", 0 for never), the log starts a new segment and writes the quantities of all stocks up to
+ * the last record of the previous segments to "<exchange>.ckpt":
+ *   [sequence number: 8 bytes] [number of stocks: 4 bytes] then for each stock: [stock name] [qty: 4 bytes]
+ *   and [CRC32 of all the above: 4 bytes]
+ * The previous segments are deleted once the checkpoint is written, so recovery reads the checkpoint and replays only
+ * the records written after it, however long the Exchange has been running.
+ *
+ * The durability mode ("--durability=sync|batch|os") chooses when a record is forced to the disk:
+ *   sync:  each record is written and forced before the trade returns.
+ *   batch: records are added to a buffer; a group commit thread writes and forces everything buffered while the
+ *          previous force was running, so concurrent trades share one force. A trade returns once its record is forced.
+ *   os:    each record is written to the file without forcing; it survives a crash of the Exchange, but not of the
+ *          machine.
+ */
+class WriteAheadLog implements Runnable {
+
+    static final String SYNC = "sync";
+    static final String BATCH = "batch";
+    static final String OS = "os";
+
+    private static final int HEADER_SIZE = 2;
+    private static final int CRC_SIZE = 4;
+
+    private String owner;                     // the name of the Exchange, for printing messages
+    private String baseName;                  // the file names without extension, e.g. "Shenzhen"
+    private File directory;                   // the directory of the log files
+    private String durability;                // "sync", "batch" or "os"
+    private int checkpointRecords;            // number of records between two checkpoints, 0 for no checkpoints
+
+    private FileChannel channel;              // the current segment
+    private int segmentIndex;                 // the <n> of the current segment
+    private final Object writeLock;           // held while writing to the current segment and while starting a new one
+
+    private HashMap<String, Integer> qtyTable; // stores <stock name, quantity> up to lastSequence, for the checkpoints
+    private long lastSequence;                // the sequence number of the last appended record
+    private long durableSequence;             // all records up to this sequence number are written (and forced)
+    private long checkpointSequence;          // the sequence number of the last checkpoint
+    private ByteArrayOutputStream pending;    // "batch": the records waiting for the group commit thread
+    private boolean failed;                   // whether writing the log failed, so that nothing waits for it anymore
+
+    /**
+     * Instantiates a new WriteAheadLog. The files are opened by recover().
+     *
+     * @param owner             the name of the Exchange
+     * @param baseName          the name of the log files without extension, e.g. "Shenzhen"
+     * @param durability        "sync", "batch" or "os"
+     * @param checkpointRecords the number of records between two checkpoints, 0 for no checkpoints
+     */
+    WriteAheadLog(String owner, String baseName, String durability, int checkpointRecords) {
+        this.owner = owner;
+        this.baseName = new File(baseName).getName();
+        this.directory = new File(baseName).getAbsoluteFile().getParentFile();
+        this.durability = durability;
+        this.checkpointRecords = checkpointRecords;
+        this.writeLock = new Object();
+        this.qtyTable = new HashMap<>();
+        this.pending = new ByteArrayOutputStream();
+        if (!durability.equals(SYNC) && !durability.equals(BATCH) && !durability.equals(OS)) {
+            Log.warn("{}: Invalid durability mode {}, using {}", owner, durability, BATCH);
+            this.durability = BATCH;
+        }
+    }
+
+    /**
+     * Reads the last checkpoint and replays the records written after it, then opens a new segment and starts the group
+     * commit and checkpoint threads. A record cut by a crash is removed from the end of the last segment.
+     *
+     * @return the stored <stock name, quantity> of every stock having records, empty if there was no log
+     * @throws IOException if the log files cannot be opened or read
+     */
+    Hashtable<String, Integer> recover() throws IOException {
+
+        readCheckpoint();
+
+        ArrayList<Integer> segments = segmentIndexes();
+        int numRecords = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            numRecords += replay(segmentFile(segments.get(i)), i == segments.size() - 1);
+        }
+        if (numRecords > 0) {
+            Log.info("{}: Replayed {} records written after the checkpoint", this.owner, numRecords);
+        }
+
+        this.segmentIndex = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        this.channel = new RandomAccessFile(segmentFile(this.segmentIndex), "rw").getChannel();
+        this.durableSequence = this.lastSequence;
+
+        if (this.durability.equals(BATCH)) {
+            Thread thread = new Thread(this, this.owner + "-group-commit");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (this.checkpointRecords > 0) {
+            Thread thread = new Thread(this::checkpointLoop, this.owner + "-checkpoint");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return new Hashtable<>(this.qtyTable);
+    }
+
+    /**
+     * Appends the change of the quantity of a stock. In "sync" and "os" mode, the record is written when this returns;
+     * in "batch" mode, commit() waits for it.
+     *
+     * @param stockName the name of the stock
+     * @param qty       the signed change of the quantity (negative for a buy)
+     * @param timeIndex the current timeIndex of the Exchange
+     * @return the sequence number of the record
+     */
+    synchronized long append(String stockName, int qty, int timeIndex) {
+        return append(new String[]{stockName}, new int[]{qty}, 0, 1, timeIndex);
+    }
+
+    /**
+     * Appends the changes of the quantities of several stocks at the same timeIndex, e.g. the replenishments of a tick,
+     * as one record (or as a few, if the names do not fit in one).
+     *
+     * @param stockNames the names of the stocks
+     * @param qtys       the signed change of the quantity of each stock
+     * @param timeIndex  the current timeIndex of the Exchange
+     * @return the sequence number of the last record, or -1 if there was no change
+     */
+    synchronized long append(String[] stockNames, int[] qtys, int timeIndex) {
+        long sequence = -1;
+        int from = 0;
+        while (from < stockNames.length) {
+            int bodyLength = 8 + 4;
+            int to = from;
+            while (to < stockNames.length && bodyLength + entryLength(stockNames[to]) <= 0xFFFF) {
+                bodyLength += entryLength(stockNames[to]);
+                to++;
+            }
+            sequence = append(stockNames, qtys, from, Math.max(to, from + 1), timeIndex);
+            from = Math.max(to, from + 1);
+        }
+        return sequence;
+    }
+
+    // appends the changes stockNames[from, to) as one record
+    private long append(String[] stockNames, int[] qtys, int from, int to, int timeIndex) {
+
+        long sequence = ++this.lastSequence;
+        byte[] record = encode(sequence, timeIndex, stockNames, qtys, from, to);
+        for (int i = from; i < to; i++) {
+            this.qtyTable.merge(stockNames[i], qtys[i], Integer::sum);
+        }
+        if (this.checkpointRecords > 0 && sequence - this.checkpointSequence == this.checkpointRecords) {
+            notifyAll(); // wakes the checkpoint thread
+        }
+
+        if (this.durability.equals(BATCH)) {
+            this.pending.write(record, 0, record.length);
+            notifyAll();
+            return sequence;
+        }
+
+        try {
+            write(record);
+            if (this.durability.equals(SYNC)) {
+                this.channel.force(false);
+            }
+        } catch (IOException e) {
+            logFailure(e);
+        }
+        this.durableSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Waits until a record is durable. Only waits in "batch" mode, the other modes write the record in append().
+     *
+     * @param sequence the sequence number returned by append()
+     */
+    synchronized void commit(long sequence) {
+        while (this.durableSequence < sequence && !this.failed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The group commit thread of "batch" mode: writes and forces everything appended since the previous round.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            byte[] batch;
+            long batchSequence;
+            synchronized (this) {
+                while (this.pending.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = this.pending.toByteArray();
+                batchSequence = this.lastSequence;
+                this.pending.reset();
+            }
+
+            // if a checkpoint started a new segment meanwhile, this batch goes to the new segment; its records are
+            // covered by the checkpoint and are skipped when replaying
+            synchronized (this.writeLock) {
+                try {
+                    write(batch);
+                    this.channel.force(false);
+                } catch (IOException e) {
+                    logFailure(e);
+                }
+            }
+
+            synchronized (this) {
+                this.durableSequence = batchSequence;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the quantities up to the last appended record, then deletes the segments it covers.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void checkpoint() throws IOException {
+
+        HashMap<String, Integer> snapshot;
+        long sequence;
+        int firstKeptSegment;
+        synchronized (this.writeLock) {
+            synchronized (this) {
+                snapshot = new HashMap<>(this.qtyTable);
+                sequence = this.lastSequence;
+                this.checkpointSequence = sequence;
+
+                // the records after the checkpoint go to a new segment
+                this.channel.close();
+                this.segmentIndex++;
+                this.channel = new RandomAccessFile(segmentFile(this.segmentIndex), "rw").getChannel();
+                firstKeptSegment = this.segmentIndex;
+            }
+        }
+
+        // the checkpoint replaces the previous one at once, so a crash leaves either of them complete
+        File checkpointFile = new File(this.directory, this.baseName + ".ckpt");
+        File tmpFile = new File(this.directory, this.baseName + ".ckpt.tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmpFile, "rw")) {
+            out.setLength(0);
+            out.write(encodeCheckpoint(sequence, snapshot));
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (int index : segmentIndexes()) {
+            if (index < firstKeptSegment) {
+                segmentFile(index).delete();
+            }
+        }
+    }
+
+    // the checkpoint thread: waits for checkpointRecords records, then takes a checkpoint
+    private void checkpointLoop() {
+        while (true) {
+            synchronized (this) {
+                while (this.lastSequence - this.checkpointSequence < this.checkpointRecords) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                Log.error("{}: Failed to write a checkpoint: {}", this.owner, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // reads the checkpoint into qtyTable, if there is a valid one
+    private void readCheckpoint() throws IOException {
+
+        File checkpointFile = new File(this.directory, this.baseName + ".ckpt");
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, Math.max(0, buffer.limit() - CRC_SIZE));
+        if (buffer.limit() < 8 + 4 + CRC_SIZE || (int) crc.getValue() != buffer.getInt(buffer.limit() - CRC_SIZE)) {
+            Log.warn("{}: Ignoring the invalid checkpoint {}", this.owner, checkpointFile);
+            return;
+        }
+
+        long sequence = buffer.getLong();
+        int numStocks = buffer.getInt();
+        for (int i = 0; i < numStocks; i++) {
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            this.qtyTable.put(new String(name, StandardCharsets.UTF_8), buffer.getInt());
+        }
+        this.lastSequence = sequence;
+        this.checkpointSequence = sequence;
+        Log.info("{}: Read the checkpoint of {} stocks at record {}", this.owner, numStocks, sequence);
+    }
+
+    // replays the records of a segment written after the checkpoint, returns the number of records replayed
+    private int replay(File segment, boolean lastSegment) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+        int validLength = 0;
+        int numRecords = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int bodyLength = buffer.getShort(buffer.position()) & 0xFFFF;
+            if (buffer.remaining() < HEADER_SIZE + bodyLength + CRC_SIZE) {
+                break;
+            }
+            int bodyStart = buffer.position() + HEADER_SIZE;
+            crc.reset();
+            crc.update(buffer.array(), bodyStart, bodyLength);
+            if ((int) crc.getValue() != buffer.getInt(bodyStart + bodyLength)) {
+                break;
+            }
+
+            buffer.position(bodyStart);
+            long sequence = buffer.getLong();
+            buffer.getInt(); // timeIndex, for reading the log by hand
+            // records up to the checkpoint are already counted in it
+            boolean replayed = sequence > this.checkpointSequence;
+            while (buffer.position() < bodyStart + bodyLength) {
+                int qty = buffer.getInt();
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                if (replayed) {
+                    this.qtyTable.merge(new String(name, StandardCharsets.UTF_8), qty, Integer::sum);
+                }
+            }
+            buffer.getInt(); // CRC
+            validLength = buffer.position();
+
+            if (replayed) {
+                this.lastSequence = Math.max(this.lastSequence, sequence);
+                numRecords++;
+            }
+        }
+
+        if (validLength < buffer.limit()) {
+            if (lastSegment) {
+                Log.warn("{}: Removing {} bytes of an incomplete record at the end of {}", this.owner,
+                        buffer.limit() - validLength, segment);
+                try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                    file.setLength(validLength);
+                }
+            } else {
+                Log.warn("{}: Ignoring {} invalid bytes at the end of {}", this.owner,
+                        buffer.limit() - validLength, segment);
+            }
+        }
+        return numRecords;
+    }
+
+    // the <n> of the existing segments, in increasing order
+    private ArrayList<Integer> segmentIndexes() {
+        ArrayList<Integer> indexes = new ArrayList<>();
+        String prefix = this.baseName + ".wal.";
+        String[] names = this.directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+")) {
+                    indexes.add(Integer.parseInt(name.substring(prefix.length())));
+                }
+            }
+        }
+        Collections.sort(indexes);
+        return indexes;
+    }
+
+    private File segmentFile(int index) {
+        return new File(this.directory, this.baseName + ".wal." + index);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    private void logFailure(IOException e) {
+        if (!this.failed) {
+            Log.error("{}: Failed to write the log, trades are not logged anymore: {}", this.owner, e.getMessage());
+        }
+        synchronized (this) {
+            this.failed = true;
+            notifyAll();
+        }
+    }
+
+    private static int entryLength(String stockName) {
+        return 4 + 2 + stockName.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static byte[] encode(long sequence, int timeIndex, String[] stockNames, int[] qtys, int from, int to) {
+        byte[][] names = new byte[to - from][];
+        int bodyLength = 8 + 4;
+        for (int i = from; i < to; i++) {
+            names[i - from] = stockNames[i].getBytes(StandardCharsets.UTF_8);
+            bodyLength += 4 + 2 + names[i - from].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodyLength + CRC_SIZE);
+        buffer.putShort((short) bodyLength);
+        buffer.putLong(sequence);
+        buffer.putInt(timeIndex);
+        for (int i = from; i < to; i++) {
+            buffer.putInt(qtys[i]);
+            buffer.putShort((short) names[i - from].length);
+            buffer.put(names[i - from]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, bodyLength);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static byte[] encodeCheckpoint(long sequence, HashMap<String, Integer> snapshot) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putLong(sequence);
+        header.putInt(snapshot.size());
+        bytes.write(header.array(), 0, 12);
+
+        for (String stockName : snapshot.keySet()) {
+            byte[] name = stockName.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer entry = ByteBuffer.allocate(2 + name.length + 4);
+            entry.putShort((short) name.length);
+            entry.put(name);
+            entry.putInt(snapshot.get(stockName));
+            bytes.write(entry.array(), 0, entry.capacity());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        ByteBuffer crcBytes = ByteBuffer.allocate(CRC_SIZE);
+        crcBytes.putInt((int) crc.getValue());
+        bytes.write(crcBytes.array(), 0, CRC_SIZE);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,69 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class BinaryCodecTest {
+
+    @Test
+    public void decodesWhatItEncodes() {
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("Type", "Publish");
+        hm.put("qty", 100);
+        hm.put("Seq", 1L << 40);
+        hm.put("price", 12.5);
+        hm.put("Replicated", true);
+        hm.put("StockSet", Arrays.asList("NHU", "TOTAL"));
+        hm.put("ExchangeAddresses", Arrays.asList(10012, -1, 1111));
+        JSONObject message = new JSONObject(hm);
+
+        JSONObject decoded = roundTrip(message);
+
+        assertEquals(message.toString(), decoded.toString());
+        assertEquals(-1, decoded.getJSONArray("ExchangeAddresses").get(1));
+        assertEquals(0, roundTrip(new JSONObject().put("StockSet", new JSONArray())).getJSONArray("StockSet").length());
+    }
+
+    @Test
+    public void rejectsTooManyFields() {
+        JSONObject message = new JSONObject();
+        for (int i = 0; i < 256; i++) {
+            message.put("field" + i, i);
+        }
+        assertRejected(message);
+
+        message.remove("field255");
+        assertEquals(255, roundTrip(message).length());
+    }
+
+    @Test
+    public void rejectsValuesItCannotDecode() {
+        assertRejected(new JSONObject().put("Change", new JSONObject().put("stock", "NHU")));
+        assertRejected(new JSONObject().put("StockSet", new JSONArray().put("NHU").put(1)));
+        assertRejected(new JSONObject().put("StockSet", new JSONArray().put(new JSONArray().put("NHU"))));
+        assertRejected(new JSONObject().put("ExchangeAddresses", new JSONArray().put(1L << 40)));
+        assertRejected(new JSONObject().put("result", JSONObject.NULL));
+    }
+
+    private static JSONObject roundTrip(JSONObject message) {
+        byte[] bytes = BinaryCodec.encode(message);
+        return BinaryCodec.decode(bytes, 0, bytes.length);
+    }
+
+    private static void assertRejected(JSONObject message) {
+        try {
+            BinaryCodec.encode(message);
+            fail("encoded " + message);
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CSVColumnReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsLastLineWithoutLineBreak() throws IOException {
+        CSVColumnReader reader = open("a,b\n1,2\n3,4");
+        reader.project(new int[]{0, 1});
+
+        assertTrue(reader.nextLine());
+        assertEquals("a", reader.getString(0));
+        assertTrue(reader.nextLine());
+        assertEquals(1.0, reader.getDouble(0), 0);
+        assertTrue(reader.nextLine());
+        assertEquals(3, reader.getCurrentLineIndex());
+        assertEquals(3.0, reader.getDouble(0), 0);
+        assertEquals(4, reader.getInt(1, -1));
+        assertFalse(reader.nextLine());
+        reader.close();
+    }
+
+    @Test
+    public void readsLastLineWithLineBreak() throws IOException {
+        CSVColumnReader reader = open("a,b\r\n1,2\r\n");
+        reader.project(new int[]{1});
+
+        assertTrue(reader.nextLine());
+        assertEquals("b", reader.getString(1));
+        assertTrue(reader.nextLine());
+        assertEquals(2, reader.getInt(1, -1));
+        assertFalse(reader.nextLine());
+        reader.close();
+    }
+
+    @Test
+    public void readsLastLineCrossingTheBufferWithoutLineBreak() throws IOException {
+        // the last line starts before and ends after the first 64 KB read into the buffer
+        StringBuilder content = new StringBuilder();
+        int lines = 0;
+        while (content.length() < (1 << 16) - 3) {
+            content.append(lines).append(",x\n");
+            lines++;
+        }
+        content.append("123.25,\"quoted, cell\"");
+        CSVColumnReader reader = open(content.toString());
+        reader.project(new int[]{0, 1});
+
+        for (int i = 0; i < lines; i++) {
+            assertTrue(reader.nextLine());
+            assertEquals(i, reader.getInt(0, -1));
+        }
+        assertTrue(reader.nextLine());
+        assertEquals(123.25, reader.getDouble(0), 0);
+        assertEquals("quoted, cell", reader.getString(1));
+        assertFalse(reader.nextLine());
+        reader.close();
+    }
+
+    @Test
+    public void readsEmptyFile() throws IOException {
+        CSVColumnReader reader = open("");
+        assertFalse(reader.nextLine());
+        reader.close();
+    }
+
+    @Test
+    public void loadsTheColumnsOfOneExchange() throws IOException {
+        String header = ",,Continent,Europe,Asia,Europe\n"
+                + ",,Country,France,China,France\n"
+                + ",,Market,Euronext Paris,Shenzhen,Euronext Paris\n"
+                + "Date,GMT Time,Stock,ACCOR,NHU,L''OREAL\n";
+        String prices = header + "1/1/2016,8:00,,31.5,11,151.25\n1/1/2016,9:00,,32.5,12,152.25";
+        // empty cells are no replenishment
+        String quantities = header + "1/1/2016,8:00,,,1,10\n1/1/2016,9:00,,200,2,20";
+        Hashtable<String, Stock> stockTable = new Hashtable<>();
+        Hashtable<Integer, String> timeIndexTable = new Hashtable<>();
+
+        Exchange.loadCsv(write(prices), write(quantities), "EuronextParis", stockTable, timeIndexTable);
+
+        assertEquals(2, stockTable.size());
+        Stock accor = stockTable.get("ACCOR");
+        Stock loreal = stockTable.get("LOREAL");
+        assertEquals(2, accor.getLastTime());
+        assertEquals("1/1/2016 8:00", timeIndexTable.get(1));
+        assertEquals("1/1/2016 9:00", timeIndexTable.get(2));
+        assertEquals(31.5, accor.getPrice(1), 0);
+        assertEquals(0, accor.getQty(1));
+        assertEquals(200, accor.getQty(2));
+        assertEquals(152.25, loreal.getPrice(2), 0);
+        assertEquals(20, loreal.getQty(2));
+    }
+
+    private CSVColumnReader open(String content) throws IOException {
+        return new CSVColumnReader(write(content));
+    }
+
+    private String write(String content) throws IOException {
+        File file = this.folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file.getPath();
+    }
+}
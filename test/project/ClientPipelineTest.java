@@ -0,0 +1,82 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientPipelineTest {
+
+    private static final String EXCHANGE = "Shenzhen";
+
+    private int pipelineWindow;
+    private Client client;
+
+    @Before
+    public void pipelineOrders() {
+        this.pipelineWindow = ClientTest.pipelineWindow;
+        ClientTest.pipelineWindow = 2;
+    }
+
+    @After
+    public void stopClient() {
+        if (this.client != null) {
+            this.client.stop();
+        }
+        ClientTest.pipelineWindow = this.pipelineWindow;
+    }
+
+    @Test
+    public void reconnectsAfterTheExchangeWasDownDuringAReconnect() throws IOException, InterruptedException {
+        int port = new ExchangeUtils(EXCHANGE).getPort();
+
+        // the Exchange takes a window of orders, then goes down without answering them
+        try (ServerSocket exchange = listen(port)) {
+            this.client = new Client(1, EXCHANGE, "B", "JINGGONGSCIENCE", 100, 0, 20);
+            try (Socket socket = exchange.accept()) {
+                MessageConnection connection = MessageConnection.accept(socket);
+                assertNotNull(connection.read());
+                assertNotNull(connection.read());
+            }
+        }
+        // the client fails the orders in flight, and cannot reconnect for a while
+        Thread.sleep(300);
+
+        // once the Exchange is back, the client connects again and its window is free
+        try (ServerSocket exchange = listen(port)) {
+            exchange.setSoTimeout(5000);
+            try (Socket socket = exchange.accept()) {
+                socket.setSoTimeout(5000);
+                MessageConnection connection = MessageConnection.accept(socket);
+                for (int i = 0; i < 5; i++) {
+                    JSONObject order = connection.read();
+                    assertNotNull(order);
+                    assertEquals("JINGGONGSCIENCE", order.getString("stock"));
+                    connection.write(response(order));
+                }
+            }
+        }
+    }
+
+    private static ServerSocket listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new java.net.InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    private static JSONObject response(JSONObject order) {
+        HashMap<String, Object> hm = new HashMap<>();
+        hm.put("RequestID", order.getInt("RequestID"));
+        hm.put("result", "Succeeded");
+        return new JSONObject(hm);
+    }
+}
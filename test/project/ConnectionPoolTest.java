@@ -0,0 +1,118 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    private ServerSocket exchange;
+    private ExecutorService exchangeThread;
+    private ConnectionPool pool;
+
+    @Before
+    public void startExchange() throws IOException {
+        this.exchange = new ServerSocket(0);
+        this.exchange.setSoTimeout(5000);
+        this.exchangeThread = Executors.newSingleThreadExecutor();
+        this.pool = new ConnectionPool("Test", false, 2);
+    }
+
+    @After
+    public void stopExchange() throws IOException {
+        this.exchangeThread.shutdownNow();
+        this.exchange.close();
+    }
+
+    @Test
+    public void doesNotSendAnOrderAgainWhenThePooledConnectionBreaksAfterSendingIt() throws Exception {
+        // the Exchange answers the first order, then executes the second one and fails before answering
+        Future<Integer> received = this.exchangeThread.submit(() -> {
+            int orders = 0;
+            try (Socket socket = this.exchange.accept()) {
+                MessageConnection connection = MessageConnection.accept(socket);
+                assertNotNull(connection.read());
+                orders++;
+                connection.write(response());
+                assertNotNull(connection.read());
+                orders++;
+            }
+            // any order sent again would come on a new connection
+            this.exchange.setSoTimeout(500);
+            try (Socket socket = this.exchange.accept()) {
+                MessageConnection connection = MessageConnection.accept(socket);
+                while (connection.read() != null) {
+                    orders++;
+                }
+            } catch (SocketTimeoutException e) {
+                // no new connection
+            }
+            return orders;
+        });
+
+        assertEquals("Successful", request().getString("result"));
+        try {
+            request();
+            fail("the order must fail when the Exchange did not answer it");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(2, (int) received.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendsAnOrderOnANewConnectionWhenThePooledOneWasClosed() throws Exception {
+        // the Exchange answers the first order and restarts, closing its connection
+        Future<Integer> received = this.exchangeThread.submit(() -> {
+            int orders = 0;
+            try (Socket socket = this.exchange.accept()) {
+                MessageConnection connection = MessageConnection.accept(socket);
+                assertNotNull(connection.read());
+                orders++;
+                connection.write(response());
+            }
+            try (Socket socket = this.exchange.accept()) {
+                MessageConnection connection = MessageConnection.accept(socket);
+                assertNotNull(connection.read());
+                orders++;
+                connection.write(response());
+            }
+            return orders;
+        });
+
+        assertEquals("Successful", request().getString("result"));
+        Thread.sleep(200);
+        assertEquals("Successful", request().getString("result"));
+        assertEquals(2, (int) received.get(5, TimeUnit.SECONDS));
+    }
+
+    private JSONObject request() throws IOException {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("src", "exchange");
+        request.put("action", "B");
+        request.put("qty", 10);
+        request.put("stock", "JINGGONGSCIENCE");
+        return this.pool.request("127.0.0.1", this.exchange.getLocalPort(), new JSONObject(request));
+    }
+
+    private static JSONObject response() {
+        HashMap<String, Object> response = new HashMap<>();
+        response.put("result", "Successful");
+        return new JSONObject(response);
+    }
+}
@@ -0,0 +1,74 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static final int STOCKS = 20000;
+
+    @Test
+    public void spreadsTheStocksEvenly() {
+        HashRing ring = ring(4);
+        HashMap<String, Integer> stocksPerServer = new HashMap<>();
+        for (int i = 0; i < STOCKS; i++) {
+            stocksPerServer.merge(ring.owner("STOCK" + i), 1, Integer::sum);
+        }
+        assertEquals(4, stocksPerServer.size());
+        for (int stocks : stocksPerServer.values()) {
+            assertTrue("unbalanced: " + stocksPerServer, stocks > STOCKS / 4 * 0.7 && stocks < STOCKS / 4 * 1.3);
+        }
+    }
+
+    @Test
+    public void movesOnlyTheStocksOfAServerJoiningOrLeaving() {
+        HashRing ring = ring(4);
+        String[] owners = owners(ring);
+
+        ring.add("SERVER4");
+        String[] joined = owners(ring);
+        int moved = 0;
+        for (int i = 0; i < STOCKS; i++) {
+            if (!joined[i].equals(owners[i])) {
+                assertEquals("a stock moved between servers that stayed", "SERVER4", joined[i]);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > STOCKS / 5 * 0.7 && moved < STOCKS / 5 * 1.3);
+
+        ring.remove("SERVER4");
+        assertEquals(String.join(",", owners), String.join(",", owners(ring)));
+    }
+
+    @Test
+    public void agreesOnTheOwnersWhateverTheOrderOfTheServers() {
+        HashRing ring = ring(4);
+        HashRing reversed = new HashRing(100);
+        for (int i = 3; i >= 0; i--) {
+            reversed.add("SERVER" + i);
+        }
+        assertEquals(String.join(",", owners(ring)), String.join(",", owners(reversed)));
+        assertNull(new HashRing(100).owner("STOCK0"));
+    }
+
+    private static HashRing ring(int servers) {
+        HashRing ring = new HashRing(100);
+        for (int i = 0; i < servers; i++) {
+            ring.add("SERVER" + i);
+        }
+        return ring;
+    }
+
+    private static String[] owners(HashRing ring) {
+        String[] owners = new String[STOCKS];
+        for (int i = 0; i < STOCKS; i++) {
+            owners[i] = ring.owner("STOCK" + i);
+        }
+        return owners;
+    }
+}
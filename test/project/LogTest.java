@@ -0,0 +1,68 @@
+package project;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogTest {
+
+    private PrintStream systemOut;
+    private ByteArrayOutputStream output;
+
+    @Before
+    public void captureOutput() {
+        Log.flush();
+        this.systemOut = System.out;
+        this.output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(this.output, true));
+    }
+
+    @After
+    public void restoreOutput() {
+        Log.flush();
+        System.setOut(this.systemOut);
+    }
+
+    @Test
+    public void keepsPrintingAfterAnArgumentFailsToFormat() {
+        Object failing = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("changed while formatting");
+            }
+        };
+        Log.warn("first {}", failing);
+        Log.info("second {}", "message");
+        Log.flush();
+
+        String printed = printed();
+        assertTrue(printed, printed.contains("first "));
+        assertTrue(printed, printed.contains("second message"));
+    }
+
+    @Test
+    public void formatsMutableArgumentsWhenLogged() {
+        StringBuilder message = new StringBuilder("before");
+        Log.info("state {}", message);
+        Log.warn("states {} {} {} {}", message, message, message, message);
+        message.setLength(0);
+        message.append("after");
+        Log.flush();
+
+        String printed = printed();
+        assertTrue(printed, printed.contains("state before"));
+        assertTrue(printed, printed.contains("states before before before before"));
+        assertFalse(printed, printed.contains("after"));
+    }
+
+    private String printed() {
+        return new String(this.output.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
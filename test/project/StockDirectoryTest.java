@@ -0,0 +1,112 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class StockDirectoryTest {
+
+    @Test
+    public void findsTheExchangeOfARegisteredOrCachedStock() {
+        StockDirectory directory = new StockDirectory(0);
+        directory.register("Shenzhen", 10012, Arrays.asList("NHU", "JSQH"));
+        directory.cache("TOTAL", "EuronextParis", 10030);
+
+        assertEquals("Shenzhen", directory.getExchange("NHU"));
+        assertEquals("EuronextParis", directory.getExchange("TOTAL"));
+        assertEquals(10030, directory.getAddress("EuronextParis"));
+        assertNull(directory.getExchange("BPPLC"));
+
+        // registering again replaces the stocks listed before
+        directory.register("Shenzhen", 10012, Collections.singletonList("NHU"));
+        assertNull(directory.getExchange("JSQH"));
+        assertEquals(Collections.singletonList("NHU"), directory.getStocks("Shenzhen"));
+    }
+
+    @Test
+    public void removesARegisteredExchangeOnlyAtTheAddressItWasDown() {
+        StockDirectory directory = new StockDirectory(0);
+        directory.register("Shenzhen", 10012, Collections.singletonList("NHU"));
+
+        // the exchange registered again at another address before the notification came
+        directory.remove("Shenzhen", 10099);
+        assertEquals("Shenzhen", directory.getExchange("NHU"));
+
+        directory.remove("Shenzhen", 10012);
+        assertNull(directory.getExchange("NHU"));
+        assertEquals(-1, directory.getAddress("Shenzhen"));
+    }
+
+    @Test
+    public void remembersUnknownStocksUntilAnExchangeListsThem() throws InterruptedException {
+        StockDirectory directory = new StockDirectory(100);
+        directory.cacheUnknown("NOSUCHSTOCK");
+        directory.cacheUnknown("LATER");
+        assertTrue(directory.isUnknown("NOSUCHSTOCK"));
+
+        directory.register("Shenzhen", 10012, Collections.singletonList("LATER"));
+        assertFalse(directory.isUnknown("LATER"));
+
+        Thread.sleep(150);
+        assertFalse(directory.isUnknown("NOSUCHSTOCK"));
+    }
+
+    @Test
+    public void findsRegisteredStocksWhileOtherExchangesAreCachedAndRemoved() throws Exception {
+        StockDirectory directory = new StockDirectory(0);
+        for (int e = 0; e < 20; e++) {
+            ArrayList<String> stockNames = new ArrayList<>();
+            for (int s = 0; s < 50; s++) {
+                stockNames.add("STOCK" + e + "_" + s);
+            }
+            directory.register("EXCHANGE" + e, 10000 + e, stockNames);
+        }
+
+        ExecutorService threads = Executors.newFixedThreadPool(5);
+        AtomicBoolean done = new AtomicBoolean();
+        try {
+            // caches and removes exchanges of another continent over and over, as Servers do
+            Future<?> writer = threads.submit(() -> {
+                for (int i = 0; !done.get(); i++) {
+                    String exchangeName = "CACHED" + (i % 16);
+                    directory.cache("CACHEDSTOCK" + i, exchangeName, 20000);
+                    directory.remove(exchangeName, 20000);
+                }
+            });
+
+            ArrayList<Future<Integer>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(threads.submit(() -> {
+                    int missed = 0;
+                    for (int i = 0; i < 200000; i++) {
+                        int e = i % 20;
+                        if (!("EXCHANGE" + e).equals(directory.getExchange("STOCK" + e + "_" + (i % 50)))) {
+                            missed++;
+                        }
+                    }
+                    return missed;
+                }));
+            }
+            for (Future<Integer> reader : readers) {
+                assertEquals(0, (int) reader.get(30, TimeUnit.SECONDS));
+            }
+            done.set(true);
+            writer.get(10, TimeUnit.SECONDS);
+        } finally {
+            done.set(true);
+            threads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StockInventoryTest {
+
+    private static final int THREADS = 16;
+
+    private ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+
+    @After
+    public void stopThreads() {
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    public void neverSellsMoreThanItHas() throws Exception {
+        StockInventory inventory = new StockInventory(1000);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+
+        ArrayList<Future<Integer>> buyers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            buyers.add(this.threads.submit(() -> {
+                start.await();
+                int bought = 0;
+                for (int i = 0; i < 1000; i++) {
+                    if (inventory.reserve(1)) {
+                        bought++;
+                    }
+                }
+                return bought;
+            }));
+        }
+
+        int bought = 0;
+        for (Future<Integer> buyer : buyers) {
+            bought += buyer.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1000, bought);
+        assertEquals(0, inventory.get());
+        assertFalse(inventory.reserve(1));
+    }
+
+    @Test
+    public void keepsTheTotalQuantityUnderContention() throws Exception {
+        StockInventory inventory = new StockInventory(500);
+        CyclicBarrier start = new CyclicBarrier(THREADS + 1);
+        AtomicBoolean negative = new AtomicBoolean();
+
+        // buyers and sellers of random quantities, each counting what it actually bought or sold
+        ArrayList<Future<Integer>> traders = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            traders.add(this.threads.submit(() -> {
+                start.await();
+                int change = 0;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20000; i++) {
+                    int qty = 1 + random.nextInt(100);
+                    if (random.nextBoolean()) {
+                        inventory.add(qty);
+                        change += qty;
+                    } else if (inventory.reserve(qty)) {
+                        change -= qty;
+                    }
+                    if (inventory.get() < 0) {
+                        negative.set(true);
+                    }
+                }
+                return change;
+            }));
+        }
+        start.await();
+
+        int change = 0;
+        for (Future<Integer> trader : traders) {
+            change += trader.get(30, TimeUnit.SECONDS);
+        }
+        assertFalse("the quantity went below 0", negative.get());
+        assertEquals(500 + change, inventory.get());
+    }
+}
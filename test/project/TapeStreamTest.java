@@ -0,0 +1,77 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TapeStreamTest {
+
+    private static final int ROWS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String csvPriceFile;
+    private String csvQtyFile;
+
+    @Before
+    public void writeCsvFiles() throws IOException {
+        String[] header = {
+                ",,Continent,Europe,Asia,Europe",
+                ",,Country,France,China,France",
+                ",,Market,Euronext Paris,Shenzhen,Euronext Paris",
+                "Date,GMT Time,Stock,ACCOR,NHU,L''OREAL"
+        };
+        String[] prices = Arrays.copyOf(header, header.length + ROWS);
+        String[] quantities = Arrays.copyOf(header, header.length + ROWS);
+        for (int t = 1; t <= ROWS; t++) {
+            String dateTime = "1/1/2016," + (7 + t) + ":00,";
+            prices[header.length + t - 1] = dateTime + "," + (30 + t) + ".5," + (10 + t) + "," + (150 + t) + ".25";
+            // empty cells are no replenishment
+            quantities[header.length + t - 1] = dateTime + "," + (t % 2 == 0 ? 100 * t : "") + "," + t + "," + 10 * t;
+        }
+        this.csvPriceFile = write("price_stocks.csv", prices);
+        this.csvQtyFile = write("qty_stocks.csv", quantities);
+    }
+
+    @Test
+    public void streamsTheSameTapesAsTheFullLoad() throws IOException {
+        Hashtable<String, Stock> fullTable = new Hashtable<>();
+        Hashtable<Integer, String> fullTimes = new Hashtable<>();
+        Exchange.loadCsv(this.csvPriceFile, this.csvQtyFile, "EuronextParis", fullTable, fullTimes);
+
+        Hashtable<String, Stock> streamTable = new Hashtable<>();
+        Hashtable<Integer, String> streamTimes = new Hashtable<>();
+        TapeStream tapeStream = new TapeStream(this.csvPriceFile, this.csvQtyFile, "EuronextParis", 3, streamTable,
+                streamTimes);
+        assertEquals(fullTable.keySet(), streamTable.keySet());
+        tapeStream.start();
+
+        // a window of 3 rows is shorter than the files: the loader waits for the clock to move
+        for (int time = 1; time <= ROWS; time++) {
+            tapeStream.advance(time);
+            for (Stock stock : streamTable.values()) {
+                Stock full = fullTable.get(stock.getName());
+                assertEquals(stock.getName() + " at " + time, full.getPrice(time), stock.getPrice(time), 0);
+                assertEquals(stock.getName() + " at " + time, full.getQty(time), stock.getQty(time));
+            }
+            assertEquals(fullTimes.get(time), streamTimes.get(time));
+        }
+    }
+
+    private String write(String fileName, String[] lines) throws IOException {
+        File file = new File(this.folder.getRoot(), fileName);
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file.getPath();
+    }
+}
@@ -0,0 +1,75 @@
+package project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysTheRecordsAfterARestart() throws IOException {
+        WriteAheadLog wal = log();
+        assertTrue(wal.recover().isEmpty());
+        wal.append("NHU", 100, 1);
+        wal.append("NHU", -30, 2);
+        wal.append(new String[]{"NHU", "JSQH"}, new int[]{5, 40}, 3);
+
+        Hashtable<String, Integer> qtyTable = log().recover();
+
+        assertEquals(75, (int) qtyTable.get("NHU"));
+        assertEquals(40, (int) qtyTable.get("JSQH"));
+    }
+
+    @Test
+    public void recoversFromTheCheckpointAndTheRecordsAfterIt() throws IOException {
+        WriteAheadLog wal = log();
+        wal.recover();
+        wal.append("NHU", 100, 1);
+        wal.append("JSQH", 50, 1);
+        wal.checkpoint();
+        wal.append("NHU", -20, 2);
+
+        Hashtable<String, Integer> qtyTable = log().recover();
+
+        assertEquals(80, (int) qtyTable.get("NHU"));
+        assertEquals(50, (int) qtyTable.get("JSQH"));
+        // the segment before the checkpoint was deleted
+        assertTrue(new File(this.folder.getRoot(), "Test.ckpt").exists());
+        assertFalse(new File(this.folder.getRoot(), "Test.wal.1").exists());
+    }
+
+    @Test
+    public void dropsARecordCutByACrash() throws IOException {
+        WriteAheadLog wal = log();
+        wal.recover();
+        wal.append("NHU", 100, 1);
+        wal.append("NHU", -30, 2);
+        File segment = new File(this.folder.getRoot(), "Test.wal.1");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        WriteAheadLog restarted = log();
+        assertEquals(100, (int) restarted.recover().get("NHU"));
+
+        // the records written after the restart are replayed after the ones kept
+        restarted.append("NHU", -10, 3);
+        assertEquals(90, (int) log().recover().get("NHU"));
+    }
+
+    private WriteAheadLog log() {
+        return new WriteAheadLog("Test", new File(this.folder.getRoot(), "Test").getPath(), WriteAheadLog.SYNC, 0);
+    }
+}